@@ -0,0 +1,100 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.benchmarks;
+
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.AddressFormatter;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.jexl2.JexlContext;
+import org.apache.commons.jexl2.JexlEngine;
+import org.apache.commons.jexl2.MapContext;
+import org.apache.commons.jexl2.UnifiedJEXL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per call throughput of AddressFormatter.qualifySubjectAddress against the original implementation, which built a
+ * MapContext, evaluated the JEXL expression and ran String.format on every call, and of qualifyGroupAddress. Subject
+ * ids and group paths cycle through fixed pools, like the members and groups of a full sync.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AddressFormatterBenchmark {
+
+    @Param({"${subjectId}", "${subjectId.toLowerCase()}"})
+    public String expression;
+
+    private static final int SUBJECTS = 4096;
+
+    private String[] subjectIds;
+    private String[] groupPaths;
+    private AddressFormatter formatter;
+    private UnifiedJEXL.Expression legacyExpression;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        subjectIds = Datasets.subjectIds(SUBJECTS, 42);
+        groupPaths = Datasets.groupPaths(SUBJECTS, 42);
+
+        formatter = new AddressFormatter()
+                .setSubjectIdentifierExpression(expression)
+                .setGroupIdentifierExpression(expression.replace("subjectId", "groupPath"))
+                .setDomain(Datasets.DOMAIN);
+
+        legacyExpression = new UnifiedJEXL(new JexlEngine()).parse(expression);
+    }
+
+    @Benchmark
+    public String before() {
+        final JexlContext context = new MapContext();
+        context.set("subjectId", nextSubjectId());
+
+        final String address = legacyExpression.evaluate(context).toString();
+
+        return String.format("%s@%s", address.replace(":", "-"), Datasets.DOMAIN);
+    }
+
+    @Benchmark
+    public String after() {
+        return formatter.qualifySubjectAddress(nextSubjectId());
+    }
+
+    @Benchmark
+    public String group() {
+        next = (next + 1) & (SUBJECTS - 1);
+        return formatter.qualifyGroupAddress(groupPaths[next]);
+    }
+
+    private String nextSubjectId() {
+        next = (next + 1) & (SUBJECTS - 1);
+        return subjectIds[next];
+    }
+}
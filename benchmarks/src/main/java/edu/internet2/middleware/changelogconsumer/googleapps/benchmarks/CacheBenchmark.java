@@ -0,0 +1,114 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.benchmarks;
+
+import com.google.api.services.admin.directory.model.User;
+import edu.internet2.middleware.changelogconsumer.googleapps.cache.Cache;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cache reads and writes under contention, as seen when the change log lanes and full sync workers share the Google
+ * user cache: three readers per writer on a cache holding the given number of users, with and without a maximum size
+ * (which makes writers evict). Also times a full reload with seed().
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class CacheBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int users;
+
+    /** The cache's maximum size as a fraction of the users, 0 for no limit. */
+    @Param({"0", "0.9"})
+    public double maxSizeRatio;
+
+    private List<User> userList;
+    private Cache<User> cache;
+
+    @Setup
+    public void setUp() {
+        final String[] addresses = Datasets.userAddresses(users, 42);
+        userList = new ArrayList<User>(users);
+        for (String address : addresses) {
+            userList.add(new User().setPrimaryEmail(address));
+        }
+
+        cache = new Cache<User>();
+        cache.setCacheValidity(60);
+        cache.seed(userList);
+        cache.setMaxSize((int) (users * maxSizeRatio));
+    }
+
+    /** Each thread walks the users from its own starting point. */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup
+        public void setUp() {
+            next = (int) (Thread.currentThread().getId() * 7919);
+        }
+
+        int next(int bound) {
+            next = (next + 1) % bound;
+            return next;
+        }
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public User get(Cursor cursor) {
+        return cache.get(userList.get(cursor.next(users)).getPrimaryEmail());
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void put(Cursor cursor) {
+        cache.put(userList.get(cursor.next(users)));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Cache<User> seed() {
+        final Cache<User> fresh = new Cache<User>();
+        fresh.seed(userList);
+        return fresh;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.benchmarks;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.admin.directory.model.Member;
+import com.google.api.services.admin.directory.model.Members;
+import com.google.api.services.admin.directory.model.User;
+import com.google.api.services.admin.directory.model.UserName;
+import com.google.api.services.admin.directory.model.Users;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates repeatable, realistic looking test data: campus style subject ids and addresses, stem-and-group paths,
+ * and Directory API list pages. The same seed always gives the same data, so runs can be compared.
+ */
+final class Datasets {
+    static final String DOMAIN = "example.edu";
+
+    private static final String[] FIRST_NAMES = {"james", "mary", "wei", "fatima", "olivia", "noah", "ana", "raj",
+            "chen", "sofia", "liam", "aisha", "lucas", "yuki", "emma", "omar"};
+    private static final String[] LAST_NAMES = {"smith", "garcia", "nguyen", "kim", "patel", "johnson", "martin",
+            "okafor", "rossi", "mueller", "silva", "cohen", "tanaka", "brown", "lee", "haddad"};
+    private static final String[] STEMS = {"courses", "departments", "org", "app:wiki", "app:lms", "ref:affiliation"};
+    private static final String[] TERMS = {"2023:fall", "2024:spring", "2024:summer", "2024:fall"};
+
+    private Datasets() {
+    }
+
+    /**
+     * @param count how many
+     * @param seed the random seed
+     * @return distinct subject ids, like "mgarcia42"
+     */
+    static String[] subjectIds(int count, long seed) {
+        final Random random = new Random(seed);
+        final String[] ids = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)].charAt(0)
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)] + i;
+        }
+        return ids;
+    }
+
+    /**
+     * @param count how many
+     * @param seed the random seed
+     * @return distinct user addresses in DOMAIN
+     */
+    static String[] userAddresses(int count, long seed) {
+        final String[] ids = subjectIds(count, seed);
+        for (int i = 0; i < count; i++) {
+            ids[i] = ids[i] + "@" + DOMAIN;
+        }
+        return ids;
+    }
+
+    /**
+     * @param count how many
+     * @param seed the random seed
+     * @return distinct Grouper group names, like "courses:2024:fall:chem-101-s3"
+     */
+    static String[] groupPaths(int count, long seed) {
+        final Random random = new Random(seed);
+        final String[] paths = new String[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = STEMS[random.nextInt(STEMS.length)] + ":" + TERMS[random.nextInt(TERMS.length)]
+                    + ":sect" + (100 + random.nextInt(900)) + "-s" + i;
+        }
+        return paths;
+    }
+
+    /**
+     * @param jsonFactory used to serialize the page
+     * @param size the number of members on the page (Google sends up to 200)
+     * @param seed the random seed
+     * @return a members.list response body
+     * @throws IOException
+     */
+    static String membersPage(JsonFactory jsonFactory, int size, long seed) throws IOException {
+        final Random random = new Random(seed);
+        final String[] addresses = userAddresses(size, seed);
+
+        final List<Member> members = new ArrayList<Member>(size);
+        for (int i = 0; i < size; i++) {
+            members.add(new Member()
+                    .setKind("admin#directory#member")
+                    .setId(Long.toString(100000000000000000L + random.nextInt(Integer.MAX_VALUE)))
+                    .setEmail(addresses[i])
+                    .setRole(i % 50 == 0 ? "OWNER" : (i % 10 == 0 ? "MANAGER" : "MEMBER"))
+                    .setType("USER"));
+        }
+
+        return jsonFactory.toString(new Members()
+                .setKind("admin#directory#members")
+                .setMembers(members)
+                .setNextPageToken("CgwI" + Long.toHexString(random.nextLong())));
+    }
+
+    /**
+     * @param jsonFactory used to serialize the page
+     * @param size the number of users on the page (Google sends up to 500)
+     * @param seed the random seed
+     * @return a users.list response body
+     * @throws IOException
+     */
+    static String usersPage(JsonFactory jsonFactory, int size, long seed) throws IOException {
+        final Random random = new Random(seed);
+        final String[] ids = subjectIds(size, seed);
+
+        final List<User> users = new ArrayList<User>(size);
+        for (int i = 0; i < size; i++) {
+            users.add(new User()
+                    .setKind("admin#directory#user")
+                    .setId(Long.toString(100000000000000000L + random.nextInt(Integer.MAX_VALUE)))
+                    .setPrimaryEmail(ids[i] + "@" + DOMAIN)
+                    .setName(new UserName()
+                            .setGivenName(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)])
+                            .setFamilyName(LAST_NAMES[random.nextInt(LAST_NAMES.length)])
+                            .setFullName(ids[i]))
+                    .setIsAdmin(false)
+                    .setSuspended(false)
+                    .setOrgUnitPath("/Students"));
+        }
+
+        return jsonFactory.toString(new Users()
+                .setKind("admin#directory#users")
+                .setUsers(users)
+                .setNextPageToken("CgwI" + Long.toHexString(random.nextLong())));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.benchmarks;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.admin.directory.model.Members;
+import com.google.api.services.admin.directory.model.Users;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of Directory API list pages into the model classes, which is where the CPU goes when paging through a
+ * large directory or group. Pages are full: 200 members or 500 users.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonDecodingBenchmark {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    private static final int MEMBERS_PER_PAGE = 200;
+    private static final int USERS_PER_PAGE = 500;
+
+    private String membersPage;
+    private String usersPage;
+
+    @Setup
+    public void setUp() throws IOException {
+        membersPage = Datasets.membersPage(JSON_FACTORY, MEMBERS_PER_PAGE, 42);
+        usersPage = Datasets.usersPage(JSON_FACTORY, USERS_PER_PAGE, 42);
+    }
+
+    @Benchmark
+    public Members members() throws IOException {
+        return JSON_FACTORY.fromString(membersPage, Members.class);
+    }
+
+    @Benchmark
+    public Users users() throws IOException {
+        return JSON_FACTORY.fromString(usersPage, Users.class);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.benchmarks;
+
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.RecentlyManipulatedObjectsList;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The bookkeeping every Google change goes through: isWaiting(), submit() of a change that can run straight away,
+ * and add(), with four threads sharing one list. The list is kept full, and the objects cycle through a pool of the
+ * given size, so most lookups miss as they would in a full sync. The changes themselves do nothing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RecentlyManipulatedObjectsListBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int objects;
+
+    /** recentlyManipulatedQueueSize */
+    @Param({"100", "10000"})
+    public int queueSize;
+
+    private String[] addresses;
+    private RecentlyManipulatedObjectsList list;
+
+    private static final RecentlyManipulatedObjectsList.Operation NOTHING = new RecentlyManipulatedObjectsList.Operation() {
+        public void run() {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        addresses = Datasets.userAddresses(objects, 42);
+
+        // no delay, so submitted changes always run straight away instead of piling up on the worker
+        list = new RecentlyManipulatedObjectsList(queueSize, 0);
+        for (int i = 0; i < queueSize; i++) {
+            list.add(addresses[i % objects]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        list.drain();
+    }
+
+    /** Each thread walks the objects from its own starting point. */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup
+        public void setUp() {
+            next = (int) (Thread.currentThread().getId() * 7919);
+        }
+
+        int next(int bound) {
+            next = (next + 1) % bound;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public boolean isWaiting(Cursor cursor) {
+        return list.isWaiting(addresses[cursor.next(objects)]);
+    }
+
+    @Benchmark
+    public void submit(Cursor cursor) throws IOException {
+        list.submit(addresses[cursor.next(objects)], null, NOTHING);
+    }
+
+    @Benchmark
+    public void add(Cursor cursor) {
+        list.add(addresses[cursor.next(objects)]);
+    }
+}
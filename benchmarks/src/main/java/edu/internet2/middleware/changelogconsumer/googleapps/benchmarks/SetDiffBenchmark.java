@@ -0,0 +1,121 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.benchmarks;
+
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.ComparableGroupItem;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.ComparableMemberItem;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.SetDiff;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.collections.CollectionUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the full sync diffs done with three CollectionUtils calls (the old way) with SetDiff's single sorted
+ * merge, for a group's members and for the synced groups themselves. Each side has the given number of items; 5%
+ * are only in Grouper and 5% only in Google.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SetDiffBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    private List<ComparableMemberItem> grouperMembers;
+    private List<ComparableMemberItem> googleMembers;
+    private List<String> googleAddresses;
+
+    private List<ComparableGroupItem> grouperGroups;
+    private List<ComparableGroupItem> googleGroups;
+    private List<String> googleGroupAddresses;
+
+    @Setup
+    public void setUp() {
+        final String[] addresses = Datasets.userAddresses(size, 42);
+        grouperMembers = new ArrayList<ComparableMemberItem>(size);
+        googleMembers = new ArrayList<ComparableMemberItem>(size);
+        googleAddresses = new ArrayList<String>(size);
+
+        final String[] groupPaths = Datasets.groupPaths(size, 42);
+        grouperGroups = new ArrayList<ComparableGroupItem>(size);
+        googleGroups = new ArrayList<ComparableGroupItem>(size);
+        googleGroupAddresses = new ArrayList<String>(size);
+
+        for (int i = 0; i < size; i++) {
+            final String groupAddress = groupPaths[i].replace(':', '-') + "@" + Datasets.DOMAIN;
+            final int bucket = i % 20;
+
+            if (bucket != 0) {
+                grouperMembers.add(new ComparableMemberItem(addresses[i]));
+                grouperGroups.add(new ComparableGroupItem(groupAddress));
+            }
+            if (bucket != 1) {
+                googleMembers.add(new ComparableMemberItem(addresses[i]));
+                googleAddresses.add(addresses[i]);
+                googleGroups.add(new ComparableGroupItem(groupAddress));
+                googleGroupAddresses.add(groupAddress);
+            }
+        }
+    }
+
+    @Benchmark
+    public void collectionUtils(Blackhole blackhole) {
+        final Collection<?> extra = CollectionUtils.subtract(googleMembers, grouperMembers);
+        final Collection<?> missing = CollectionUtils.subtract(grouperMembers, googleMembers);
+        final Collection<?> matched = CollectionUtils.intersection(grouperMembers, googleMembers);
+
+        blackhole.consume(extra);
+        blackhole.consume(missing);
+        blackhole.consume(matched);
+    }
+
+    @Benchmark
+    public SetDiff<ComparableMemberItem> setDiff() {
+        return new SetDiff<ComparableMemberItem>(grouperMembers, googleAddresses, SetDiff.MEMBER_ADDRESS);
+    }
+
+    @Benchmark
+    public void groupsCollectionUtils(Blackhole blackhole) {
+        blackhole.consume(CollectionUtils.subtract(googleGroups, grouperGroups));
+        blackhole.consume(CollectionUtils.subtract(grouperGroups, googleGroups));
+        blackhole.consume(CollectionUtils.intersection(grouperGroups, googleGroups));
+    }
+
+    @Benchmark
+    public SetDiff<ComparableGroupItem> groupsSetDiff() {
+        return new SetDiff<ComparableGroupItem>(grouperGroups, googleGroupAddresses, SetDiff.GROUP_ADDRESS);
+    }
+}
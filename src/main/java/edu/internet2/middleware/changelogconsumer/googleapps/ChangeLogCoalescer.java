@@ -0,0 +1,251 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogLabels;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ChangeLogCoalescer folds a batch of change log entries into its net effect before they are dispatched:
+ * <ul>
+ * <li>a membership add and a later delete of the same member (or a delete and a later add) cancel out;</li>
+ * <li>repeated description or displayExtension updates of a group collapse to the last one;</li>
+ * <li>repeated privilege adds/deletes for the same member of a group collapse to the last one, which resolves the
+ *     member's role from the group's current privileges anyway.</li>
+ * </ul>
+ *
+ * Entries that change what a group is (adds, deletes, renames, privilege updates) are barriers for that group, and
+ * attribute assignments and stem deletes (which can change which groups are synced) are barriers for every group;
+ * nothing is folded across a barrier. Surviving entries keep their original order.
+ *
+ * Because dropped entries are only "done" once the entry that superseded them is, lastSafeSequenceNumber() works out
+ * how far the batch may be acknowledged when processing stops early.
+ */
+public class ChangeLogCoalescer {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeLogCoalescer.class);
+
+    private final List<ChangeLogEntry> original;
+    private final List<ChangeLogEntry> entries = new ArrayList<ChangeLogEntry>();
+
+    /** for each entry, whether it was dropped and the index of the entry that superseded it (or -1) */
+    private final boolean[] dropped;
+    private final int[] supersededBy;
+
+    /** group name to (member/property key to index in original) for the entries that may still be folded */
+    private final Map<String, Map<String, Integer>> pendingMemberships = new HashMap<String, Map<String, Integer>>();
+    private final Map<String, Map<String, Integer>> pendingPrivileges = new HashMap<String, Map<String, Integer>>();
+    private final Map<String, Map<String, Integer>> pendingUpdates = new HashMap<String, Map<String, Integer>>();
+
+    /**
+     * @param changeLogEntryList a batch of change log entries, in sequence order
+     */
+    public ChangeLogCoalescer(List<ChangeLogEntry> changeLogEntryList) {
+        this(changeLogEntryList, true);
+    }
+
+    /**
+     * @param changeLogEntryList a batch of change log entries, in sequence order
+     * @param compact false to pass every entry through untouched
+     */
+    public ChangeLogCoalescer(List<ChangeLogEntry> changeLogEntryList, boolean compact) {
+        this.original = changeLogEntryList;
+
+        dropped = new boolean[original.size()];
+        supersededBy = new int[original.size()];
+        for (int i = 0; i < original.size(); i++) {
+            supersededBy[i] = -1;
+            if (compact) {
+                fold(i);
+            }
+        }
+
+        //an entry superseded by an entry that was itself dropped waits on whatever superseded that one
+        for (int i = original.size() - 1; i >= 0; i--) {
+            final int superseder = supersededBy[i];
+            if (superseder > i && dropped[superseder] && supersededBy[superseder] >= 0) {
+                supersededBy[i] = supersededBy[superseder];
+            }
+        }
+
+        for (int i = 0; i < original.size(); i++) {
+            if (!dropped[i]) {
+                entries.add(original.get(i));
+            }
+        }
+
+        if (entries.size() < original.size()) {
+            LOG.debug("Folded {} change log entries into {}", original.size(), entries.size());
+        }
+    }
+
+    /**
+     * @return the entries to dispatch, in sequence order
+     */
+    public List<ChangeLogEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the sequence number of the last entry in the batch
+     */
+    public long getLastSequenceNumber() {
+        return original.get(original.size() - 1).getSequenceNumber();
+    }
+
+    /**
+     * Works out how far the batch can be acknowledged when processing stops at an entry: every entry before it must
+     * have been dispatched, or been superseded by an entry that was.
+     * @param stoppedAt the sequence number of the first entry that was not processed
+     * @return the last sequence number that is safe to report as processed
+     */
+    public long lastSafeSequenceNumber(long stoppedAt) {
+        long safe = original.get(0).getSequenceNumber() - 1;
+
+        for (int i = 0; i < original.size(); i++) {
+            final long sequenceNumber = original.get(i).getSequenceNumber();
+            final int superseder = supersededBy[i];
+
+            if (sequenceNumber >= stoppedAt || (superseder >= 0 && original.get(superseder).getSequenceNumber() >= stoppedAt)) {
+                break;
+            }
+            safe = sequenceNumber;
+        }
+
+        return safe;
+    }
+
+    private void fold(int index) {
+        final ChangeLogEntry entry = original.get(index);
+        final String type = typeOf(entry);
+
+        if (type.equals("membership__addMembership") || type.equals("membership__deleteMembership")) {
+            final boolean add = type.equals("membership__addMembership");
+            final String groupName = entry.retrieveValueForLabel(add ? ChangeLogLabels.MEMBERSHIP_ADD.groupName : ChangeLogLabels.MEMBERSHIP_DELETE.groupName);
+            final String key = entry.retrieveValueForLabel(add ? ChangeLogLabels.MEMBERSHIP_ADD.memberId : ChangeLogLabels.MEMBERSHIP_DELETE.memberId)
+                    + "__" + entry.retrieveValueForLabel(add ? ChangeLogLabels.MEMBERSHIP_ADD.fieldName : ChangeLogLabels.MEMBERSHIP_DELETE.fieldName);
+
+            forget(pendingPrivileges, groupName, memberOf(key));
+            final Integer earlier = pending(pendingMemberships, groupName).remove(key);
+
+            if (earlier != null && !typeOf(original.get(earlier)).equals(type)) {
+                //an add and a delete (in either order) of the same membership cancel out
+                drop(earlier, index);
+                drop(index, index);
+            } else {
+                pending(pendingMemberships, groupName).put(key, index);
+            }
+
+        } else if (type.equals("privilege__addPrivilege") || type.equals("privilege__deletePrivilege")) {
+            final boolean add = type.equals("privilege__addPrivilege");
+            final String groupName = entry.retrieveValueForLabel(add ? ChangeLogLabels.PRIVILEGE_ADD.ownerName : ChangeLogLabels.PRIVILEGE_DELETE.ownerName);
+            final String memberId = entry.retrieveValueForLabel(add ? ChangeLogLabels.PRIVILEGE_ADD.memberId : ChangeLogLabels.PRIVILEGE_DELETE.memberId);
+
+            forgetMember(pendingMemberships, groupName, memberId);
+            final Integer earlier = pending(pendingPrivileges, groupName).put(memberId, index);
+
+            if (earlier != null) {
+                //the last privilege change resolves the member's role from the group's current privileges
+                drop(earlier, index);
+            }
+
+        } else if (type.equals("group__updateGroup")) {
+            final String groupName = entry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.name);
+            final String property = entry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyChanged);
+
+            if (property != null && (property.equalsIgnoreCase("description") || property.equalsIgnoreCase("displayExtension"))) {
+                final Integer earlier = pending(pendingUpdates, groupName).put(property.toLowerCase(), index);
+
+                if (earlier != null) {
+                    drop(earlier, index);
+                }
+            } else {
+                barrier(groupName);
+                if (property != null && property.equalsIgnoreCase("name")) {
+                    barrier(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyNewValue));
+                }
+            }
+
+        } else if (type.equals("group__addGroup")) {
+            barrier(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_ADD.name));
+
+        } else if (type.equals("group__deleteGroup")) {
+            barrier(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_DELETE.name));
+
+        } else if (type.equals("privilege__updatePrivilege")) {
+            barrier(entry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_UPDATE.ownerName));
+
+        } else if (type.startsWith("attributeAssign__") || type.startsWith("stem__")) {
+            pendingMemberships.clear();
+            pendingPrivileges.clear();
+            pendingUpdates.clear();
+        }
+    }
+
+    private void drop(int index, int superseder) {
+        dropped[index] = true;
+        supersededBy[index] = superseder;
+    }
+
+    private void barrier(String groupName) {
+        pendingMemberships.remove(groupName);
+        pendingPrivileges.remove(groupName);
+        pendingUpdates.remove(groupName);
+    }
+
+    private static Map<String, Integer> pending(Map<String, Map<String, Integer>> pending, String groupName) {
+        Map<String, Integer> group = pending.get(groupName);
+        if (group == null) {
+            group = new HashMap<String, Integer>();
+            pending.put(groupName, group);
+        }
+        return group;
+    }
+
+    private static void forget(Map<String, Map<String, Integer>> pending, String groupName, String key) {
+        final Map<String, Integer> group = pending.get(groupName);
+        if (group != null) {
+            group.remove(key);
+        }
+    }
+
+    private static void forgetMember(Map<String, Map<String, Integer>> pending, String groupName, String memberId) {
+        final Map<String, Integer> group = pending.get(groupName);
+        if (group != null) {
+            final List<String> keys = new ArrayList<String>(group.keySet());
+            for (String key : keys) {
+                if (memberOf(key).equals(memberId)) {
+                    group.remove(key);
+                }
+            }
+        }
+    }
+
+    private static String memberOf(String membershipKey) {
+        return membershipKey.substring(0, membershipKey.indexOf("__"));
+    }
+
+    private static String typeOf(ChangeLogEntry entry) {
+        return entry.getChangeLogType().getChangeLogCategory() + "__" + entry.getChangeLogType().getActionName();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.grouper.GrouperSession;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogLabels;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ChangeLogDispatcher hands a batch of change log entries out to a fixed number of lanes. Entries are partitioned by
+ * the group they target, so every entry for a group runs on the same lane in sequence order while different groups
+ * run in parallel. Each lane is a single thread with its own root GrouperSession.
+ *
+ * Entries that can affect more than one group (attribute assignments, stem changes and group renames) are barriers:
+ * they wait for every lane to catch up and then run on the calling thread.
+ *
+ * Once an entry fails (or the processor asks to stop) no later entry is started, and dispatch() reports how many
+ * entries at the front of the batch completed, so the caller can acknowledge exactly that much.
+ */
+public class ChangeLogDispatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeLogDispatcher.class);
+
+    /** Does the work for each entry. */
+    public interface EntryProcessor {
+        /**
+         * @param changeLogEntry the entry to process
+         * @return false if the entry failed and it (and everything after it) should be retried later
+         */
+        boolean process(ChangeLogEntry changeLogEntry);
+
+        /**
+         * @return true to stop handing out entries, checked before each one
+         */
+        boolean isStopping();
+    }
+
+    private final String consumerName;
+    private final int threadCount;
+
+    /**
+     * @param consumerName the consumer this dispatcher works for, used to name its threads
+     * @param threadCount how many groups to process concurrently, 1 or less to process the batch on the calling thread
+     */
+    public ChangeLogDispatcher(String consumerName, int threadCount) {
+        this.consumerName = consumerName;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Processes the entries.
+     * @param entries the entries, in sequence order
+     * @param processor does the work
+     * @return the number of entries at the front of the list that completed; entries.size() if they all did
+     */
+    public int dispatch(List<ChangeLogEntry> entries, final EntryProcessor processor) {
+        if (threadCount <= 1) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (processor.isStopping() || !processor.process(entries.get(i))) {
+                    return i;
+                }
+            }
+            return entries.size();
+        }
+
+        final AtomicIntegerArray completed = new AtomicIntegerArray(entries.size());
+        final AtomicInteger stopAt = new AtomicInteger(entries.size());
+        final ExecutorService[] lanes = new ExecutorService[threadCount];
+        final Future<?>[] lastSubmitted = new Future<?>[threadCount];
+
+        try {
+            for (int i = 0; i < stopAt.get(); i++) {
+                if (processor.isStopping()) {
+                    stop(stopAt, i);
+                    break;
+                }
+
+                final ChangeLogEntry entry = entries.get(i);
+                final String groupName = partitionKey(entry);
+
+                if (groupName == null) {
+                    awaitLanes(lastSubmitted, stopAt, i);
+                    if (i < stopAt.get()) {
+                        run(entry, i, processor, completed, stopAt);
+                    }
+
+                } else {
+                    final int lane = (groupName.hashCode() & Integer.MAX_VALUE) % threadCount;
+                    if (lanes[lane] == null) {
+                        lanes[lane] = newLane(lane);
+                    }
+
+                    final int index = i;
+                    lastSubmitted[lane] = lanes[lane].submit(new Runnable() {
+                        public void run() {
+                            //nothing after a failed entry starts, so a group's later entries never overtake it
+                            if (index < stopAt.get()) {
+                                ChangeLogDispatcher.this.run(entry, index, processor, completed, stopAt);
+                            }
+                        }
+                    });
+                }
+            }
+
+            awaitLanes(lastSubmitted, stopAt, entries.size());
+
+        } finally {
+            for (ExecutorService lane : lanes) {
+                if (lane != null) {
+                    lane.shutdownNow();
+                }
+            }
+        }
+
+        int done = 0;
+        while (done < entries.size() && completed.get(done) == 1) {
+            done++;
+        }
+        return done;
+    }
+
+    private void run(ChangeLogEntry entry, int index, EntryProcessor processor, AtomicIntegerArray completed, AtomicInteger stopAt) {
+        boolean succeeded;
+        try {
+            succeeded = processor.process(entry);
+        } catch (RuntimeException e) {
+            LOG.error("Google Apps Consumer '{}' - Unexpected error processing sequence number {}: {}",
+                    new Object[]{consumerName, entry.getSequenceNumber(), e});
+            succeeded = false;
+        }
+
+        if (succeeded) {
+            completed.set(index, 1);
+        } else {
+            stop(stopAt, index);
+        }
+    }
+
+    /** lowers the point past which no entry is started. */
+    private static void stop(AtomicInteger stopAt, int index) {
+        int current;
+        while (index < (current = stopAt.get()) && !stopAt.compareAndSet(current, index)) {
+            //retry
+        }
+    }
+
+    /**
+     * waits for everything handed to the lanes so far; each lane runs in order, so its last task finishing means
+     * the rest have too.
+     */
+    private void awaitLanes(Future<?>[] lastSubmitted, AtomicInteger stopAt, int next) {
+        for (int lane = 0; lane < lastSubmitted.length; lane++) {
+            if (lastSubmitted[lane] == null) {
+                continue;
+            }
+
+            try {
+                lastSubmitted[lane].get();
+            } catch (ExecutionException e) {
+                LOG.error("Google Apps Consumer '{}' - A change log lane failed: {}", consumerName, e.getCause());
+                stop(stopAt, next);
+            } catch (InterruptedException e) {
+                LOG.error("Google Apps Consumer '{}' - Interrupted while waiting on the change log lanes", consumerName);
+                stop(stopAt, 0);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            lastSubmitted[lane] = null;
+        }
+    }
+
+    private ExecutorService newLane(final int lane) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        GrouperSession laneSession = null;
+                        try {
+                            laneSession = startLaneSession();
+                        } catch (RuntimeException e) {
+                            //still run the lane, without a session, so dispatch() is not left waiting on its entries
+                            LOG.error("Google Apps Consumer '{}' - Unable to start a session for change log lane {}: {}",
+                                    new Object[]{consumerName, lane, e});
+                        }
+
+                        try {
+                            runnable.run();
+                        } finally {
+                            GrouperSession.stopQuietly(laneSession);
+                        }
+                    }
+                }, "google-change-log-" + consumerName + "-" + lane);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return the root session a lane runs under
+     */
+    GrouperSession startLaneSession() {
+        return GrouperSession.startRootSession();
+    }
+
+    /**
+     * @return the name of the group the entry targets, or null if it can affect more than one group
+     */
+    static String partitionKey(ChangeLogEntry entry) {
+        final String type = entry.getChangeLogType().getChangeLogCategory() + "__" + entry.getChangeLogType().getActionName();
+
+        if (type.equals("membership__addMembership")) {
+            return entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName);
+        } else if (type.equals("membership__deleteMembership")) {
+            return entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupName);
+        } else if (type.equals("privilege__addPrivilege")) {
+            return entry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_ADD.ownerName);
+        } else if (type.equals("privilege__deletePrivilege")) {
+            return entry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_DELETE.ownerName);
+        } else if (type.equals("privilege__updatePrivilege")) {
+            return entry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_UPDATE.ownerName);
+        } else if (type.equals("group__addGroup")) {
+            return entry.retrieveValueForLabel(ChangeLogLabels.GROUP_ADD.name);
+        } else if (type.equals("group__deleteGroup")) {
+            return entry.retrieveValueForLabel(ChangeLogLabels.GROUP_DELETE.name);
+        } else if (type.equals("group__updateGroup")) {
+            //a rename moves the group to a new address
+            final String property = entry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyChanged);
+            return "name".equalsIgnoreCase(property) ? null : entry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.name);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.grouper.GrouperSession;
+import edu.internet2.middleware.grouper.Stem;
+import edu.internet2.middleware.grouper.StemFinder;
+import edu.internet2.middleware.grouper.attr.AttributeDef;
+import edu.internet2.middleware.grouper.attr.AttributeDefName;
+import edu.internet2.middleware.grouper.attr.AttributeDefType;
+import edu.internet2.middleware.grouper.attr.AttributeDefValueType;
+import edu.internet2.middleware.grouper.attr.finder.AttributeDefFinder;
+import edu.internet2.middleware.grouper.attr.finder.AttributeDefNameFinder;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * FullSyncLock is an advisory lock, kept in the Grouper registry, that lets full syncs running on different loader
+ * nodes see each other. Each running sync adds a value ("shard|host|started") to a multi-valued attribute on the
+ * googleProvisioner stem and removes it when it is done. While the sync runs, a heartbeat thread replaces the value
+ * with a fresh timestamp a few times per lock timeout, so values older than the timeout are left over from a sync that
+ * died and are ignored.
+ *
+ * A sync of the whole keyspace ("all") conflicts with every other sync; shards conflict with the same shard or with a
+ * different way of splitting the keyspace. The check and the add are not atomic, so two nodes started at the same
+ * moment could both get in; it guards against mistakes, not races.
+ */
+public class FullSyncLock {
+    private static final Logger LOG = LoggerFactory.getLogger(FullSyncLock.class);
+
+    public static final String FULL_SYNC_LOCK = "fullSyncLock";
+    public static final String FULL_SYNC_LOCK_NAME = GoogleGrouperConnector.GOOGLE_CONFIG_STEM + ":" + FULL_SYNC_LOCK;
+
+    /** the shard label for a sync of every group */
+    public static final String ALL = "all";
+
+    private final String consumerName;
+    private final long timeout;
+    private String heldShard;
+    private String heldValue;
+    private ScheduledExecutorService heartbeat;
+
+    /**
+     * @param consumerName the consumer whose full syncs are locked
+     * @param timeoutMinutes how long a lock is honoured before it is assumed to be left over from a sync that died
+     */
+    public FullSyncLock(String consumerName, int timeoutMinutes) {
+        this.consumerName = consumerName;
+        this.timeout = timeoutMinutes * 60000L;
+    }
+
+    /**
+     * Takes the lock for a shard, unless a conflicting sync holds it. Needs a root GrouperSession.
+     * @param shard "i/N" or ALL
+     * @return true if the lock was taken
+     */
+    public synchronized boolean acquire(String shard) {
+        final AttributeDefName lockAttribute = findOrCreateAttribute();
+        final Stem googleStem = StemFinder.findByName(GrouperSession.staticGrouperSession(), GoogleGrouperConnector.GOOGLE_CONFIG_STEM, true);
+
+        for (String value : liveValues(googleStem, lockAttribute)) {
+            final String heldShard = value.split("\\|")[0];
+            if (conflicts(shard, heldShard)) {
+                LOG.error("Google Apps Consumer '{}' - A full sync of shard {} is already running ({}); not starting shard {}.",
+                        new Object[]{consumerName, heldShard, value, shard});
+                return false;
+            }
+        }
+
+        heldShard = shard;
+        heldValue = shard + "|" + hostName() + "|" + System.currentTimeMillis();
+        googleStem.getAttributeValueDelegate().addValue(lockAttribute.getName(), heldValue);
+        LOG.debug("Google Apps Consumer '{}' - Took the full sync lock: {}", consumerName, heldValue);
+
+        startHeartbeat();
+        return true;
+    }
+
+    /**
+     * gives the lock back, if it was taken.
+     */
+    public synchronized void release() {
+        if (heartbeat != null) {
+            heartbeat.shutdown();
+            heartbeat = null;
+        }
+
+        if (heldValue == null) {
+            return;
+        }
+
+        final AttributeDefName lockAttribute = AttributeDefNameFinder.findByName(FULL_SYNC_LOCK_NAME + consumerName, false);
+        final Stem googleStem = StemFinder.findByName(GrouperSession.staticGrouperSession(), GoogleGrouperConnector.GOOGLE_CONFIG_STEM, false);
+        if (lockAttribute != null && googleStem != null) {
+            googleStem.getAttributeValueDelegate().deleteValue(lockAttribute.getName(), heldValue);
+        }
+
+        LOG.debug("Google Apps Consumer '{}' - Released the full sync lock: {}", consumerName, heldValue);
+        heldValue = null;
+    }
+
+    /**
+     * @return true if any node is running a full sync for this consumer. Needs a GrouperSession.
+     */
+    public boolean isHeld() {
+        final AttributeDefName lockAttribute = AttributeDefNameFinder.findByName(FULL_SYNC_LOCK_NAME + consumerName, false);
+        if (lockAttribute == null) {
+            return false;
+        }
+
+        final Stem googleStem = StemFinder.findByName(GrouperSession.staticGrouperSession(), GoogleGrouperConnector.GOOGLE_CONFIG_STEM, false);
+        if (googleStem == null) {
+            return false;
+        }
+
+        final List<String> live = liveValues(googleStem, lockAttribute);
+        for (String value : live) {
+            LOG.warn("Google Apps Consumer '{}' - Waiting for the full sync holding the lock ({}); it is honoured for {} minutes after its last heartbeat.",
+                    new Object[]{consumerName, value, timeout / 60000L});
+        }
+        return !live.isEmpty();
+    }
+
+    /**
+     * refreshes the held value's timestamp a few times per timeout, on a thread with its own root session.
+     */
+    private void startHeartbeat() {
+        final long period = Math.max(timeout / 3, 1000L);
+
+        heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "google-full-sync-lock-" + consumerName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                GrouperSession session = null;
+                try {
+                    session = GrouperSession.startRootSession();
+                    refresh();
+                } catch (RuntimeException e) {
+                    LOG.warn("Google Apps Consumer '{}' - Unable to refresh the full sync lock: {}", consumerName, e);
+                } finally {
+                    GrouperSession.stopQuietly(session);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void refresh() {
+        if (heldValue == null) {
+            return;
+        }
+
+        final AttributeDefName lockAttribute = AttributeDefNameFinder.findByName(FULL_SYNC_LOCK_NAME + consumerName, true);
+        final Stem googleStem = StemFinder.findByName(GrouperSession.staticGrouperSession(), GoogleGrouperConnector.GOOGLE_CONFIG_STEM, true);
+
+        final String refreshed = heldShard + "|" + hostName() + "|" + System.currentTimeMillis();
+        googleStem.getAttributeValueDelegate().addValue(lockAttribute.getName(), refreshed);
+        googleStem.getAttributeValueDelegate().deleteValue(lockAttribute.getName(), heldValue);
+        heldValue = refreshed;
+        LOG.trace("Google Apps Consumer '{}' - Refreshed the full sync lock: {}", consumerName, heldValue);
+    }
+
+    /**
+     * @return the lock values that have not timed out
+     */
+    private List<String> liveValues(Stem googleStem, AttributeDefName lockAttribute) {
+        final List<String> live = new ArrayList<String>();
+        final List<String> values = googleStem.getAttributeValueDelegate().retrieveValuesString(lockAttribute.getName());
+
+        if (values != null) {
+            for (String value : values) {
+                final String[] parts = value.split("\\|");
+                try {
+                    if (parts.length == 3 && System.currentTimeMillis() - Long.parseLong(parts[2]) < timeout) {
+                        live.add(value);
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    //treated as stale
+                }
+                LOG.warn("Google Apps Consumer '{}' - Ignoring a stale full sync lock: {}", consumerName, value);
+            }
+        }
+
+        return live;
+    }
+
+    static boolean conflicts(String shard, String heldShard) {
+        if (shard.equals(ALL) || heldShard.equals(ALL) || shard.equals(heldShard)) {
+            return true;
+        }
+
+        //shards of the same split cover different groups; different splits overlap
+        final String[] parts = shard.split("/");
+        final String[] heldParts = heldShard.split("/");
+        return parts.length != 2 || heldParts.length != 2 || !parts[1].equals(heldParts[1]);
+    }
+
+    private AttributeDefName findOrCreateAttribute() {
+        AttributeDefName attrDefName = AttributeDefNameFinder.findByName(FULL_SYNC_LOCK_NAME + consumerName, false);
+
+        if (attrDefName == null) {
+            final Stem googleStem = StemFinder.findByName(GrouperSession.staticGrouperSession(), GoogleGrouperConnector.GOOGLE_CONFIG_STEM, true);
+
+            AttributeDef lockAttrDef = AttributeDefFinder.findByName(FULL_SYNC_LOCK_NAME + "Def", false);
+            if (lockAttrDef == null) {
+                LOG.info("Google Apps Consumer '{}' - {} AttributeDef not found, creating it now", consumerName, FULL_SYNC_LOCK + "Def");
+                lockAttrDef = googleStem.addChildAttributeDef(FULL_SYNC_LOCK + "Def", AttributeDefType.attr);
+                lockAttrDef.setAssignToStem(true);
+                lockAttrDef.setValueType(AttributeDefValueType.string);
+                lockAttrDef.setMultiValued(true);
+                lockAttrDef.store();
+            }
+
+            LOG.info("Google Apps Consumer '{}' - {} attribute not found, creating it now", consumerName, FULL_SYNC_LOCK_NAME + consumerName);
+            attrDefName = googleStem.addChildAttributeDefName(lockAttrDef, FULL_SYNC_LOCK + consumerName, FULL_SYNC_LOCK + consumerName);
+        }
+
+        return attrDefName;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown";
+        }
+    }
+}
@@ -17,10 +17,15 @@
 
 package edu.internet2.middleware.changelogconsumer.googleapps;
 
+import com.codahale.metrics.Timer;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.services.admin.directory.model.Group;
 import com.google.api.services.admin.directory.model.User;
 import edu.internet2.middleware.changelogconsumer.googleapps.cache.GoogleCacheManager;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.DirtyGroupLedger;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsMetrics;
 import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsSyncProperties;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.RecentlyManipulatedObjectsList;
 import edu.internet2.middleware.grouper.*;
 import edu.internet2.middleware.grouper.attr.AttributeDefName;
 import edu.internet2.middleware.grouper.attr.assign.AttributeAssignType;
@@ -30,6 +35,7 @@ import edu.internet2.middleware.grouper.privs.Privilege;
 import edu.internet2.middleware.subject.Subject;
 import edu.internet2.middleware.subject.SubjectType;
 import edu.internet2.middleware.subject.provider.SubjectTypeEnum;
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import org.apache.commons.lang.builder.ToStringBuilder;
@@ -156,10 +162,19 @@ public class GoogleAppsChangeLogConsumer extends ChangeLogConsumerBase {
         connector = new GoogleGrouperConnector();
     }
 
+    /**
+     * Sends every Google request through the given transport instead of to Google, e.g. a local stand-in for
+     * load testing.
+     * @param httpTransport the transport to use, null for Google
+     */
+    public void setHttpTransport(HttpTransport httpTransport) {
+        connector.setHttpTransport(httpTransport);
+    }
+
     /** {@inheritDoc} */
     @Override
     public long processChangeLogEntries(final List<ChangeLogEntry> changeLogEntryList,
-                                        ChangeLogProcessorMetadata changeLogProcessorMetadata) {
+                                        final ChangeLogProcessorMetadata changeLogProcessorMetadata) {
 
         LOG.debug("Google Apps Consumer - waking up");
 
@@ -174,10 +189,17 @@ public class GoogleAppsChangeLogConsumer extends ChangeLogConsumerBase {
 
         GoogleAppsSyncProperties properties = new GoogleAppsSyncProperties(consumerName);
 
+        // remember the groups this batch touches, so an incremental full sync knows what to re-verify
+        final DirtyGroupLedger dirtyGroupLedger =
+                properties.getStateDirectory().isEmpty() ? null : new DirtyGroupLedger(new File(properties.getStateDirectory()), consumerName);
+
         try {
             connector.initialize(consumerName, properties);
+            connector.startMembershipIndexJournal();
 
-            if (properties.getprefillGoogleCachesForConsumer()) {
+            if (properties.shouldRefreshGoogleCachesInBackground()) {
+                connector.startCacheRefresher();
+            } else if (properties.getprefillGoogleCachesForConsumer()) {
                 connector.populateGoogleCache();
             }
 
@@ -190,82 +212,122 @@ public class GoogleAppsChangeLogConsumer extends ChangeLogConsumerBase {
         try {
 
             grouperSession = GrouperSession.startRootSession();
+
+            // if a full sync is running on any loader node, return the previous sequence number to process this batch on the next run
+            if (new FullSyncLock(consumerName, properties.getFullSyncLockTimeout()).isHeld()) {
+                sequenceNumber = changeLogEntryList.get(0).getSequenceNumber() - 1;
+                LOG.info("Google Apps Consumer '{}' - Full sync is running, returning sequence number '{}'", consumerName,
+                        sequenceNumber);
+                return sequenceNumber;
+            }
+
             syncAttribute = connector.getGoogleSyncAttribute();
             connector.cacheSyncedGroupsAndStems();
 
-            // time context processing
+            // time batch processing
             final StopWatch stopWatch = new StopWatch();
-
-            // the last change log sequence number processed
-            String lastContextId = null;
+            stopWatch.start();
 
             LOG.debug("Google Apps Consumer '{}' - Processing change log entry list size '{}'", consumerName, changeLogEntryList.size());
 
-            // process each change log entry
-            for (ChangeLogEntry changeLogEntry : changeLogEntryList) {
+            // fold the batch into its net changes; entries that were folded away are acknowledged with the batch
+            final ChangeLogCoalescer coalescer = new ChangeLogCoalescer(changeLogEntryList, properties.shouldCompactChangeLog());
+            final List<ChangeLogEntry> entries = coalescer.getEntries();
 
-                // return the current change log sequence number
-                sequenceNumber = changeLogEntry.getSequenceNumber();
+            /* Whether or not to retry a change log entry if an error occurs. */
+            final boolean retryOnError = properties.isRetryOnError();
 
-                // if full sync is running, return the previous sequence number to process this entry on the next run
-                boolean isFullSyncRunning = GoogleAppsFullSync.isFullSyncRunning(consumerName);
+            // process each change log entry, in parallel across groups if configured
+            final ChangeLogDispatcher dispatcher = new ChangeLogDispatcher(consumerName, properties.getChangeLogThreadCount());
+            final int processed = dispatcher.dispatch(entries, new ChangeLogDispatcher.EntryProcessor() {
+                public boolean process(ChangeLogEntry changeLogEntry) {
+                    markDirty(dirtyGroupLedger, changeLogEntry);
 
-                if (isFullSyncRunning) {
-                    LOG.info("Google Apps Consumer '{}' - Full sync is running, returning sequence number '{}'", consumerName,
-                            sequenceNumber - 1);
-                    return sequenceNumber - 1;
+                    try {
+                        // process the change log entry; delayed changes it makes remember its sequence number
+                        connector.setSequenceNumber(changeLogEntry.getSequenceNumber());
+                        processChangeLogEntry(changeLogEntry);
+                        return true;
+
+                    } catch (Exception e) {
+                        final long failedSequenceNumber = changeLogEntry.getSequenceNumber();
+                        String message =
+                                "Google Apps Consumer '" + consumerName + "' - An error occurred processing sequence number " + failedSequenceNumber;
+                        LOG.error(message, e);
+                        synchronized (changeLogProcessorMetadata) {
+                            changeLogProcessorMetadata.registerProblem(e, message, failedSequenceNumber);
+                            changeLogProcessorMetadata.setHadProblem(true);
+                            changeLogProcessorMetadata.setRecordException(e);
+                            changeLogProcessorMetadata.setRecordExceptionSequence(failedSequenceNumber);
+                        }
+
+                        // if an error occurs and retry on error is true, stop so this entry is processed on the next run
+                        return !retryOnError;
+
+                    } finally {
+                        connector.setSequenceNumber(null);
+                    }
                 }
 
-                // if first run, start the stop watch and store the last sequence number
-                if (lastContextId == null) {
-                    stopWatch.start();
-                    lastContextId = changeLogEntry.getContextId();
+                public boolean isStopping() {
+                    // if full sync is running, stop so the remaining entries are processed on the next run
+                    return GoogleAppsFullSync.isFullSyncRunning(consumerName);
                 }
+            });
 
-                // whether or not an exception was thrown during processing of the change log entry
-                boolean errorOccurred = false;
-
-                try {
-                    // process the change log entry
-                    processChangeLogEntry(changeLogEntry);
-
-                } catch (Exception e) {
-                    errorOccurred = true;
-                    String message =
-                            "Google Apps Consumer '" + consumerName + "' - An error occurred processing sequence number " + sequenceNumber;
-                    LOG.error(message, e);
-                    changeLogProcessorMetadata.registerProblem(e, message, sequenceNumber);
-                    changeLogProcessorMetadata.setHadProblem(true);
-                    changeLogProcessorMetadata.setRecordException(e);
-                    changeLogProcessorMetadata.setRecordExceptionSequence(sequenceNumber);
-                }
+            if (processed < entries.size()) {
+                // return the last sequence number whose entry, and every entry before it, has been processed
+                sequenceNumber = coalescer.lastSafeSequenceNumber(entries.get(processed).getSequenceNumber());
 
-                // if the change log context id has changed, log and restart stop watch
-                if (!lastContextId.equals(changeLogEntry.getContextId())) {
-                    stopWatch.stop();
-                    LOG.debug("Google Apps Consumer '{}' - Processed change log context '{}' Elapsed time {}", new Object[] {consumerName,
-                            lastContextId, stopWatch,});
-                    stopWatch.reset();
-                    stopWatch.start();
+                if (GoogleAppsFullSync.isFullSyncRunning(consumerName)) {
+                    LOG.info("Google Apps Consumer '{}' - Full sync is running, returning sequence number '{}'", consumerName,
+                            sequenceNumber);
                 }
+            } else {
+                // the whole batch is done, including any entries that were folded away at its end
+                sequenceNumber = coalescer.getLastSequenceNumber();
+            }
 
-                lastContextId = changeLogEntry.getContextId();
-
-                // if an error occurs and retry on error is true, return the current sequence number minus 1
-                /* Whether or not to retry a change log entry if an error occurs. */
-                boolean retryOnError = properties.isRetryOnError();
-                if (errorOccurred && retryOnError) {
-                    sequenceNumber--;
-                    break;
+            // wait for the changes that were held back because their objects had been manipulated recently
+            final RecentlyManipulatedObjectsList.Failures delayedFailures = connector.drainDelayedChanges();
+            if (delayedFailures.getCount() > 0) {
+                LOG.error("Google Apps Consumer '{}' - {} delayed change(s) failed; see the earlier errors.", consumerName,
+                        delayedFailures.getCount());
+                changeLogProcessorMetadata.setHadProblem(true);
+
+                // if retry on error is true, stop before the first entry whose delayed change failed so it is processed on the next run
+                final Long failedSequenceNumber = delayedFailures.getFirstSequenceNumber();
+                if (retryOnError && failedSequenceNumber != null && failedSequenceNumber <= sequenceNumber) {
+                    sequenceNumber = coalescer.lastSafeSequenceNumber(failedSequenceNumber);
+                    LOG.info("Google Apps Consumer '{}' - Returning sequence number '{}' to retry the failed delayed changes",
+                            consumerName, sequenceNumber);
                 }
             }
 
             // stop the timer and log
             stopWatch.stop();
-            LOG.debug("Google Apps Consumer '{}' - Processed change log context '{}' Elapsed time {}", new Object[] {consumerName,
-                    lastContextId, stopWatch,});
+            LOG.debug("Google Apps Consumer '{}' - Processed {} change log entries Elapsed time {}", new Object[] {consumerName,
+                    processed, stopWatch,});
 
         } finally {
+            // if the batch stopped early, still wait for its delayed changes before the next batch starts
+            final RecentlyManipulatedObjectsList.Failures delayedFailures = connector.drainDelayedChanges();
+            if (delayedFailures.getCount() > 0) {
+                LOG.error("Google Apps Consumer '{}' - {} delayed change(s) failed; see the earlier errors.", consumerName,
+                        delayedFailures.getCount());
+                changeLogProcessorMetadata.setHadProblem(true);
+            }
+
+            connector.flushMembershipIndexJournal();
+
+            if (dirtyGroupLedger != null) {
+                try {
+                    dirtyGroupLedger.flush();
+                } catch (IOException e) {
+                    LOG.warn("Google Apps Consumer '{}' - Unable to update the dirty group ledger: {}", consumerName, e.getMessage());
+                }
+            }
+
             GrouperSession.stopQuietly(grouperSession);
         }
 
@@ -281,6 +343,20 @@ public class GoogleAppsChangeLogConsumer extends ChangeLogConsumerBase {
         return sequenceNumber;
     }
 
+    /**
+     * Records the group a change log entry targets in the dirty group ledger.
+     *
+     * @param dirtyGroupLedger the ledger, or null if there is none
+     * @param changeLogEntry the change log entry
+     */
+    private void markDirty(DirtyGroupLedger dirtyGroupLedger, ChangeLogEntry changeLogEntry) {
+        final String groupName = ChangeLogDispatcher.partitionKey(changeLogEntry);
+
+        if (dirtyGroupLedger != null && groupName != null) {
+            dirtyGroupLedger.markDirty(connector.getAddressFormatter().qualifyGroupAddress(groupName));
+        }
+    }
+
     /**
      * Call the method of the {@link EventType} enum which matches the {@link ChangeLogEntry} category and action (the
      * change log type).
@@ -304,8 +380,13 @@ public class GoogleAppsChangeLogConsumer extends ChangeLogConsumerBase {
                 LOG.info("Google Apps Consumer '{}' - Change log entry '{}'", consumerName, toStringDeep(changeLogEntry));
                 StopWatch stopWatch = new StopWatch();
                 stopWatch.start();
+                final Timer.Context timer = GoogleAppsMetrics.changeLogTimer(eventType.name()).time();
 
-                eventType.process(this, changeLogEntry);
+                try {
+                    eventType.process(this, changeLogEntry);
+                } finally {
+                    timer.stop();
+                }
 
                 stopWatch.stop();
                 LOG.info("Google Apps Consumer '{}' - Change log entry '{}' Finished processing. Elapsed time {}",
@@ -498,7 +579,7 @@ public class GoogleAppsChangeLogConsumer extends ChangeLogConsumerBase {
 
                     connector.getSyncedGroupsAndStems().remove(groupName);
                     GoogleCacheManager.googleGroups().remove(oldAddress);
-                    GoogleCacheManager.googleGroups().put(connector.updateGooGroup(oldAddress, group));
+                    connector.updateGooGroup(oldAddress, group);
                 }
 
                 return;
@@ -517,7 +598,7 @@ public class GoogleAppsChangeLogConsumer extends ChangeLogConsumerBase {
                         new Object[] {consumerName, toString(changeLogEntry), propertyChanged});
             }
 
-            GoogleCacheManager.googleGroups().put(connector.updateGooGroup(connector.getAddressFormatter().qualifyGroupAddress(groupName), group));
+            connector.updateGooGroup(connector.getAddressFormatter().qualifyGroupAddress(groupName), group);
 
         } catch (IOException e) {
             LOG.debug("Google Apps Consumer '{}' - Change log entry '{}' Error processing group update.", consumerName, toString(changeLogEntry));
@@ -634,6 +715,8 @@ public class GoogleAppsChangeLogConsumer extends ChangeLogConsumerBase {
             return;
         }
 
+        connector.invalidateRoles(groupName);
+
         if (member.getSubjectType() == SubjectTypeEnum.PERSON) {
             try {
                 connector.createGooMember(grouperGroup, member.getSubject(), connector.determineRole(member, grouperGroup));
@@ -670,6 +753,8 @@ public class GoogleAppsChangeLogConsumer extends ChangeLogConsumerBase {
             return;
         }
 
+        connector.invalidateRoles(groupName);
+
         if (member.getSubjectType() == SubjectTypeEnum.PERSON) {
             try {
                 connector.updateGooMember(grouperGroup, member.getSubject(), connector.determineRole(member, grouperGroup));
@@ -706,6 +791,8 @@ public class GoogleAppsChangeLogConsumer extends ChangeLogConsumerBase {
             return;
         }
 
+        connector.invalidateRoles(groupName);
+
         if (member.getSubjectType() == SubjectTypeEnum.PERSON) {
             try {
                 if (grouperGroup.hasMember(member.getSubject())) {
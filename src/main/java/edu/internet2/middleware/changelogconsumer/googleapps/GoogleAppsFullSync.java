@@ -17,25 +17,42 @@
 
 package edu.internet2.middleware.changelogconsumer.googleapps;
 
+import com.google.api.client.http.HttpTransport;
 import com.google.api.services.admin.directory.model.Group;
 import com.google.api.services.admin.directory.model.Member;
 import com.google.api.services.admin.directory.model.User;
 import edu.internet2.middleware.changelogconsumer.googleapps.cache.GoogleCacheManager;
 import edu.internet2.middleware.changelogconsumer.googleapps.utils.ComparableGroupItem;
 import edu.internet2.middleware.changelogconsumer.googleapps.utils.ComparableMemberItem;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.DirtyGroupLedger;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.FullSyncCheckpoint;
 import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsSyncProperties;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.RecentlyManipulatedObjectsList;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.SetDiff;
 import edu.internet2.middleware.grouper.GrouperSession;
 import edu.internet2.middleware.subject.Subject;
 import edu.internet2.middleware.subject.provider.SubjectTypeEnum;
+import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang.time.StopWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +74,29 @@ public class GoogleAppsFullSync {
     private String consumerName;
     private GoogleAppsSyncProperties properties;
 
+    /** Whether to verify only the groups in the dirty group ledger plus a rotating sample of the rest. */
+    private boolean incremental;
+    private DirtyGroupLedger dirtyGroupLedger;
+    private String nextSampleCursor;
+
+    /** Whether to skip the groups a previous, unfinished run already reconciled. */
+    private boolean resume;
+    private FullSyncCheckpoint checkpoint;
+    private FullSyncLock fullSyncLock;
+
+    /** Which part of the synced-group keyspace this sync reconciles: shard shardIndex (1 based) of shardCount. */
+    private int shardIndex = 1;
+    private int shardCount = 1;
+
+    /** Where Google requests go instead of Google, null for Google itself. */
+    private HttpTransport httpTransport;
+
+    /** Groups that could not be verified, which an incremental sync puts back in the ledger. */
+    private final Set<String> failedGroups = Collections.synchronizedSet(new HashSet<String>());
+
+    /** Matched groups that are reconciled once their delayed changes have run, so they aren't checkpointed yet. */
+    private final Set<String> delayedGroups = Collections.synchronizedSet(new HashSet<String>());
+
     public GoogleAppsFullSync(String consumerName) {
         this.consumerName = consumerName;
     }
@@ -64,15 +104,35 @@ public class GoogleAppsFullSync {
     public static void main(String[] args) {
         if (args.length == 0 ) {
             System.console().printf("Google Change Log Consumer Name must be provided\n");
-            System.console().printf("*nix: googleAppsFullSync.sh consumerName [--dry-run]\n");
-            System.console().printf("Windows: googleAppsFullSync.bat consumerName [--dry-run]\n");
+            System.console().printf("*nix: googleAppsFullSync.sh consumerName [--dry-run] [--incremental] [--resume] [--shard i/N]\n");
+            System.console().printf("Windows: googleAppsFullSync.bat consumerName [--dry-run] [--incremental] [--resume] [--shard i/N]\n");
 
             System.exit(-1);
         }
 
         try {
             GoogleAppsFullSync googleAppsFullSync = new GoogleAppsFullSync(args[0]);
-            googleAppsFullSync.process(args.length > 1 && args[1].equalsIgnoreCase("--dry-run"));
+            boolean dryRun = false;
+
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("--dry-run")) {
+                    dryRun = true;
+                } else if (args[i].equalsIgnoreCase("--incremental")) {
+                    googleAppsFullSync.setIncremental(true);
+                } else if (args[i].equalsIgnoreCase("--resume")) {
+                    googleAppsFullSync.setResume(true);
+                } else if (args[i].equalsIgnoreCase("--shard") && i + 1 < args.length) {
+                    final String[] shard = args[++i].split("/");
+                    if (shard.length != 2) {
+                        throw new IllegalArgumentException("--shard expects i/N, for example 1/4");
+                    }
+                    googleAppsFullSync.setShard(Integer.parseInt(shard[0]), Integer.parseInt(shard[1]));
+                } else {
+                    System.console().printf("Ignoring unknown option %s\n", args[i]);
+                }
+            }
+
+            googleAppsFullSync.process(dryRun);
 
         } catch (Exception e) {
             System.console().printf(e.toString() + ": \n");
@@ -88,6 +148,54 @@ public class GoogleAppsFullSync {
         }
     }
 
+    /**
+     * @param incremental true to verify only the groups the change log consumer touched since the last incremental
+     *                    sync, plus a rotating sample of the others (needs a stateDirectory)
+     * @return this
+     */
+    public GoogleAppsFullSync setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
+
+    /**
+     * @param resume true to skip the groups that the last run (if it didn't finish) already reconciled (needs a
+     *               stateDirectory)
+     * @return this
+     */
+    public GoogleAppsFullSync setResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    /**
+     * Sends every Google request through the given transport instead of to Google, e.g. a local stand-in for
+     * load testing.
+     * @param httpTransport the transport to use, null for Google
+     * @return this
+     */
+    public GoogleAppsFullSync setHttpTransport(HttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+        return this;
+    }
+
+    /**
+     * Limits this sync to one shard of the synced groups, so that several loader nodes can split a full sync. Groups
+     * are assigned to shards by a stable hash of their Google address.
+     * @param shardIndex which shard to reconcile, from 1 to shardCount
+     * @param shardCount how many shards the groups are split into
+     * @return this
+     */
+    public GoogleAppsFullSync setShard(int shardIndex, int shardCount) {
+        if (shardCount < 1 || shardIndex < 1 || shardIndex > shardCount) {
+            throw new IllegalArgumentException("Invalid shard " + shardIndex + "/" + shardCount);
+        }
+
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        return this;
+    }
+
     /**
      * Runs a fullSync.
      * @param dryRun indicates that this is dryRun
@@ -99,22 +207,33 @@ public class GoogleAppsFullSync {
         }
 
         connector = new GoogleGrouperConnector();
+        connector.setHttpTransport(httpTransport);
 
         //Start with a clean cache
-        GoogleCacheManager.googleGroups().clear();
+        GoogleCacheManager.googleUsers().clear();
         GoogleCacheManager.googleGroups().clear();
 
         properties = new GoogleAppsSyncProperties(consumerName);
 
         Pattern googleGroupFilter = Pattern.compile(properties.getGoogleGroupFilter());
 
+        failedGroups.clear();
+        delayedGroups.clear();
+        dirtyGroupLedger = null;
+        if (incremental) {
+            if (properties.getStateDirectory().isEmpty()) {
+                LOG.warn("Google Apps Consumer '{}' Full Sync - An incremental sync needs a stateDirectory; verifying every group.", consumerName);
+            } else {
+                dirtyGroupLedger = new DirtyGroupLedger(new File(properties.getStateDirectory()), consumerName);
+            }
+        }
+
+        checkpoint = null;
+        fullSyncLock = null;
+
         try {
             connector.initialize(consumerName, properties);
 
-            if (properties.getprefillGoogleCachesForFullSync()) {
-                connector.populateGoogleCache();
-            }
-
         } catch (GeneralSecurityException e) {
             LOG.error("Google Apps Consume '{}' Full Sync - This consumer failed to initialize: {}", consumerName, e.getMessage());
         } catch (IOException e) {
@@ -126,6 +245,38 @@ public class GoogleAppsFullSync {
         try {
             grouperSession = GrouperSession.startRootSession();
             connector.getGoogleSyncAttribute();
+
+            // let full syncs on other loader nodes (and the change log consumer) know this one is running
+            if (!dryRun) {
+                fullSyncLock = new FullSyncLock(consumerName, properties.getFullSyncLockTimeout());
+                if (!fullSyncLock.acquire(shardLabel())) {
+                    fullSyncLock = null;
+                    return;
+                }
+            }
+
+            openCheckpoint(dryRun);
+
+            // only a run that sees every group can hand the change log consumer a complete membership index
+            final boolean saveMembershipIndex = !dryRun && shardCount == 1 && (checkpoint == null || checkpoint.getDoneCount() == 0);
+            if (saveMembershipIndex && !incremental) {
+                connector.getMembershipIndex().clear();
+            }
+
+            //The Google groups are listed from a full load rather than from the group cache, which may be size bounded
+            Set<String> googleGroupAddresses = GoogleCacheManager.googleGroups().getKeySet();
+            if (properties.getprefillGoogleCachesForFullSync()) {
+                try {
+                    googleGroupAddresses = new HashSet<String>();
+                    for (Group group : connector.loadGoogleCacheForFullSync()) {
+                        googleGroupAddresses.add(group.getEmail());
+                    }
+                } catch (IOException e) {
+                    LOG.error("Google Apps Consumer '{}' Full Sync - Unable to list the Google groups, stopping: {}", consumerName, e.getMessage());
+                    return;
+                }
+            }
+
             connector.cacheSyncedGroupsAndStems(true);
 
             // time context processing
@@ -136,142 +287,397 @@ public class GoogleAppsFullSync {
             ArrayList<ComparableGroupItem> grouperGroups = new ArrayList<ComparableGroupItem>();
             for (String groupKey : connector.getSyncedGroupsAndStems().keySet()) {
                 if (connector.getSyncedGroupsAndStems().get(groupKey).equalsIgnoreCase("yes")) {
+                    final String groupAddress = connector.getAddressFormatter().qualifyGroupAddress(groupKey);
+                    if (!inShard(groupAddress)) {
+                        continue;
+                    }
+
                     edu.internet2.middleware.grouper.Group group = connector.fetchGrouperGroup(groupKey);
 
                     if (group != null) {
-                        grouperGroups.add(new ComparableGroupItem(connector.getAddressFormatter().qualifyGroupAddress(group.getName()), group));
+                        grouperGroups.add(new ComparableGroupItem(groupAddress, group));
                     }
                 }
             }
 
-            //Populate a comparable list of Google groups
-            ArrayList<ComparableGroupItem> googleGroups = new ArrayList<ComparableGroupItem>();
-            for (String groupName : GoogleCacheManager.googleGroups().getKeySet()) {
+            //Populate a list of Google group addresses
+            ArrayList<String> googleGroups = new ArrayList<String>();
+            for (String groupName : googleGroupAddresses) {
+                if (!inShard(groupName)) {
+                    continue;
+                }
+
                 if (googleGroupFilter.matcher(groupName.replace("@" + properties.getGoogleDomain(), "")).find()) {
-                    googleGroups.add(new ComparableGroupItem(groupName));
+                    googleGroups.add(groupName);
                     LOG.debug("Google Apps Consumer '{}' Full Sync - {} group matches group filter: included", consumerName, groupName);
                 } else {
                     LOG.debug("Google Apps Consumer '{}' Full Sync - {} group does not match group filter: ignored", consumerName, groupName);
                 }
             }
 
-            //Get our sets
-            Collection<ComparableGroupItem> extraGroups = CollectionUtils.subtract(googleGroups, grouperGroups);
+            //Get our sets in a single pass
+            final SetDiff<ComparableGroupItem> groupDiff = new SetDiff<ComparableGroupItem>(grouperGroups, googleGroups, SetDiff.GROUP_ADDRESS);
+
+            final List<ComparableGroupItem> extraGroups = new ArrayList<ComparableGroupItem>(groupDiff.getExtra().size());
+            for (String groupName : groupDiff.getExtra()) {
+                extraGroups.add(new ComparableGroupItem(groupName));
+            }
             processExtraGroups(dryRun, extraGroups);
 
-            Collection<ComparableGroupItem> missingGroups = CollectionUtils.subtract(grouperGroups, googleGroups);
+            Collection<ComparableGroupItem> missingGroups = groupDiff.getMissing();
             processMissingGroups(dryRun, missingGroups);
 
-            Collection<ComparableGroupItem> matchedGroups = CollectionUtils.intersection(grouperGroups, googleGroups);
+            Collection<ComparableGroupItem> matchedGroups = groupDiff.getMatched();
+
+            Set<String> dirtyGroups = null;
+            if (dirtyGroupLedger != null) {
+                dirtyGroups = checkoutDirtyGroups();
+                if (dirtyGroups != null) {
+                    matchedGroups = selectIncrementalGroups(matchedGroups, dirtyGroups);
+                }
+            }
+
             processMatchedGroups(dryRun, matchedGroups);
 
+            final RecentlyManipulatedObjectsList.Failures delayed = connector.drainDelayedChanges();
+            final int delayedFailures = delayed.getCount();
+            if (delayedFailures > 0) {
+                LOG.error("Google Apps Consumer '{}' Full Sync - {} delayed change(s) failed for groups {}; see the earlier errors.",
+                        new Object[]{consumerName, delayedFailures, delayed.getGroups()});
+                failedGroups.addAll(delayed.getGroups());
+            }
+
+            // groups are only checkpointed once their delayed changes have run, so --resume retries the rest
+            if (checkpoint != null) {
+                synchronized (delayedGroups) {
+                    for (String groupAddress : delayedGroups) {
+                        if (!failedGroups.contains(groupAddress)) {
+                            checkpoint.markDone(groupAddress);
+                        }
+                    }
+                }
+            }
+
+            if (dirtyGroups != null) {
+                commitDirtyGroups(dirtyGroups, dryRun || delayedFailures > 0);
+            }
+
+            // a run with failures keeps its checkpoint, so --resume only has to retry the groups that failed
+            if (checkpoint != null && failedGroups.isEmpty() && delayedFailures == 0) {
+                checkpoint.finish();
+            }
+
+            // an incremental run only refreshes the groups it verified, so it needs a complete index to start from
+            if (saveMembershipIndex && failedGroups.isEmpty() && delayedFailures == 0
+                    && (!incremental || connector.getMembershipIndex().isPopulated())) {
+                connector.getMembershipIndex().markPopulated();
+                connector.saveMembershipIndex();
+            }
+
             // stop the timer and log
             stopWatch.stop();
             LOG.debug("Google Apps Consumer '{}' Full Sync - Processed, Elapsed time {}", new Object[] {consumerName, stopWatch});
 
         } finally {
+            final int delayedFailures = connector.drainDelayedChanges().getCount();
+            if (delayedFailures > 0) {
+                LOG.error("Google Apps Consumer '{}' Full Sync - {} delayed change(s) failed; see the earlier errors.", consumerName, delayedFailures);
+            }
+
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+
+            if (fullSyncLock != null) {
+                fullSyncLock.release();
+            }
+
             GrouperSession.stopQuietly(grouperSession);
+            connector.stopCacheRefresher();
 
             synchronized (fullSyncIsRunningLock) {
-                fullSyncIsRunning.put(consumerName, Boolean.toString(true));
+                fullSyncIsRunning.put(consumerName, Boolean.toString(false));
             }
         }
 
     }
 
-    private void processMatchedGroups(boolean dryRun, Collection<ComparableGroupItem> matchedGroups) {
-        for (ComparableGroupItem item : matchedGroups) {
-            LOG.info("Google Apps Consumer '{}' Full Sync - examining matched group: {} ({})", new Object[]{consumerName, item.getGrouperGroup().getName(), item});
+    private void openCheckpoint(boolean dryRun) {
+        if (properties.getStateDirectory().isEmpty()) {
+            if (resume) {
+                LOG.warn("Google Apps Consumer '{}' Full Sync - Resuming needs a stateDirectory; starting from the beginning.", consumerName);
+            }
+            return;
+        }
 
-            Group gooGroup = null;
-            try {
-                gooGroup = connector.fetchGooGroup(item.getName());
-            } catch (IOException e) {
-                LOG.error("Google Apps Consume '{}' Full Sync - Error fetching matched group ({}): {}", new Object[]{consumerName, item.getName(), e.getMessage()});
+        if (dryRun) {
+            return;
+        }
+
+        //each shard keeps its own checkpoint
+        final String checkpointName = shardCount > 1 ? consumerName + ".shard" + shardIndex + "of" + shardCount : consumerName;
+        checkpoint = new FullSyncCheckpoint(new File(properties.getStateDirectory()), checkpointName);
+        try {
+            checkpoint.open(resume);
+            LOG.info("Google Apps Consumer '{}' Full Sync - Run {} started {}, {} groups already reconciled",
+                    new Object[]{consumerName, checkpoint.getRunId(), new Date(checkpoint.getStarted()), checkpoint.getDoneCount()});
+        } catch (IOException e) {
+            LOG.warn("Google Apps Consumer '{}' Full Sync - Unable to write a checkpoint, this run can't be resumed: {}", consumerName, e.getMessage());
+            checkpoint = null;
+        }
+    }
+
+    private String shardLabel() {
+        return shardCount > 1 ? shardIndex + "/" + shardCount : FullSyncLock.ALL;
+    }
+
+    /**
+     * @param groupAddress a Google group address
+     * @return true if the group belongs to the shard this sync reconciles
+     */
+    private boolean inShard(String groupAddress) {
+        return shardCount <= 1 || (groupAddress.toLowerCase().hashCode() & Integer.MAX_VALUE) % shardCount == shardIndex - 1;
+    }
+
+    /**
+     * @return the groups in the dirty group ledger, or null if the ledger can't be read
+     */
+    private Set<String> checkoutDirtyGroups() {
+        try {
+            return dirtyGroupLedger.checkout();
+        } catch (IOException e) {
+            LOG.error("Google Apps Consumer '{}' Full Sync - Unable to read the dirty group ledger, verifying every group: {}", consumerName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param dirtyGroups the groups checked out of the ledger
+     * @param keepAll true to put every checked out group back, e.g. for a dry run
+     */
+    private void commitDirtyGroups(Set<String> dirtyGroups, boolean keepAll) {
+        final Set<String> stillDirty = new HashSet<String>();
+        if (keepAll) {
+            stillDirty.addAll(dirtyGroups);
+        } else {
+            synchronized (failedGroups) {
+                stillDirty.addAll(failedGroups);
+            }
+        }
+
+        //groups in other shards are left for the syncs that reconcile them
+        for (String group : dirtyGroups) {
+            if (!inShard(group)) {
+                stillDirty.add(group);
             }
-            boolean updated = false;
+        }
+
+        try {
+            dirtyGroupLedger.commit(stillDirty, keepAll ? null : nextSampleCursor);
+        } catch (IOException e) {
+            LOG.error("Google Apps Consumer '{}' Full Sync - Unable to update the dirty group ledger: {}", consumerName, e.getMessage());
+        }
+    }
+
+    /**
+     * Picks the matched groups an incremental sync verifies: every group in the dirty group ledger, plus the next
+     * fullSyncSampleSize of the others in address order, carrying on from where the last sample ended.
+     * @param matchedGroups all of the matched groups
+     * @param dirtyGroups the addresses in the dirty group ledger
+     * @return the groups to verify
+     */
+    private List<ComparableGroupItem> selectIncrementalGroups(Collection<ComparableGroupItem> matchedGroups, Set<String> dirtyGroups) {
+        final List<ComparableGroupItem> selected = new ArrayList<ComparableGroupItem>();
+        final List<ComparableGroupItem> clean = new ArrayList<ComparableGroupItem>();
 
-            if (gooGroup == null) {
-                LOG.error("Google Apps Consume '{}' Full Sync - Error fetching matched group ({}); it disappeared during processing.", new Object[]{consumerName, item.getName()});
+        for (ComparableGroupItem item : matchedGroups) {
+            if (dirtyGroups.contains(item.getName().toLowerCase())) {
+                selected.add(item);
             } else {
+                clean.add(item);
+            }
+        }
+        final int dirtyCount = selected.size();
 
-                if (!item.getGrouperGroup().getDescription().equalsIgnoreCase(gooGroup.getDescription())) {
-                    if (!dryRun) {
-                        gooGroup.setDescription(item.getGrouperGroup().getDescription());
-                        updated = true;
-                    }
-                }
+        Collections.sort(clean, new Comparator<ComparableGroupItem>() {
+            public int compare(ComparableGroupItem a, ComparableGroupItem b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
 
-                if (!item.getGrouperGroup().getDisplayExtension().equalsIgnoreCase(gooGroup.getName())) {
-                    if (!dryRun) {
-                        gooGroup.setName(item.getGrouperGroup().getDisplayExtension());
-                        updated = true;
-                    }
+        String cursor = "";
+        try {
+            cursor = dirtyGroupLedger.getSampleCursor();
+        } catch (IOException e) {
+            LOG.warn("Google Apps Consumer '{}' Full Sync - Unable to read the sample cursor, sampling from the start: {}", consumerName, e.getMessage());
+        }
+
+        int start = 0;
+        while (start < clean.size() && clean.get(start).getName().compareTo(cursor) <= 0) {
+            start++;
+        }
+
+        final int sampleSize = Math.min(properties.getFullSyncSampleSize(), clean.size());
+        for (int i = 0; i < sampleSize; i++) {
+            selected.add(clean.get((start + i) % clean.size()));
+        }
+        nextSampleCursor = sampleSize > 0 ? clean.get((start + sampleSize - 1) % clean.size()).getName() : null;
+
+        LOG.info("Google Apps Consumer '{}' Full Sync - Incremental: verifying {} dirty and {} sampled groups of {} matched groups",
+                new Object[]{consumerName, dirtyCount, sampleSize, matchedGroups.size()});
+        return selected;
+    }
+
+    private void processMatchedGroups(final boolean dryRun, Collection<ComparableGroupItem> matchedGroups) {
+        if (checkpoint != null && checkpoint.getDoneCount() > 0) {
+            final List<ComparableGroupItem> remaining = new ArrayList<ComparableGroupItem>();
+            for (ComparableGroupItem item : matchedGroups) {
+                if (!checkpoint.isDone(item.getName())) {
+                    remaining.add(item);
                 }
+            }
 
-                if (updated) {
-                    try {
-                        connector.updateGooGroup(item.getName(), gooGroup);
-                    } catch (IOException e) {
-                        LOG.error("Google Apps Consume '{}' Full Sync - Error updating matched group ({}): {}", new Object[]{consumerName, item.getName(), e.getMessage()});
+            LOG.info("Google Apps Consumer '{}' Full Sync - Skipping {} matched groups reconciled earlier in run {}",
+                    new Object[]{consumerName, matchedGroups.size() - remaining.size(), checkpoint.getRunId()});
+            matchedGroups = remaining;
+        }
+
+        processGroups("matched", matchedGroups, new GroupTask() {
+            public void process(ComparableGroupItem item) {
+                processMatchedGroup(dryRun, item);
+
+                if (checkpoint != null && !failedGroups.contains(item.getName())) {
+                    if (connector.hasDelayedChanges(item.getName())) {
+                        delayedGroups.add(item.getName());
+                    } else {
+                        checkpoint.markDone(item.getName());
                     }
                 }
+            }
+        });
+    }
 
-                //Retrieve Membership
-                ArrayList<ComparableMemberItem> grouperMembers = new ArrayList<ComparableMemberItem>();
-                for (edu.internet2.middleware.grouper.Member member : item.getGrouperGroup().getMembers()) {
-                    if (member.getSubjectType() == SubjectTypeEnum.PERSON) {
-                        grouperMembers.add(new ComparableMemberItem(connector.getAddressFormatter().qualifySubjectAddress(member.getSubjectId()), member));
-                    }
+    private void processMatchedGroup(boolean dryRun, ComparableGroupItem item) {
+        LOG.info("Google Apps Consumer '{}' Full Sync - examining matched group: {} ({})", new Object[]{consumerName, item.getGrouperGroup().getName(), item});
+
+        Group gooGroup = null;
+        try {
+            gooGroup = connector.fetchGooGroup(item.getName());
+        } catch (IOException e) {
+            LOG.error("Google Apps Consume '{}' Full Sync - Error fetching matched group ({}): {}", new Object[]{consumerName, item.getName(), e.getMessage()});
+        }
+        boolean updated = false;
+
+        if (gooGroup == null) {
+            LOG.error("Google Apps Consume '{}' Full Sync - Error fetching matched group ({}); it disappeared during processing.", new Object[]{consumerName, item.getName()});
+            failedGroups.add(item.getName());
+        } else {
+
+            if (!item.getGrouperGroup().getDescription().equalsIgnoreCase(gooGroup.getDescription())) {
+                if (!dryRun) {
+                    gooGroup.setDescription(item.getGrouperGroup().getDescription());
+                    updated = true;
                 }
+            }
 
-                ArrayList<ComparableMemberItem> googleMembers = new ArrayList<ComparableMemberItem>();
-                List<Member> memberList = null;
+            if (!item.getGrouperGroup().getDisplayExtension().equalsIgnoreCase(gooGroup.getName())) {
+                if (!dryRun) {
+                    gooGroup.setName(item.getGrouperGroup().getDisplayExtension());
+                    updated = true;
+                }
+            }
 
+            if (updated) {
                 try {
-                    memberList = connector.getGooMembership(item.getName());
+                    connector.updateGooGroup(item.getName(), gooGroup);
                 } catch (IOException e) {
-                    LOG.error("Google Apps Consume '{}' Full Sync - Error fetching membership list for group({}): {}", new Object[]{consumerName, item.getName(), e.getMessage()});
+                    LOG.error("Google Apps Consume '{}' Full Sync - Error updating matched group ({}): {}", new Object[]{consumerName, item.getName(), e.getMessage()});
+                    failedGroups.add(item.getName());
                 }
+            }
 
-                if (memberList == null) {
-                    LOG.error("Google Apps Consume '{}' Full Sync - Error fetching membership list for group ({}); it's null", new Object[]{consumerName, item.getName()});
+            //Retrieve Membership
+            ArrayList<ComparableMemberItem> grouperMembers = new ArrayList<ComparableMemberItem>();
+            for (edu.internet2.middleware.grouper.Member member : item.getGrouperGroup().getMembers()) {
+                if (member.getSubjectType() == SubjectTypeEnum.PERSON) {
+                    grouperMembers.add(new ComparableMemberItem(connector.getAddressFormatter().qualifySubjectAddress(member.getSubjectId()), member));
+                }
+            }
 
-                } else {
-                    for (Member member : memberList) {
-                        googleMembers.add(new ComparableMemberItem(member.getEmail()));
-                    }
+            //Stream the Google membership straight into an address to role map; the next page loads while this one is copied.
+            //The roles are kept so that matched members can be reconciled without fetching each one again.
+            final Map<String, String> googleRoles = new HashMap<String, String>();
+            boolean membershipFetched = false;
 
-                    Collection<ComparableMemberItem> extraMembers = CollectionUtils.subtract(googleMembers, grouperMembers);
-                    if (!properties.shouldIgnoreExtraGoogleMembers()) {
-                        processExtraGroupMembers(item, extraMembers, dryRun);
+            try {
+                connector.visitGooMembership(item.getName(), new GoogleAppsSdkUtils.PageVisitor<Member>() {
+                    public void visit(List<Member> page) {
+                        for (Member member : page) {
+                            if (member.getEmail() != null) {
+                                googleRoles.put(member.getEmail(), member.getRole());
+                            }
+                        }
                     }
+                });
+                membershipFetched = true;
+
+            } catch (IOException e) {
+                LOG.error("Google Apps Consume '{}' Full Sync - Error fetching membership list for group({}): {}", new Object[]{consumerName, item.getName(), e.getMessage()});
+                failedGroups.add(item.getName());
+            }
+
+            if (membershipFetched) {
+                final SetDiff<ComparableMemberItem> memberDiff =
+                        new SetDiff<ComparableMemberItem>(grouperMembers, googleRoles.keySet(), SetDiff.MEMBER_ADDRESS);
 
-                    Collection<ComparableMemberItem> missingMembers = CollectionUtils.subtract(grouperMembers, googleMembers);
-                    processMissingGroupMembers(item, missingMembers, gooGroup, dryRun);
+                final List<String> memberAddresses = new ArrayList<String>(grouperMembers.size());
+                for (ComparableMemberItem member : grouperMembers) {
+                    memberAddresses.add(member.getEmail());
+                }
+                connector.getMembershipIndex().setMembers(item.getName(), memberAddresses);
 
-                    Collection<ComparableMemberItem> matchedMembers = CollectionUtils.intersection(grouperMembers, googleMembers);
-                    processMatchedGroupMembers(item, matchedMembers, dryRun);
+                if (!properties.shouldIgnoreExtraGoogleMembers()) {
+                    final List<ComparableMemberItem> extraMembers = new ArrayList<ComparableMemberItem>(memberDiff.getExtra().size());
+                    for (String email : memberDiff.getExtra()) {
+                        extraMembers.add(new ComparableMemberItem(email));
+                    }
+                    processExtraGroupMembers(item, extraMembers, dryRun);
                 }
+
+                processMissingGroupMembers(item, memberDiff.getMissing(), gooGroup, dryRun);
+                processMatchedGroupMembers(item, memberDiff.getMatched(), googleRoles, dryRun);
             }
         }
     }
 
-    private void processMatchedGroupMembers(ComparableGroupItem group, Collection<ComparableMemberItem> matchedMembers, boolean dryRun) {
+    private void processMatchedGroupMembers(ComparableGroupItem group, Collection<ComparableMemberItem> matchedMembers, Map<String, String> googleRoles, boolean dryRun) {
+        final GoogleAppsMemberBatch batch = connector.newMemberBatch();
+
         for (ComparableMemberItem member : matchedMembers) {
-            if (!dryRun) {
-                edu.internet2.middleware.grouper.Member grouperMember = member.getGrouperMember();
+            final String role = connector.determineRole(member.getGrouperMember(), group.getGrouperGroup());
+            final String googleRole = googleRoles.get(member.getEmail());
+
+            if (role.equalsIgnoreCase(googleRole)) {
+                continue;
+            }
 
+            LOG.info("Google Apps Consume '{}' Full Sync - Changing the role of member ({}) in matched group ({}) from {} to {}.", new Object[]{consumerName, member.getEmail(), group.getName(), googleRole, role});
+            if (!dryRun) {
                 try {
-                    connector.updateGooMember(group.getGrouperGroup(), grouperMember.getSubject(), connector.determineRole(grouperMember, group.getGrouperGroup()));
+                    connector.updateGooMember(batch, group.getName(), member.getEmail(), role);
                 } catch (IOException e) {
                     LOG.error("Google Apps Consume '{}' Full Sync - Error updating existing user ({}) from existing group ({}): {}", new Object[]{consumerName, member.getEmail(), group.getName(), e.getMessage()});
+                    failedGroups.add(group.getName());
                 }
             }
         }
+
+        flush(batch, group, "updating member roles in");
     }
 
     private void processMissingGroupMembers(ComparableGroupItem group, Collection<ComparableMemberItem> missingMembers, Group gooGroup, boolean dryRun) {
+        final GoogleAppsMemberBatch batch = connector.newMemberBatch();
+
         for (ComparableMemberItem member : missingMembers) {
             LOG.info("Google Apps Consume '{}' Full Sync - Creating missing user/member ({}) from extra group ({}).", new Object[]{consumerName, member.getEmail(), group.getName()});
             if (!dryRun) {
@@ -283,57 +689,220 @@ public class GoogleAppsFullSync {
                         user = connector.createGooUser(subject);
                     } catch (IOException e) {
                         LOG.error("Google Apps Consume '{}' Full Sync - Error creating missing user ({}) from extra group ({}): {}", new Object[]{consumerName, member.getEmail(), group.getName(), e.getMessage()});
+                        failedGroups.add(group.getName());
                     }
                 }
 
                 if (user != null) {
                     try {
-                        connector.createGooMember(gooGroup, user, connector.determineRole(member.getGrouperMember(), group.getGrouperGroup()));
+                        connector.createGooMember(batch, gooGroup, user, connector.determineRole(member.getGrouperMember(), group.getGrouperGroup()));
                     } catch (IOException e) {
                         LOG.error("Google Apps Consume '{}' Full Sync - Error creating missing member ({}) from extra group ({}): {}", new Object[]{consumerName, member.getEmail(), group.getName(), e.getMessage()});
+                        failedGroups.add(group.getName());
                     }
                 }
             }
         }
+
+        flush(batch, group, "creating missing members in");
     }
 
     private void processExtraGroupMembers(ComparableGroupItem group, Collection<ComparableMemberItem> extraMembers, boolean dryRun) {
+        final GoogleAppsMemberBatch batch = connector.newMemberBatch();
+
         for (ComparableMemberItem member : extraMembers) {
             LOG.info("Google Apps Consume '{}' Full Sync - Removing extra member ({}) from matched group ({})", new Object[]{consumerName, member.getEmail(), group.getName()});
             if (!dryRun) {
                 try {
-                    connector.removeGooMembership(group.getName(), member.getGrouperMember().getSubject());
+                    connector.removeGooMember(batch, group.getName(), member.getEmail());
                 } catch (IOException e) {
                     LOG.warn("Google Apps Consume '{}' - Error removing membership ({}) from Google Group ({}): {}", new Object[]{consumerName, member.getEmail(), group.getName(), e.getMessage()});
+                    failedGroups.add(group.getName());
                 }
             }
         }
+
+        flush(batch, group, "removing extra members from");
+    }
+
+    /**
+     * Sends a group's queued member changes; the group is recorded as failed if the batch or any of its items fails.
+     * @param batch the group's member changes
+     * @param group the group
+     * @param action what the changes do, for logging
+     */
+    private void flush(GoogleAppsMemberBatch batch, ComparableGroupItem group, String action) {
+        try {
+            batch.flush();
+        } catch (IOException e) {
+            LOG.error("Google Apps Consume '{}' Full Sync - Error {} group ({}): {}", new Object[]{consumerName, action, group.getName(), e.getMessage()});
+            failedGroups.add(group.getName());
+        }
+
+        if (batch.getFailureCount() > 0) {
+            LOG.error("Google Apps Consume '{}' Full Sync - {} member change(s) failed {} group ({}).",
+                    new Object[]{consumerName, batch.getFailureCount(), action, group.getName()});
+            failedGroups.add(group.getName());
+        }
+    }
+
+    private void processMissingGroups(final boolean dryRun, Collection<ComparableGroupItem> missingGroups) {
+        processGroups("missing", missingGroups, new GroupTask() {
+            public void process(ComparableGroupItem item) {
+                processMissingGroup(dryRun, item);
+            }
+        });
+    }
+
+    private void processMissingGroup(boolean dryRun, ComparableGroupItem item) {
+        LOG.info("Google Apps Consumer '{}' Full Sync - adding missing Google group: {} ({})", new Object[] {consumerName, item.getGrouperGroup().getName(), item});
+
+        if (!dryRun) {
+            try {
+                connector.createGooGroupIfNecessary(item.getGrouperGroup());
+            } catch (IOException e) {
+                LOG.error("Google Apps Consume '{}' Full Sync - Error adding missing group ({}): {}", new Object[]{consumerName, item.getName(), e.getMessage()});
+                failedGroups.add(item.getName());
+            }
+        }
     }
 
-    private void processMissingGroups(boolean dryRun, Collection<ComparableGroupItem> missingGroups) {
-        for (ComparableGroupItem item : missingGroups) {
-            LOG.info("Google Apps Consumer '{}' Full Sync - adding missing Google group: {} ({})", new Object[] {consumerName, item.getGrouperGroup().getName(), item});
+    private void processExtraGroups(final boolean dryRun, Collection<ComparableGroupItem> extraGroups) {
+        processGroups("extra", extraGroups, new GroupTask() {
+            public void process(ComparableGroupItem item) {
+                processExtraGroup(dryRun, item);
+            }
+        });
+    }
 
-            if (!dryRun) {
-                try {
-                    connector.createGooGroupIfNecessary(item.getGrouperGroup());
-                } catch (IOException e) {
-                    LOG.error("Google Apps Consume '{}' Full Sync - Error adding missing group ({}): {}", new Object[]{consumerName, item.getName(), e.getMessage()});
-                }
+    private void processExtraGroup(boolean dryRun, ComparableGroupItem item) {
+        LOG.info("Google Apps Consumer '{}' Full Sync - removing extra Google group: {}", consumerName, item);
+
+        if (!dryRun) {
+            try {
+                connector.deleteGooGroupByEmail(item.getName());
+            } catch (IOException e) {
+                LOG.error("Google Apps Consume '{}' Full Sync - Error removing extra group ({}): {}", new Object[]{consumerName, item.getName(), e.getMessage()});
+                failedGroups.add(item.getName());
             }
         }
     }
 
-    private void processExtraGroups(boolean dryRun, Collection<ComparableGroupItem> extraGroups) {
-        for (ComparableGroupItem item : extraGroups) {
-            LOG.info("Google Apps Consumer '{}' Full Sync - removing extra Google group: {}", consumerName, item);
+    /**
+     * Runs a task against each group. Groups are independent of each other, so when fullSyncThreadCount is greater
+     * than one they are handed out to a fixed pool of workers, each with its own root GrouperSession.
+     * @param pass a label for logging
+     * @param groups the groups to process
+     * @param task the work to do for each group
+     */
+    private void processGroups(final String pass, Collection<ComparableGroupItem> groups, final GroupTask task) {
+        final FullSyncResults results = new FullSyncResults(pass);
+        final int threadCount = Math.min(properties.getFullSyncThreadCount(), groups.size());
 
-            if (!dryRun) {
-                try {
-                    connector.deleteGooGroupByEmail(item.getName());
-                } catch (IOException e) {
-                    LOG.error("Google Apps Consume '{}' Full Sync - Error removing extra group ({}): {}", new Object[]{consumerName, item.getName(), e.getMessage()});
+        if (threadCount <= 1) {
+            for (ComparableGroupItem item : groups) {
+                results.run(task, item);
+            }
+
+        } else {
+            LOG.debug("Google Apps Consumer '{}' Full Sync - processing {} {} groups with {} workers", new Object[]{consumerName, groups.size(), pass, threadCount});
+
+            final Queue<ComparableGroupItem> queue = new ConcurrentLinkedQueue<ComparableGroupItem>(groups);
+            final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+            for (int i = 0; i < threadCount; i++) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        GrouperSession workerSession = null;
+                        try {
+                            workerSession = GrouperSession.startRootSession();
+                        } catch (RuntimeException e) {
+                            results.workerFailed(e);
+                            return;
+                        }
+
+                        try {
+                            ComparableGroupItem item;
+                            while ((item = queue.poll()) != null) {
+                                results.run(task, item);
+                            }
+                        } finally {
+                            GrouperSession.stopQuietly(workerSession);
+                        }
+                    }
+                });
+            }
+
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    LOG.debug("Google Apps Consumer '{}' Full Sync - waiting on {} groups, {} left to start", new Object[]{consumerName, pass, queue.size()});
                 }
+            } catch (InterruptedException e) {
+                LOG.error("Google Apps Consumer '{}' Full Sync - interrupted while processing {} groups", consumerName, pass);
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+
+            //groups left over when every worker failed to start (or the pass was interrupted) were never reconciled
+            ComparableGroupItem item;
+            while ((item = queue.poll()) != null) {
+                results.notRun(item);
+            }
+        }
+
+        results.log();
+    }
+
+    /** Work done against a single group. */
+    private interface GroupTask {
+        void process(ComparableGroupItem item);
+    }
+
+    /** Aggregates the outcome of a pass over the groups; shared by the workers. */
+    private class FullSyncResults {
+        private final String pass;
+        private final AtomicInteger processed = new AtomicInteger();
+        private final AtomicInteger workerFailures = new AtomicInteger();
+        private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+        FullSyncResults(String pass) {
+            this.pass = pass;
+        }
+
+        void run(GroupTask task, ComparableGroupItem item) {
+            connector.setDelayedChangeGroup(item.getName());
+            try {
+                task.process(item);
+            } catch (RuntimeException e) {
+                LOG.error("Google Apps Consume '{}' Full Sync - Error processing {} group ({}): {}", new Object[]{consumerName, pass, item.getName(), e});
+                failures.add(item.getName());
+                failedGroups.add(item.getName());
+            } finally {
+                connector.setDelayedChangeGroup(null);
+                processed.incrementAndGet();
+            }
+        }
+
+        void workerFailed(RuntimeException e) {
+            LOG.error("Google Apps Consume '{}' Full Sync - A worker for the {} groups failed to start: {}", new Object[]{consumerName, pass, e});
+            workerFailures.incrementAndGet();
+        }
+
+        void notRun(ComparableGroupItem item) {
+            failures.add(item.getName());
+            failedGroups.add(item.getName());
+        }
+
+        void log() {
+            if (workerFailures.get() > 0) {
+                LOG.error("Google Apps Consumer '{}' Full Sync - {} of the workers for the {} groups failed to start", new Object[]{consumerName, workerFailures.get(), pass});
+            }
+
+            if (failures.isEmpty()) {
+                LOG.info("Google Apps Consumer '{}' Full Sync - processed {} {} groups", new Object[]{consumerName, processed.get(), pass});
+            } else {
+                LOG.error("Google Apps Consumer '{}' Full Sync - processed {} {} groups, {} failed: {}", new Object[]{consumerName, processed.get(), pass, failures.size(), failures});
             }
         }
     }
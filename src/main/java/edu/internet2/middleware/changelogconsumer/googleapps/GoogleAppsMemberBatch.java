@@ -0,0 +1,436 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import com.codahale.metrics.Timer;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.admin.directory.Directory;
+import com.google.api.services.admin.directory.model.Member;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsMetrics;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.RetryPolicy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GoogleAppsMemberBatch accumulates group membership inserts, deletes and updates and sends them to Google
+ * using the batch endpoint, so that a large group only costs a handful of HTTP round trips. Each queued item keeps
+ * its own callback, retry and 404 handling.
+ */
+public class GoogleAppsMemberBatch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GoogleAppsMemberBatch.class);
+
+    /** Google accepts up to 1000 calls in a single batch request. */
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * Callback notified once per queued item when it has been processed.
+     */
+    public interface Callback {
+        /**
+         * the item was applied by Google
+         * @param groupKey the group the item applied to
+         * @param memberKey the member the item applied to
+         */
+        void onSuccess(String groupKey, String memberKey);
+
+        /**
+         * the item could not be applied (not found, retries exhausted, or another error)
+         * @param groupKey the group the item applied to
+         * @param memberKey the member the item applied to
+         * @param error the error returned by Google, or null if the batch itself could not be sent
+         */
+        void onFailure(String groupKey, String memberKey, GoogleJsonError error);
+    }
+
+    private enum Operation { INSERT, DELETE, UPDATE }
+
+    private final Directory directoryClient;
+    private final int batchSize;
+    private final List<Item> pending = new ArrayList<Item>();
+    private int failures;
+
+    /**
+     * @param directoryClient a Directory client
+     * @param batchSize the maximum number of items to send in a single batch request
+     */
+    public GoogleAppsMemberBatch(Directory directoryClient, int batchSize) {
+        this.directoryClient = directoryClient;
+        this.batchSize = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+    }
+
+    /**
+     * queues the addition of a member to a group.
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param member a populated Member object
+     * @param callback notified once the item has been processed, may be null
+     * @throws IOException
+     */
+    public void addGroupMember(String groupKey, Member member, Callback callback) throws IOException {
+        LOG.debug("addGroupMember() - queue add {} to {}", member, groupKey);
+        queue(new Item(Operation.INSERT, groupKey, member.getEmail(), member, callback));
+    }
+
+    /**
+     * queues the removal of a member from a group.
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param memberKey an identifier for a user (e-mail address is the most popular)
+     * @param callback notified once the item has been processed, may be null
+     * @throws IOException
+     */
+    public void removeGroupMember(String groupKey, String memberKey, Callback callback) throws IOException {
+        LOG.debug("removeGroupMember() - queue remove {} from {}", memberKey, groupKey);
+        queue(new Item(Operation.DELETE, groupKey, memberKey, null, callback));
+    }
+
+    /**
+     * queues an update of a group member (role changes, etc.).
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param memberKey an identifier for a user (e-mail address is the most popular)
+     * @param member a populated Member object
+     * @param callback notified once the item has been processed, may be null
+     * @throws IOException
+     */
+    public void updateGroupMember(String groupKey, String memberKey, Member member, Callback callback) throws IOException {
+        LOG.debug("updateGroupMember() - queue update {} in {}", member, groupKey);
+        queue(new Item(Operation.UPDATE, groupKey, memberKey, member, callback));
+    }
+
+    /**
+     * @return the number of items that could not be applied so far; removing a member who was already gone doesn't count
+     */
+    public int getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * @return the number of items waiting to be sent
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * sends all queued items to Google, retrying the items that were rate limited or hit a backend error. Inserts
+     * follow the insert retry policy and updates and deletes the idempotent one (see
+     * GoogleAppsSdkUtils.setRetryPolicies()). Items that can't be sent are failed before this returns or throws.
+     * @throws IOException if a batch could not be sent and won't be retried
+     */
+    public void flush() throws IOException {
+        List<Item> items = new ArrayList<Item>(pending);
+        pending.clear();
+
+        IOException ioError = null;
+
+        final RetryPolicy.Call insertCall = GoogleAppsSdkUtils.getInsertRetryPolicy().start();
+        final RetryPolicy.Call idempotentCall = GoogleAppsSdkUtils.getIdempotentRetryPolicy().start();
+        while (!items.isEmpty()) {
+            final Retries retries = new Retries();
+
+            for (int start = 0; start < items.size(); start += batchSize) {
+                final List<Item> chunk = items.subList(start, Math.min(start + batchSize, items.size()));
+                send(chunk, retries, Math.max(insertCall.getAttempts(), idempotentCall.getAttempts()));
+            }
+
+            if (retries.items.isEmpty() && retries.unanswered.isEmpty()) {
+                break;
+            }
+
+            items = new ArrayList<Item>();
+            final long delay = Math.max(retry(insertCall, true, retries, items), retry(idempotentCall, false, retries, items));
+            if (retries.unretriedIoError != null) {
+                ioError = retries.unretriedIoError;
+            }
+
+            if (items.isEmpty()) {
+                break;
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                fail(items);
+                throw new InterruptedIOException("Interrupted waiting to retry a batch");
+            }
+        }
+
+        if (ioError != null) {
+            throw ioError;
+        }
+    }
+
+    /**
+     * decides which of the inserts, or of the other items, are tried again. Items Google answered with a rate limit
+     * or backend error follow that answer; items whose batch hit an I/O error follow their own I/O error. The rest fail.
+     * @param call the retry state of the items' policy
+     * @param inserts true for the inserts, false for the other items
+     * @param retries the outcome of the round
+     * @param next the items to try again, which this adds to
+     * @return how long to wait before trying again, 0 if none of the items are
+     */
+    private long retry(RetryPolicy.Call call, boolean inserts, Retries retries, List<Item> next) {
+        final List<Item> answered = select(retries.items, inserts);
+        final List<Item> unanswered = new ArrayList<Item>();
+        for (Item item : select(retries.unanswered, inserts)) {
+            if (call.mayRetry(item.ioError)) {
+                unanswered.add(item);
+            } else {
+                LOG.error("flush() - Not retrying {}, it may have been applied: {}", item, item.ioError.toString());
+                item.fail(null);
+                retries.unretriedIoError = item.ioError;
+            }
+        }
+
+        if (answered.isEmpty() && unanswered.isEmpty()) {
+            return 0;
+        }
+
+        final long delay = answered.isEmpty() ? call.nextDelay(unanswered.get(0).ioError) : call.nextDelay(retries.reason, retries.retryAfter);
+        if (delay < 0) {
+            LOG.error("flush() - Giving up on {} items after {} attempts", answered.size() + unanswered.size(), call.getAttempts());
+            fail(answered);
+            fail(unanswered);
+            if (!unanswered.isEmpty()) {
+                retries.unretriedIoError = unanswered.get(0).ioError;
+            }
+            return 0;
+        }
+
+        next.addAll(answered);
+        next.addAll(unanswered);
+        return delay;
+    }
+
+    private static List<Item> select(List<Item> items, boolean inserts) {
+        final List<Item> selected = new ArrayList<Item>();
+        for (Item item : items) {
+            if ((item.operation == Operation.INSERT) == inserts) {
+                selected.add(item);
+            }
+        }
+        return selected;
+    }
+
+    private void fail(List<Item> items) {
+        for (Item item : items) {
+            item.fail(null);
+        }
+    }
+
+    private void queue(Item item) throws IOException {
+        pending.add(item);
+
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private void send(List<Item> chunk, Retries retries, int attempt) throws IOException {
+        LOG.trace("send() - sending batch of {} items, attempt #{}", chunk.size(), attempt);
+
+        final BatchRequest batch = directoryClient.batch();
+        for (Item item : chunk) {
+            item.queue(batch, retries);
+        }
+
+        //Google counts each item in a batch against the quota
+        GoogleAppsSdkUtils.getDirectoryWriteBucket().acquire(chunk.size());
+
+        final Timer.Context timer = GoogleAppsMetrics.requestTimer(batch).time();
+        try {
+            batch.execute();
+
+        } catch (IOException e) {
+            LOG.error("send() - An unknown IO error occurred: " + e);
+
+            //Anything that didn't get a response is tried again, if the retry policy allows it
+            for (Item item : chunk) {
+                if (!item.done) {
+                    item.ioError = e;
+                    retries.unanswered.add(item);
+                }
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * The items to send again, and why: the items Google answered with an error worth retrying, and the items whose
+     * batch hit an I/O error before they were answered. Also the I/O error of any item that won't be tried again.
+     */
+    private static class Retries {
+        private final List<Item> items = new ArrayList<Item>();
+        private final List<Item> unanswered = new ArrayList<Item>();
+        private String reason = GoogleAppsMetrics.BACKEND_ERROR;
+        private long retryAfter;
+        private IOException unretriedIoError;
+
+        void add(Item item, String reason, HttpHeaders responseHeaders) {
+            items.add(item);
+            if (GoogleAppsMetrics.RATE_LIMIT_EXCEEDED.equals(reason)) {
+                this.reason = reason;
+            }
+            if (responseHeaders != null) {
+                retryAfter = Math.max(retryAfter, RetryPolicy.parseRetryAfter(responseHeaders.getRetryAfter(), System.currentTimeMillis()));
+            }
+        }
+    }
+
+    /**
+     * A single queued member operation.
+     */
+    private class Item {
+        private final Operation operation;
+        private final String groupKey;
+        private final String memberKey;
+        private final Member member;
+        private final Callback callback;
+        private boolean done;
+        private boolean mayHaveBeenApplied;
+        private IOException ioError;
+
+        Item(Operation operation, String groupKey, String memberKey, Member member, Callback callback) {
+            this.operation = operation;
+            this.groupKey = groupKey;
+            this.memberKey = memberKey;
+            this.member = member;
+            this.callback = callback;
+        }
+
+        void queue(BatchRequest batch, Retries retries) throws IOException {
+            done = false;
+            ioError = null;
+
+            switch (operation) {
+                case INSERT:
+                    directoryClient.members().insert(groupKey, member).queue(batch, new ItemCallback<Member>(this, retries));
+                    break;
+                case DELETE:
+                    directoryClient.members().delete(groupKey, memberKey).queue(batch, new ItemCallback<Void>(this, retries));
+                    break;
+                case UPDATE:
+                    directoryClient.members().update(groupKey, memberKey, member).queue(batch, new ItemCallback<Member>(this, retries));
+                    break;
+            }
+        }
+
+        void succeed() {
+            done = true;
+            if (callback != null) {
+                callback.onSuccess(groupKey, memberKey);
+            }
+        }
+
+        void fail(GoogleJsonError error) {
+            done = true;
+            if (!(operation == Operation.DELETE && error != null && error.getCode() == 404)) {
+                failures++;
+            }
+            if (callback != null) {
+                callback.onFailure(groupKey, memberKey, error);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return operation + " " + memberKey + " in " + groupKey;
+        }
+    }
+
+    /**
+     * Routes a batch response back to its item, mirroring the handling in GoogleAppsSdkUtils.execute().
+     */
+    private static class ItemCallback<T> extends JsonBatchCallback<T> {
+        private final Item item;
+        private final Retries retries;
+
+        ItemCallback(Item item, Retries retries) {
+            this.item = item;
+            this.retries = retries;
+        }
+
+        @Override
+        public void onSuccess(T t, HttpHeaders responseHeaders) {
+            GoogleAppsSdkUtils.getDirectoryWriteBucket().onSuccess();
+            item.succeed();
+        }
+
+        @Override
+        public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+            final String reason = e.getErrors() != null && !e.getErrors().isEmpty() ? e.getErrors().get(0).getReason() : null;
+
+            switch (e.getCode()) {
+                case 403:
+                    if ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)) {
+                        LOG.warn("onFailure() - we've exceeded a rate limit ({}) for {}, it will be retried.", reason, item);
+                        GoogleAppsSdkUtils.getDirectoryWriteBucket().slowDown();
+                        item.done = true;
+                        retries.add(item, GoogleAppsMetrics.RATE_LIMIT_EXCEEDED, responseHeaders);
+                        return;
+                    }
+                    LOG.info("onFailure() - Unknown 403 error for {}: {}", item, e);
+                    break;
+
+                case 404: //Not found
+                    LOG.warn("onFailure() - Not found for {}: {}", item, e);
+                    break;
+
+                case 409: //Already exists
+                    if (item.operation == Operation.INSERT && item.mayHaveBeenApplied) {
+                        LOG.info("onFailure() - {} already exists, so the earlier attempt was applied.", item);
+                        item.succeed();
+                        return;
+                    }
+                    LOG.error("onFailure() - Error for {}: {}", item, e);
+                    break;
+
+                case 429:
+                    LOG.warn("onFailure() - we've exceeded a rate limit for {}, it will be retried.", item);
+                    GoogleAppsSdkUtils.getDirectoryWriteBucket().slowDown();
+                    item.done = true;
+                    retries.add(item, GoogleAppsMetrics.RATE_LIMIT_EXCEEDED, responseHeaders);
+                    return;
+
+                case 500:
+                case 502:
+                case 503:
+                case 504:
+                    LOG.warn("onFailure() - service unavailable/backend error ({}) for {}, it will be retried.", reason, item);
+                    item.done = true;
+                    item.mayHaveBeenApplied = true;
+                    retries.add(item, GoogleAppsMetrics.BACKEND_ERROR, responseHeaders);
+                    return;
+
+                default:
+                    LOG.error("onFailure() - Error for {}: {}", item, e);
+                    break;
+            }
+
+            item.fail(e);
+        }
+    }
+}
@@ -17,9 +17,12 @@
 
 package edu.internet2.middleware.changelogconsumer.googleapps;
 
+import com.codahale.metrics.Timer;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.services.admin.directory.Directory;
@@ -30,13 +33,27 @@ import com.google.api.services.admin.directory.model.Groups;
 import com.google.api.services.groupssettings.Groupssettings;
 import com.google.api.services.groupssettings.GroupssettingsRequest;
 import com.google.api.services.groupssettings.GroupssettingsScopes;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsFuture;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsMetrics;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsSyncProperties;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.RetryPolicy;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.TokenBucket;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,7 +71,122 @@ public class GoogleAppsSdkUtils {
 
     private static final String[] groupssettingsScope = {GroupssettingsScopes.APPS_GROUPS_SETTINGS};
 
-    private static final Random randomGenerator = new Random();
+    /** Client-side rate limits shared by every request, so that we stay under the quota instead of tripping it. */
+    private static final TokenBucket directoryReadBucket = new TokenBucket("directory read", 0);
+    private static final TokenBucket directoryWriteBucket = new TokenBucket("directory write", 0);
+    private static final TokenBucket groupssettingsReadBucket = new TokenBucket("groupssettings read", 0);
+    private static final TokenBucket groupssettingsWriteBucket = new TokenBucket("groupssettings write", 0);
+
+    /** How failed requests are retried; inserts aren't idempotent, so they aren't repeated if they may have been applied. */
+    private static volatile RetryPolicy idempotentRetryPolicy = new RetryPolicy(true);
+    private static volatile RetryPolicy insertRetryPolicy = new RetryPolicy(false);
+
+    /** retryDelay() results that aren't a delay. */
+    private static final long NOT_FOUND = -1;
+    private static final long DO_NOT_RETRY = -2;
+    private static final long ALREADY_EXISTS = -3;
+
+    /** Runs the asynchronous requests; waits for the rate limits and between retries are scheduled, not slept. */
+    private static final ScheduledThreadPoolExecutor asyncExecutor = new ScheduledThreadPoolExecutor(8, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "google-async-request");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Fetches the next page of a listing while the caller works through the current one. */
+    private static final ExecutorService pagePrefetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "google-page-prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * PageVisitor receives a listing one page at a time, as the pages arrive from Google.
+     */
+    public interface PageVisitor<T> {
+        /**
+         * @param page the items on the page; never empty
+         * @throws IOException to stop the listing
+         */
+        void visit(List<T> page) throws IOException;
+    }
+
+    /** The projections used when a caller doesn't ask for specific fields, null for the full resource. */
+    private static volatile String userFields = GoogleAppsSyncProperties.DEFAULT_USER_FIELDS;
+    private static volatile String groupFields = GoogleAppsSyncProperties.DEFAULT_GROUP_FIELDS;
+    private static volatile String memberFields = GoogleAppsSyncProperties.DEFAULT_MEMBER_FIELDS;
+
+    /**
+     * setFieldProjections configures the default fields requested for each resource type, so Google only sends
+     * (and we only parse and cache) what the provisioner uses. An empty or null projection requests the full resource.
+     * @param users the User fields, e.g. "id,primaryEmail,name"
+     * @param groups the Group fields
+     * @param members the Member fields
+     */
+    public static void setFieldProjections(String users, String groups, String members) {
+        userFields = emptyToNull(users);
+        groupFields = emptyToNull(groups);
+        memberFields = emptyToNull(members);
+    }
+
+    /**
+     * setRateLimits configures the client-side rate limits (requests per second, 0 disables a limit).
+     * The adaptive state of a limit is kept unless its configured rate changes.
+     * @param directoryRead rate for Directory API reads
+     * @param directoryWrite rate for Directory API writes
+     * @param groupssettingsRead rate for Groupssettings API reads
+     * @param groupssettingsWrite rate for Groupssettings API writes
+     */
+    public static void setRateLimits(double directoryRead, double directoryWrite, double groupssettingsRead, double groupssettingsWrite) {
+        directoryReadBucket.setMaxRate(directoryRead);
+        directoryWriteBucket.setMaxRate(directoryWrite);
+        groupssettingsReadBucket.setMaxRate(groupssettingsRead);
+        groupssettingsWriteBucket.setMaxRate(groupssettingsWrite);
+    }
+
+    /**
+     * setRetryPolicies configures how failed requests are retried.
+     * @param idempotent the policy for requests that can safely be repeated (reads, updates and deletes)
+     * @param insert the policy for inserts
+     */
+    public static void setRetryPolicies(RetryPolicy idempotent, RetryPolicy insert) {
+        idempotentRetryPolicy = idempotent;
+        insertRetryPolicy = insert;
+    }
+
+    /**
+     * @return the retry policy for requests that can safely be repeated (batched updates and deletes use it)
+     */
+    static RetryPolicy getIdempotentRetryPolicy() {
+        return idempotentRetryPolicy;
+    }
+
+    /**
+     * @return the retry policy for inserts (batched membership inserts use it)
+     */
+    static RetryPolicy getInsertRetryPolicy() {
+        return insertRetryPolicy;
+    }
+
+    /**
+     * setAsyncThreadCount configures how many asynchronous requests can be on the wire at once. Requests that are
+     * waiting for a retry or for the rate limit don't take up a thread.
+     * @param threads the number of threads in the async pool
+     */
+    public static void setAsyncThreadCount(int threads) {
+        asyncExecutor.setCorePoolSize(Math.max(1, threads));
+    }
+
+    /**
+     * @return the rate limit used for Directory API writes (batched membership changes share it)
+     */
+    static TokenBucket getDirectoryWriteBucket() {
+        return directoryWriteBucket;
+    }
 
     /**
      * getGoogleDirectoryCredential creates a credential object that authenticates the REST API calls.
@@ -238,29 +370,64 @@ public class GoogleAppsSdkUtils {
      * @throws IOException
      */
     public static List<User> retrieveAllUsers(Directory directoryClient) throws IOException {
-        LOG.debug("retrieveAllUsers()");
+        return retrieveAllUsers(directoryClient, userFields);
+    }
 
-        List<User> allUsers = new ArrayList<User>();
+    /**
+     * retrieveAllUsers returns all of the users from Google, with just the requested fields.
+     * @param directoryClient a Directory client
+     * @param fields the User fields to return, null for the full resource
+     * @return a list of all the users in the directory
+     * @throws IOException
+     */
+    public static List<User> retrieveAllUsers(Directory directoryClient, String fields) throws IOException {
+        final List<User> allUsers = new ArrayList<User>();
+        visitAllUsers(directoryClient, fields, new PageVisitor<User>() {
+            public void visit(List<User> page) {
+                allUsers.addAll(page);
+            }
+        });
 
-        Directory.Users.List request = null;
-        try {
-            request = directoryClient.users().list().setCustomer("my_customer").setMaxResults(500);
-        } catch (IOException e) {
-            LOG.error("An unknown error occurred: " + e);
-        }
+        return allUsers;
+    }
+
+    /**
+     * visitAllUsers hands every user in Google to the visitor, one page at a time.
+     * @param directoryClient a Directory client
+     * @param visitor receives each page
+     * @throws IOException
+     */
+    public static void visitAllUsers(Directory directoryClient, PageVisitor<User> visitor) throws IOException {
+        visitAllUsers(directoryClient, userFields, visitor);
+    }
+
+    /**
+     * visitAllUsers hands every user in Google to the visitor, one page at a time. The next page is fetched while
+     * the visitor works on the current one.
+     * @param directoryClient a Directory client
+     * @param fields the User fields to return, null for the full resource
+     * @param visitor receives each page
+     * @throws IOException
+     */
+    public static void visitAllUsers(Directory directoryClient, String fields, PageVisitor<User> visitor) throws IOException {
+        LOG.debug("visitAllUsers() - fields: {}", fields);
 
-        do { //continue until we have all the pages read in.
-            Users currentPage = (Users)execute(request);
+        final Directory.Users.List request = directoryClient.users().list().setCustomer("my_customer").setMaxResults(500)
+                .setFields(listFields("users", fields));
 
-            final List<User> users = currentPage.getUsers();
-            if (users != null) {
-                allUsers.addAll(users);
+        visitPages(request, new Pager<Users, User>() {
+            public List<User> items(Users page) {
+                return page.getUsers();
             }
-            request.setPageToken(currentPage.getNextPageToken());
 
-        } while (request.getPageToken() != null && request.getPageToken().length() > 0);
+            public String nextPageToken(Users page) {
+                return page.getNextPageToken();
+            }
 
-        return allUsers;
+            public void setPageToken(String pageToken) {
+                request.setPageToken(pageToken);
+            }
+        }, visitor);
     }
 
     /**
@@ -271,12 +438,24 @@ public class GoogleAppsSdkUtils {
      * @throws IOException
      */
     public static User retrieveUser(Directory directoryClient, String userKey) throws IOException {
+        return retrieveUser(directoryClient, userKey, userFields);
+    }
+
+    /**
+     *
+     * @param directoryClient a Directory (service) object
+     * @param userKey an identifier for a user (e-mail address is the most popular)
+     * @param fields the User fields to return, null for the full resource
+     * @return the User object returned by Google.
+     * @throws IOException
+     */
+    public static User retrieveUser(Directory directoryClient, String userKey, String fields) throws IOException {
         LOG.debug("retrieveUser() - {}", userKey);
 
         Directory.Users.Get request = null;
 
         try {
-            request = directoryClient.users().get(userKey);
+            request = directoryClient.users().get(userKey).setFields(fields);
         } catch (IOException e) {
             LOG.error("An unknown error occurred: " + e);
         }
@@ -291,29 +470,64 @@ public class GoogleAppsSdkUtils {
      * @throws IOException
      */
     public static List<Group> retrieveAllGroups(Directory directoryClient) throws IOException {
-        LOG.debug("retrieveAllGroups()");
+        return retrieveAllGroups(directoryClient, groupFields);
+    }
 
+    /**
+     *
+     * @param directoryClient a Directory client
+     * @param fields the Group fields to return, null for the full resource
+     * @return a list of all the groups in the directory
+     * @throws IOException
+     */
+    public static List<Group> retrieveAllGroups(Directory directoryClient, String fields) throws IOException {
         final List<Group> allGroups = new ArrayList<Group>();
+        visitAllGroups(directoryClient, fields, new PageVisitor<Group>() {
+            public void visit(List<Group> page) {
+                allGroups.addAll(page);
+            }
+        });
 
-        Directory.Groups.List request = null;
-        try {
-            request = directoryClient.groups().list().setCustomer("my_customer").setMaxResults(1000000);
-        } catch (IOException e) {
-            LOG.error("An unknown error occurred: " + e);
-        }
+        return allGroups;
+    }
+
+    /**
+     * visitAllGroups hands every group in Google to the visitor, one page at a time.
+     * @param directoryClient a Directory client
+     * @param visitor receives each page
+     * @throws IOException
+     */
+    public static void visitAllGroups(Directory directoryClient, PageVisitor<Group> visitor) throws IOException {
+        visitAllGroups(directoryClient, groupFields, visitor);
+    }
+
+    /**
+     * visitAllGroups hands every group in Google to the visitor, one page at a time. The next page is fetched while
+     * the visitor works on the current one.
+     * @param directoryClient a Directory client
+     * @param fields the Group fields to return, null for the full resource
+     * @param visitor receives each page
+     * @throws IOException
+     */
+    public static void visitAllGroups(Directory directoryClient, String fields, PageVisitor<Group> visitor) throws IOException {
+        LOG.debug("visitAllGroups() - fields: {}", fields);
 
-        do { //continue until we have all the pages read in.
-            final Groups currentPage = (Groups)execute(request);
+        final Directory.Groups.List request = directoryClient.groups().list().setCustomer("my_customer").setMaxResults(1000000)
+                .setFields(listFields("groups", fields));
 
-            final List<Group> groups = currentPage.getGroups();
-            if (groups != null) {
-                allGroups.addAll(groups);
+        visitPages(request, new Pager<Groups, Group>() {
+            public List<Group> items(Groups page) {
+                return page.getGroups();
             }
-            request.setPageToken(currentPage.getNextPageToken());
 
-        } while (request.getPageToken() != null && request.getPageToken().length() > 0);
+            public String nextPageToken(Groups page) {
+                return page.getNextPageToken();
+            }
 
-        return allGroups;
+            public void setPageToken(String pageToken) {
+                request.setPageToken(pageToken);
+            }
+        }, visitor);
     }
 
     /**
@@ -324,12 +538,24 @@ public class GoogleAppsSdkUtils {
      * @throws IOException
      */
     public static Group retrieveGroup(Directory directoryClient, String groupKey) throws IOException {
+        return retrieveGroup(directoryClient, groupKey, groupFields);
+    }
+
+    /**
+     * retrieveGroup returns a requested group, with just the requested fields.
+     * @param directoryClient a Directory client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param fields the Group fields to return, null for the full resource
+     * @return the Group object from Google
+     * @throws IOException
+     */
+    public static Group retrieveGroup(Directory directoryClient, String groupKey, String fields) throws IOException {
         LOG.debug("retrieveGroup() - {}", groupKey);
 
         Directory.Groups.Get request = null;
 
         try {
-            request = directoryClient.groups().get(groupKey);
+            request = directoryClient.groups().get(groupKey).setFields(fields);
         } catch (IOException e) {
             LOG.error("An unknown error occurred: " + e);
         }
@@ -367,12 +593,25 @@ public class GoogleAppsSdkUtils {
      * @throws IOException
      */
     public static Member retrieveGroupMember(Directory directoryClient, String groupKey, String userKey) throws IOException {
+        return retrieveGroupMember(directoryClient, groupKey, userKey, memberFields);
+    }
+
+    /**
+     * retrieveGroupMember returns a requested group member, with just the requested fields.
+     * @param directoryClient a Directory client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param userKey an identifier for a group (e-mail address is the most popular)
+     * @param fields the Member fields to return, null for the full resource
+     * @return the Group object from Google
+     * @throws IOException
+     */
+    public static Member retrieveGroupMember(Directory directoryClient, String groupKey, String userKey, String fields) throws IOException {
         LOG.debug("retrieveGroupMember() - {} in {}", userKey, groupKey);
 
         Directory.Members.Get request = null;
 
         try {
-            request = directoryClient.members().get(groupKey,userKey);
+            request = directoryClient.members().get(groupKey,userKey).setFields(fields);
         } catch (IOException e) {
             LOG.error("An unknown error occurred: " + e);
         }
@@ -411,34 +650,66 @@ public class GoogleAppsSdkUtils {
      * @throws IOException
      */
     public static List<Member> retrieveGroupMembers(Directory directoryClient, String groupKey) throws IOException {
-        LOG.debug("retrieveGroupMembers() - {}", groupKey);
+        return retrieveGroupMembers(directoryClient, groupKey, memberFields);
+    }
 
+    /**
+     * retrieveGroupMembers returns a list of members of a group, with just the requested fields.
+     * @param directoryClient a Directory client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param fields the Member fields to return, null for the full resource
+     * @return a list of Members in the Group
+     * @throws IOException
+     */
+    public static List<Member> retrieveGroupMembers(Directory directoryClient, String groupKey, String fields) throws IOException {
         final List<Member> groupMembers = new ArrayList<Member>();
+        visitGroupMembers(directoryClient, groupKey, fields, new PageVisitor<Member>() {
+            public void visit(List<Member> page) {
+                groupMembers.addAll(page);
+            }
+        });
 
-        Directory.Members.List request = null;
-        try {
-            request = directoryClient.members().list(groupKey);
-        } catch (IOException e) {
-            LOG.error("An unknown error occurred: " + e);
-        }
+        return groupMembers;
+    }
 
-        do { //continue until we have all the pages read in.
-            try {
-                final Members currentPage = (Members) execute(request);
+    /**
+     * visitGroupMembers hands the members of a group to the visitor, one page at a time.
+     * @param directoryClient a Directory client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param visitor receives each page
+     * @throws IOException
+     */
+    public static void visitGroupMembers(Directory directoryClient, String groupKey, PageVisitor<Member> visitor) throws IOException {
+        visitGroupMembers(directoryClient, groupKey, memberFields, visitor);
+    }
 
-                final List<Member> members = currentPage.getMembers();
-                if (members != null) {
-                    groupMembers.addAll(members);
-                }
+    /**
+     * visitGroupMembers hands the members of a group to the visitor, one page at a time. The next page is fetched
+     * while the visitor works on the current one. A group that doesn't exist has no pages.
+     * @param directoryClient a Directory client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param fields the Member fields to return, null for the full resource
+     * @param visitor receives each page
+     * @throws IOException
+     */
+    public static void visitGroupMembers(Directory directoryClient, String groupKey, String fields, PageVisitor<Member> visitor) throws IOException {
+        LOG.debug("visitGroupMembers() - {}", groupKey);
+
+        final Directory.Members.List request = directoryClient.members().list(groupKey).setFields(listFields("members", fields));
 
-                request.setPageToken(currentPage.getNextPageToken());
-            } catch (NullPointerException ex) {
-                break;
+        visitPages(request, new Pager<Members, Member>() {
+            public List<Member> items(Members page) {
+                return page.getMembers();
             }
 
-        } while (request.getPageToken() != null && request.getPageToken().length() > 0);
+            public String nextPageToken(Members page) {
+                return page.getNextPageToken();
+            }
 
-        return groupMembers;
+            public void setPageToken(String pageToken) {
+                request.setPageToken(pageToken);
+            }
+        }, visitor);
     }
 
     /**
@@ -485,154 +756,529 @@ public class GoogleAppsSdkUtils {
     }
 
     /**
-     * handleGoogleJsonResponseException makes the handling of exponential back-off easy.
-     * @param ex the GoogleJsonResponseException being handled
-     * @param interval the exponential back-off interval
-     * @return true=no record found, false=everything was handled properly
-     * @throws GoogleJsonResponseException
+     * addUserAsync creates a user in Google without blocking the caller.
+     * @param directoryClient a Directory (service) object
+     * @param user a populated User object
+     * @return the new User object created/returned by Google, when it arrives
      */
-    private static boolean handleGoogleJsonResponseException(GoogleJsonResponseException ex, int interval)
-            throws GoogleJsonResponseException {
+    public static GoogleAppsFuture<User> addUserAsync(Directory directoryClient, User user) {
+        LOG.debug("addUserAsync() - {}", user);
 
-        final GoogleJsonError e = ex.getDetails();
+        try {
+            return executeAsync(directoryClient.users().insert(user));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
+        }
+    }
 
-        switch (e.getCode()) {
-            case 403:
-                if (e.getErrors().get(0).getReason().equals("rateLimitExceeded")
-                    || e.getErrors().get(0).getReason().equals("userRateLimitExceeded")) {
-
-                    try {
-                        LOG.warn("handleGoogleJsonResponseException() - we've exceeded a rate limit ({}) so taking a nap. (You should see if you can get the rate limit increased by Google.)", e.getErrors().get(0).getReason());
-                        Thread.sleep((1 << interval) * 1000 + randomGenerator.nextInt(1001));
-                    } catch (InterruptedException ie) {
-                        LOG.debug("handleGoogleJsonResponseException() - {}", ie);
-                    }
-                } else {
-                    LOG.info("handleGoogleJsonResponseException() - Unknown 403 error: {}", e);
-                }
+    /**
+     * removeUserAsync removes a user from Google without blocking the caller.
+     * @param directoryClient a Directory (service) object
+     * @param userKey an identifier for a user (e-mail address is the most popular)
+     * @return completes once the user is removed
+     */
+    public static GoogleAppsFuture<Void> removeUserAsync(Directory directoryClient, String userKey) {
+        LOG.debug("removeUserAsync() - {}", userKey);
 
-                break;
+        try {
+            return executeAsync(directoryClient.users().delete(userKey));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
+        }
+    }
 
-            case 404: //Not found
-                LOG.warn("handleGoogleJsonResponseException() - Not found: {}", e);
-                return true;
+    /**
+     * retrieveUserAsync looks a user up in Google without blocking the caller.
+     * @param directoryClient a Directory (service) object
+     * @param userKey an identifier for a user (e-mail address is the most popular)
+     * @return the User object returned by Google, or null if there is no such user, when it arrives
+     */
+    public static GoogleAppsFuture<User> retrieveUserAsync(Directory directoryClient, String userKey) {
+        LOG.debug("retrieveUserAsync() - {}", userKey);
 
-            case 503:
-                if (e.getErrors().get(0).getReason().equals("backendError")) {
-                    try {
-                        LOG.warn("handleGoogleJsonResponseException() - service unavailable/backend error so taking a nap.");
-                        Thread.sleep((1 << interval) * 1000 + randomGenerator.nextInt(1001));
-                    } catch (InterruptedException ie) {
-                        LOG.debug("handleGoogleJsonResponseException() - {}", ie);
-                    }
+        try {
+            return executeAsync(directoryClient.users().get(userKey).setFields(userFields));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
+        }
+    }
 
-                } else {
-                    LOG.debug("handleGoogleJsonResponseException() - Unknown 503 error: {}", e);
-                }
-                break;
+    /**
+     * addGroupAsync adds a group to Google without blocking the caller.
+     * @param directoryClient a Directory client
+     * @param group a populated Group object
+     * @return the new Group object created/returned by Google, when it arrives
+     */
+    public static GoogleAppsFuture<Group> addGroupAsync(Directory directoryClient, Group group) {
+        LOG.debug("addGroupAsync() - {}", group);
 
-            default:
-                // Other error, re-throw.
-                throw ex;
+        try {
+            return executeAsync(directoryClient.groups().insert(group));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
         }
-        return false;
     }
 
     /**
-     * execute takes a DirectoryRequest and calls the execute() method and handles exponential back-off, etc.
-     * @param request a populated DirectoryRequest object
-     * @return an output Object that should be cast in the calling method
-     * @throws IOException
+     * removeGroupAsync removes a group from Google without blocking the caller.
+     * @param directoryClient a Directory client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @return completes once the group is removed
+     */
+    public static GoogleAppsFuture<Void> removeGroupAsync(Directory directoryClient, String groupKey) {
+        LOG.debug("removeGroupAsync() - {}", groupKey);
+
+        try {
+            return executeAsync(directoryClient.groups().delete(groupKey));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
+        }
+    }
+
+    /**
+     * updateGroupAsync updates a group in Google without blocking the caller.
+     * @param directoryClient a Directory client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param group a populated Group object
+     * @return the updated Group object returned by Google, when it arrives
      */
-    private static Object execute(DirectoryRequest request) throws IOException {
-        return execute(request, 1);
+    public static GoogleAppsFuture<Group> updateGroupAsync(Directory directoryClient, String groupKey, Group group) {
+        LOG.debug("updateGroupAsync() - {}", group);
+
+        try {
+            return executeAsync(directoryClient.groups().update(groupKey, group));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
+        }
     }
 
     /**
-     * execute takes a DirectoryRequest and calls the execute() method and handles exponential back-off, etc.
-     * @param interval the count of attempts that this request has had.
-     * @param request a populated DirectoryRequest object
-     * @return an output Object that should be cast in the calling method
-     * @throws IOException
+     * retrieveGroupAsync looks a group up in Google without blocking the caller.
+     * @param directoryClient a Directory client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @return the Group object from Google, or null if there is no such group, when it arrives
      */
-    private static Object execute(DirectoryRequest request, int interval) throws IOException {
-        LOG.trace("execute() - {} request attempt #{}",request.getClass().getName().replace(request.getClass().getPackage().getName(), ""), interval);
+    public static GoogleAppsFuture<Group> retrieveGroupAsync(Directory directoryClient, String groupKey) {
+        LOG.debug("retrieveGroupAsync() - {}", groupKey);
 
         try {
-            return request.execute();
-        } catch (GoogleJsonResponseException ex) {
-            if (interval == 7) {
-                LOG.error("execute() - Retried attempt 7 times, failing request");
-                throw ex;
+            return executeAsync(directoryClient.groups().get(groupKey).setFields(groupFields));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
+        }
+    }
 
-            } else {
-                if (handleGoogleJsonResponseException(ex, interval)) { //404's return true
-                    return null;
-                } else {
-                    return execute(request, ++interval);
+    /**
+     * updateGroupSettingsAsync updates a group's settings in Google without blocking the caller.
+     * @param groupssettingsClient a Groupssettings client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param groupSettings a populated Groups (group settings) object
+     * @return the updated settings returned by Google, when they arrive
+     */
+    public static GoogleAppsFuture<com.google.api.services.groupssettings.model.Groups> updateGroupSettingsAsync(Groupssettings groupssettingsClient, String groupKey, com.google.api.services.groupssettings.model.Groups groupSettings) {
+        LOG.debug("updateGroupSettingsAsync() - {}", groupKey);
+
+        try {
+            return executeAsync(groupssettingsClient.groups().update(groupKey, groupSettings));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
+        }
+    }
+
+    /**
+     * retrieveGroupSettingsAsync looks a group's settings up in Google without blocking the caller.
+     * @param groupssettingsClient a Groupssettings client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @return the Groups object from Google, or null if there is no such group, when it arrives
+     */
+    public static GoogleAppsFuture<com.google.api.services.groupssettings.model.Groups> retrieveGroupSettingsAsync(Groupssettings groupssettingsClient, String groupKey) {
+        LOG.debug("retrieveGroupSettingsAsync() - {}", groupKey);
+
+        try {
+            return executeAsync(groupssettingsClient.groups().get(groupKey));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
+        }
+    }
+
+    /**
+     * addGroupMemberAsync adds a member to a group without blocking the caller.
+     * @param directoryClient a Directory client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param member a Member object
+     * @return the Member object stored on Google, when it arrives
+     */
+    public static GoogleAppsFuture<Member> addGroupMemberAsync(Directory directoryClient, String groupKey, Member member) {
+        LOG.debug("addGroupMemberAsync() - add {} to {}", member, groupKey);
+
+        try {
+            return executeAsync(directoryClient.members().insert(groupKey, member));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
+        }
+    }
+
+    /**
+     * updateGroupMemberAsync updates a member of a group without blocking the caller.
+     * @param directoryClient a Directory client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param userKey an identifier for a user (e-mail address is the most popular)
+     * @param member a populated member object
+     * @return the updated Member object returned by Google, when it arrives
+     */
+    public static GoogleAppsFuture<Member> updateGroupMemberAsync(Directory directoryClient, String groupKey, String userKey, Member member) {
+        LOG.debug("updateGroupMemberAsync() - {}", member);
+
+        try {
+            return executeAsync(directoryClient.members().update(groupKey, userKey, member));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
+        }
+    }
+
+    /**
+     * removeGroupMemberAsync removes a member of a group without blocking the caller.
+     * @param directoryClient a Directory client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param memberKey an identifier for a user (e-mail address is the most popular)
+     * @return completes once the member is removed
+     */
+    public static GoogleAppsFuture<Void> removeGroupMemberAsync(Directory directoryClient, String groupKey, String memberKey) {
+        LOG.debug("removeGroupMemberAsync() - remove {} from {}", memberKey, groupKey);
+
+        try {
+            return executeAsync(directoryClient.members().delete(groupKey, memberKey));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
+        }
+    }
+
+    /**
+     * retrieveGroupMemberAsync looks a group member up in Google without blocking the caller.
+     * @param directoryClient a Directory client
+     * @param groupKey an identifier for a group (e-mail address is the most popular)
+     * @param userKey an identifier for a user (e-mail address is the most popular)
+     * @return the Member object from Google, or null if it isn't a member, when it arrives
+     */
+    public static GoogleAppsFuture<Member> retrieveGroupMemberAsync(Directory directoryClient, String groupKey, String userKey) {
+        LOG.debug("retrieveGroupMemberAsync() - {} in {}", userKey, groupKey);
+
+        try {
+            return executeAsync(directoryClient.members().get(groupKey, userKey).setFields(memberFields));
+        } catch (IOException e) {
+            LOG.error("An unknown error occurred: " + e);
+            return GoogleAppsFuture.failed(e);
+        }
+    }
+
+    /**
+     * retryDelay decides what to do about an error response, without waiting. Rate limit errors (403
+     * rateLimitExceeded/userRateLimitExceeded and 429) and server errors (5xx) are retried as the call's retry policy
+     * allows; a Retry-After from Google is honoured. Anything else is a real error and isn't retried.
+     * @param ex the error Google returned
+     * @param call the retry state of the call
+     * @param bucket the rate limit the request was sent under
+     * @return how long (in milliseconds) to wait before retrying, NOT_FOUND, ALREADY_EXISTS or DO_NOT_RETRY
+     */
+    private static long retryDelay(AbstractGoogleClientRequest<?> request, GoogleJsonResponseException ex,
+                                   RetryPolicy.Call call, TokenBucket bucket) {
+        final GoogleJsonError e = ex.getDetails();
+        final int code = e != null ? e.getCode() : ex.getStatusCode();
+        final String reason = e != null && e.getErrors() != null && !e.getErrors().isEmpty() ? e.getErrors().get(0).getReason() : null;
+        final long retryAfter = RetryPolicy.parseRetryAfter(ex.getHeaders() != null ? ex.getHeaders().getRetryAfter() : null,
+                System.currentTimeMillis());
+
+        if (code == 404) {
+            LOG.warn("retryDelay() - Not found: {}", e);
+            return NOT_FOUND;
+        }
+
+        //an insert retried after a backend error may have been applied the first time
+        if (code == 409 && call.mayHaveBeenApplied()
+                && (request instanceof Directory.Members.Insert || request instanceof Directory.Users.Insert)) {
+            LOG.info("retryDelay() - A retried insert already exists, so the earlier attempt was applied: {}", e);
+            return ALREADY_EXISTS;
+        }
+
+        final long delay;
+        if (code == 429 || (code == 403 && ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)))) {
+            bucket.slowDown();
+            delay = call.nextDelay(GoogleAppsMetrics.RATE_LIMIT_EXCEEDED, retryAfter);
+            if (delay >= 0) {
+                LOG.warn("retryDelay() - we've exceeded a rate limit ({}) so taking a nap of {}ms. (You should see if you can get the rate limit increased by Google.)", reason, delay);
+            }
+
+        } else if (code >= 500) {
+            delay = call.nextDelay(GoogleAppsMetrics.BACKEND_ERROR, retryAfter);
+            if (delay >= 0) {
+                LOG.warn("retryDelay() - service unavailable/backend error ({} {}) so taking a nap of {}ms.", new Object[]{code, reason, delay});
+            }
+
+        } else {
+            LOG.info("retryDelay() - Error that won't be retried: {}", e);
+            return DO_NOT_RETRY;
+        }
+
+        return delay < 0 ? DO_NOT_RETRY : delay;
+    }
+
+    /**
+     * executeAsync sends a request on the async pool and handles back-off, etc. like execute(), but waits for the
+     * rate limit and between retries by scheduling the next attempt rather than by sleeping.
+     * @param request a populated Directory or Groupssettings request
+     * @return the response, when it arrives; null if the object was not found
+     */
+    private static <T> GoogleAppsFuture<T> executeAsync(AbstractGoogleClientRequest<T> request) {
+        final GoogleAppsFuture<T> future = new GoogleAppsFuture<T>();
+        scheduleAttempt(request, future, retryPolicyFor(request).start(), 0);
+        return future;
+    }
+
+    /**
+     * schedules an attempt of an asynchronous request once the back-off delay and the rate limit allow.
+     * @param call the retry state of the request
+     */
+    private static <T> void scheduleAttempt(final AbstractGoogleClientRequest<T> request, final GoogleAppsFuture<T> future,
+                                            final RetryPolicy.Call call, long backOff) {
+        final long delay = Math.max(backOff, bucketFor(request).reserve(1));
+        LOG.trace("executeAsync() - {} request attempt #{} in {}ms", new Object[]{request.getClass().getSimpleName(), call.getAttempts(), delay});
+
+        try {
+            asyncExecutor.schedule(new Runnable() {
+                public void run() {
+                    attempt(request, future, call);
                 }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            future.setException(e);
+        }
+    }
+
+    private static <T> void attempt(AbstractGoogleClientRequest<T> request, GoogleAppsFuture<T> future, RetryPolicy.Call call) {
+        if (future.isDone()) {
+            return;
+        }
+
+        final TokenBucket bucket = bucketFor(request);
+        final T result;
+
+        try {
+            result = timedExecute(request);
+
+        } catch (GoogleJsonResponseException ex) {
+            final long delay = retryDelay(request, ex, call, bucket);
+            if (delay == NOT_FOUND) {
+                future.set(null);
+            } else if (delay == ALREADY_EXISTS) {
+                bucket.onSuccess();
+                future.set(insertedContent(request));
+            } else if (delay == DO_NOT_RETRY) {
+                future.setException(ex);
+            } else {
+                scheduleAttempt(request, future, call, delay);
             }
-        } catch(IOException e) {
-            LOG.error("execute() - An unknown IO error occurred: " + e);
+            return;
 
-            if (interval == 7) {
-                LOG.error("Retried attempt 7 times, failing request");
-                throw e;
+        } catch (IOException e) {
+            LOG.error("executeAsync() - An unknown IO error occurred: " + e);
 
+            final long delay = call.nextDelay(e);
+            if (delay < 0) {
+                future.setException(e);
             } else {
-                return execute(request, ++interval);
+                scheduleAttempt(request, future, call, delay);
             }
+            return;
+
+        } catch (RuntimeException e) {
+            future.setException(e);
+            return;
         }
 
+        bucket.onSuccess();
+        future.set(result);
     }
 
+    /**
+     * @return the rate limit a request is sent under
+     */
+    private static TokenBucket bucketFor(AbstractGoogleClientRequest<?> request) {
+        final boolean read = request.getRequestMethod().equals("GET");
+
+        if (request instanceof GroupssettingsRequest) {
+            return read ? groupssettingsReadBucket : groupssettingsWriteBucket;
+        }
+        return read ? directoryReadBucket : directoryWriteBucket;
+    }
 
     /**
-     * execute takes a GroupssettingsRequest and calls the execute() method and handles exponential back-off, etc.
-     * @param request a populated GroupssettingsRequest object
-     * @return an output Object that should be cast in the calling method
-     * @throws IOException
+     * @return the retry policy for a request: inserts (POST) can't safely be repeated, everything else can
      */
-    private static Object execute(GroupssettingsRequest request) throws IOException {
-        return execute(request, 1);
+    private static RetryPolicy retryPolicyFor(AbstractGoogleClientRequest<?> request) {
+        return request.getRequestMethod().equals("POST") ? insertRetryPolicy : idempotentRetryPolicy;
     }
 
     /**
-     * execute takes a GroupssettingsRequest and calls the execute() method and handles exponential back-off, etc.
-     * @param request a populated GroupsettingsRequest object
-     * @param interval the count of attempts that this request has had.
-     * @return an output Object that should be cast in the calling method
-     * @throws IOException
+     * execute takes a Directory or Groupssettings request, calls its execute() method and handles rate limits,
+     * back-off and retries as the request's retry policy allows.
+     * @param request a populated DirectoryRequest or GroupssettingsRequest object
+     * @return an output Object that should be cast in the calling method; null if the object was not found
+     * @throws IOException if the request failed and won't be retried
      */
-    private static Object execute(GroupssettingsRequest request, int interval) throws IOException {
-        LOG.trace("execute() - {} request attempt #{}",request.getClass().getName().replace(request.getClass().getPackage().getName(), ""), interval);
+    private static Object execute(AbstractGoogleClientRequest<?> request) throws IOException {
+        final TokenBucket bucket = bucketFor(request);
+        final RetryPolicy.Call call = retryPolicyFor(request).start();
 
-        try {
-            return request.execute();
-        } catch (GoogleJsonResponseException ex) {
-            if (interval == 7) {
-                LOG.error("execute() - Retried attempt 7 times, failing request");
-                throw ex;
+        while (true) {
+            LOG.trace("execute() - {} request attempt #{}", request.getClass().getSimpleName(), call.getAttempts());
+            bucket.acquire();
 
-            } else {
-                if (handleGoogleJsonResponseException(ex, interval)) { //404's return true
+            final long delay;
+            try {
+                final Object result = timedExecute(request);
+                bucket.onSuccess();
+                return result;
+
+            } catch (GoogleJsonResponseException ex) {
+                delay = retryDelay(request, ex, call, bucket);
+                if (delay == NOT_FOUND) {
                     return null;
-                } else {
-                    return execute(request, ++interval);
+                } else if (delay == ALREADY_EXISTS) {
+                    bucket.onSuccess();
+                    return insertedContent(request);
+                } else if (delay == DO_NOT_RETRY) {
+                    throw ex;
+                }
+
+            } catch (IOException e) {
+                LOG.error("execute() - An unknown IO error occurred: " + e);
+
+                delay = call.nextDelay(e);
+                if (delay < 0) {
+                    throw e;
                 }
             }
-        } catch(IOException e) {
-            LOG.error("execute() - An unknown IO error occurred: " + e);
 
-            if (interval == 7) {
-                LOG.error("Retried attempt 7 times, failing request");
-                throw e;
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting to retry a request");
+            }
+        }
+    }
+
+    /**
+     * @return the object an insert request sent, standing in for the response of an insert that was already applied
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T insertedContent(AbstractGoogleClientRequest<T> request) {
+        return (T) ((AbstractGoogleJsonClientRequest<T>) request).getJsonContent();
+    }
 
-            } else {
-                return execute(request, ++interval);
+    private static <T> T timedExecute(AbstractGoogleClientRequest<T> request) throws IOException {
+        final Timer.Context timer = GoogleAppsMetrics.requestTimer(request).time();
+        try {
+            return request.execute();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * @param collection the name of the list response's item collection, e.g. "users"
+     * @param fields the item fields, null for the full resource
+     * @return the projection for a list request, keeping the page token
+     */
+    private static String listFields(String collection, String fields) {
+        return fields == null ? null : "nextPageToken," + collection + "(" + fields + ")";
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    /**
+     * visitPages executes a list request page by page, handing each page to the visitor. As soon as a page arrives
+     * the request for the following one is started on a background thread, so the network round trip overlaps with
+     * the visitor's work and at most two pages are held at once.
+     * @param request the list request; its page token is advanced by the pager
+     * @param pager reads the pages of this kind of listing
+     * @param visitor receives each non-empty page
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private static <P, T> void visitPages(final DirectoryRequest<P> request, Pager<P, T> pager, PageVisitor<T> visitor) throws IOException {
+        P page = (P) execute(request);
+        Future<Object> next = null;
+
+        try {
+            while (page != null) {
+                final String pageToken = pager.nextPageToken(page);
+                if (pageToken != null && pageToken.length() > 0) {
+                    pager.setPageToken(pageToken);
+                    next = pagePrefetcher.submit(new Callable<Object>() {
+                        public Object call() throws IOException {
+                            return execute(request);
+                        }
+                    });
+                }
+
+                final List<T> items = pager.items(page);
+                if (items != null && !items.isEmpty()) {
+                    visitor.visit(items);
+                }
+
+                page = next == null ? null : (P) await(next);
+                next = null;
+            }
+        } finally {
+            if (next != null) {
+                next.cancel(true);
             }
         }
+    }
 
+    private static Object await(Future<Object> future) throws IOException {
+        try {
+            return future.get();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the next page");
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
     }
 
+    /**
+     * Pager knows how to read one kind of paged list response.
+     */
+    private interface Pager<P, T> {
+        List<T> items(P page);
+
+        String nextPageToken(P page);
+
+        void setPageToken(String pageToken);
+    }
 }
@@ -19,6 +19,7 @@ package edu.internet2.middleware.changelogconsumer.googleapps;
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
@@ -32,9 +33,14 @@ import com.google.api.services.groupssettings.Groupssettings;
 import com.google.api.services.groupssettings.model.Groups;
 import edu.internet2.middleware.changelogconsumer.googleapps.cache.Cache;
 import edu.internet2.middleware.changelogconsumer.googleapps.cache.GoogleCacheManager;
+import edu.internet2.middleware.changelogconsumer.googleapps.cache.GoogleCacheRefresher;
 import edu.internet2.middleware.changelogconsumer.googleapps.utils.AddressFormatter;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsMetrics;
 import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsSyncProperties;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GroupRoleResolver;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.MembershipIndex;
 import edu.internet2.middleware.changelogconsumer.googleapps.utils.RecentlyManipulatedObjectsList;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.RetryPolicy;
 import edu.internet2.middleware.grouper.*;
 import edu.internet2.middleware.grouper.attr.AttributeDef;
 import edu.internet2.middleware.grouper.attr.AttributeDefName;
@@ -47,11 +53,13 @@ import edu.internet2.middleware.grouper.misc.GrouperDAOFactory;
 import edu.internet2.middleware.grouper.util.GrouperUtil;
 import edu.internet2.middleware.subject.Subject;
 import edu.internet2.middleware.subject.provider.SubjectTypeEnum;
+import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -79,34 +87,188 @@ public class GoogleGrouperConnector {
     //Grouper ones are easier to refresh.
     private Cache<Subject> grouperSubjects;
     private Cache<edu.internet2.middleware.grouper.Group> grouperGroups;
-    private HashMap<String, String> syncedObjects;
+    private ConcurrentHashMap<String, String> syncedObjects;
 
     private String consumerName;
     private AttributeDefName syncAttribute;
     private GoogleAppsSyncProperties properties;
     private AddressFormatter addressFormatter;
     private RecentlyManipulatedObjectsList recentlyManipulatedObjectsList;
+    private GoogleCacheRefresher cacheRefresher;
+    private GroupRoleResolver roleResolver;
+    private MembershipIndex membershipIndex;
+    private long membershipIndexSaved;
+    private HttpTransport httpTransport;
+    private final Object userCreationLock = new Object();
+
+    /** Marks batched members as recently manipulated once Google has accepted them. */
+    private final GoogleAppsMemberBatch.Callback recentlyManipulatedCallback = new MembershipCallback();
+
+    /** Also adds batched members to the membership index once Google has accepted them. */
+    private final GoogleAppsMemberBatch.Callback memberAddedCallback = new MembershipCallback() {
+        @Override
+        public void onSuccess(String groupKey, String memberKey) {
+            super.onSuccess(groupKey, memberKey);
+            membershipIndex.add(groupKey, memberKey);
+        }
+    };
+
+    /** Also drops batched removals from the membership index once the member is gone from Google. */
+    private final GoogleAppsMemberBatch.Callback memberRemovedCallback = new MembershipCallback() {
+        @Override
+        public void onSuccess(String groupKey, String memberKey) {
+            super.onSuccess(groupKey, memberKey);
+            membershipIndex.remove(groupKey, memberKey);
+        }
+
+        @Override
+        public void onFailure(String groupKey, String memberKey, GoogleJsonError error) {
+            if (error != null && error.getCode() == 404) {
+                membershipIndex.remove(groupKey, memberKey);
+                return;
+            }
+            super.onFailure(groupKey, memberKey, error);
+        }
+    };
 
     public GoogleGrouperConnector() {
-        grouperSubjects = new Cache<Subject>();
-        grouperGroups = new Cache<edu.internet2.middleware.grouper.Group>();
-        syncedObjects = new HashMap<String, String>();
+        grouperSubjects = new Cache<Subject>("grouperSubjects");
+        grouperGroups = new Cache<edu.internet2.middleware.grouper.Group>("grouperGroups");
+        syncedObjects = new ConcurrentHashMap<String, String>();
         addressFormatter = new AddressFormatter();
+        roleResolver = new GroupRoleResolver();
+        membershipIndex = new MembershipIndex();
     }
 
+    /**
+     * Prepares the connector for a run. The HTTP transport, credentials (and their access tokens) and the Google
+     * clients are only built the first time, or when the consumer's configuration has changed since the last call,
+     * so a long running change log consumer keeps its pooled connections and tokens between batches.
+     * @param consumerName the change log consumer name
+     * @param properties the consumer's current configuration
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
     public void initialize(String consumerName, final GoogleAppsSyncProperties properties) throws GeneralSecurityException, IOException {
+        final boolean reconfigure = directoryClient == null || !consumerName.equals(this.consumerName) || !properties.equals(this.properties);
+
         this.consumerName = consumerName;
         this.properties = properties;
 
-        final HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+        if (reconfigure) {
+            LOG.debug("Google Apps Consumer '{}' - Building the Google clients.", consumerName);
+            buildClients();
+        } else {
+            LOG.trace("Google Apps Consumer '{}' - Configuration unchanged, reusing the Google clients.", consumerName);
+        }
+
+        grouperSubjects.setCacheValidity(5);
+        grouperSubjects.seed(1000);
+
+        grouperGroups.setCacheValidity(5);
+        grouperGroups.seed(100);
+
+        roleResolver.setWhoCanManage(properties.getWhoCanManage())
+                .setCacheValidity(5)
+                .clear();
+
+        if (reconfigure) {
+            membershipIndex.clear();
+        }
+
+        // a full sync elsewhere may have saved a newer index since this one was loaded
+        final File indexFile = getMembershipIndexFile();
+        if (!membershipIndex.isPopulated() || (indexFile != null && indexFile.lastModified() > membershipIndexSaved)) {
+            loadMembershipIndex();
+        }
+    }
+
+    /**
+     * Loads the membership index saved by the last complete full sync, if there is one, along with the changes
+     * journaled since. Once loaded, the index is kept up to date as members are added and removed.
+     */
+    private void loadMembershipIndex() {
+        final File file = getMembershipIndexFile();
+        if (file == null) {
+            return;
+        }
+
+        try {
+            membershipIndexSaved = file.lastModified();
+            if (membershipIndex.load(file)) {
+                LOG.info("Google Apps Consumer '{}' - Loaded the membership index with {} groups.", consumerName, membershipIndex.groupCount());
+            }
+        } catch (IOException e) {
+            membershipIndex.clear();
+            LOG.warn("Google Apps Consumer '{}' - Unable to load the membership index: {}", consumerName, e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the membership index for the change log consumer, after a full sync has filled it.
+     */
+    public void saveMembershipIndex() {
+        final File file = getMembershipIndexFile();
+        if (file == null) {
+            return;
+        }
+
+        try {
+            membershipIndex.save(file);
+            membershipIndexSaved = file.lastModified();
+        } catch (IOException e) {
+            LOG.warn("Google Apps Consumer '{}' - Unable to save the membership index: {}", consumerName, e.getMessage());
+        }
+    }
+
+    /**
+     * Journals the changes the change log consumer makes to the membership index, so a restarted consumer doesn't
+     * go back to the index of the last full sync.
+     */
+    public void startMembershipIndexJournal() {
+        final File file = getMembershipIndexFile();
+        if (file != null) {
+            membershipIndex.startJournal(file);
+        }
+    }
+
+    /**
+     * Appends the membership index changes made since the last call to its journal.
+     */
+    public void flushMembershipIndexJournal() {
+        try {
+            membershipIndex.flushJournal();
+        } catch (IOException e) {
+            LOG.warn("Google Apps Consumer '{}' - Unable to journal the membership index: {}", consumerName, e.getMessage());
+        }
+    }
 
-        final GoogleCredential googleDirectoryCredential = GoogleAppsSdkUtils.getGoogleDirectoryCredential(
-                properties.getServiceAccountEmail(), properties.getServiceAccountPKCS12FilePath(), properties.getServiceImpersonationUser(),
-                httpTransport, JSON_FACTORY);
+    private File getMembershipIndexFile() {
+        return properties.getStateDirectory().isEmpty() ? null : new File(properties.getStateDirectory(), consumerName + ".membershipIndex");
+    }
+
+    private void buildClients() throws GeneralSecurityException, IOException {
+        stopCacheRefresher();
 
-        final GoogleCredential googleGroupssettingsCredential = GoogleAppsSdkUtils.getGoogleGroupssettingsCredential(
-                properties.getServiceAccountEmail(), properties.getServiceAccountPKCS12FilePath(), properties.getServiceImpersonationUser(),
-                httpTransport, JSON_FACTORY);
+        final HttpTransport httpTransport;
+        GoogleCredential googleDirectoryCredential = null;
+        GoogleCredential googleGroupssettingsCredential = null;
+
+        if (this.httpTransport != null) {
+            LOG.warn("Google Apps Consumer '{}' - Using a supplied HTTP transport without credentials.", consumerName);
+            httpTransport = this.httpTransport;
+
+        } else {
+            httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+
+            googleDirectoryCredential = GoogleAppsSdkUtils.getGoogleDirectoryCredential(
+                    properties.getServiceAccountEmail(), properties.getServiceAccountPKCS12FilePath(), properties.getServiceImpersonationUser(),
+                    httpTransport, JSON_FACTORY);
+
+            googleGroupssettingsCredential = GoogleAppsSdkUtils.getGoogleGroupssettingsCredential(
+                    properties.getServiceAccountEmail(), properties.getServiceAccountPKCS12FilePath(), properties.getServiceImpersonationUser(),
+                    httpTransport, JSON_FACTORY);
+        }
 
         directoryClient = new Directory.Builder(httpTransport, JSON_FACTORY, googleDirectoryCredential)
                 .setApplicationName("Google Apps Grouper Provisioner")
@@ -116,20 +278,104 @@ public class GoogleGrouperConnector {
                 .setApplicationName("Google Apps Grouper Provisioner")
                 .build();
 
+        GoogleAppsSdkUtils.setRateLimits(properties.getDirectoryReadRateLimit(), properties.getDirectoryWriteRateLimit(),
+                properties.getGroupssettingsReadRateLimit(), properties.getGroupssettingsWriteRateLimit());
+        GoogleAppsSdkUtils.setFieldProjections(properties.getGoogleUserFields(), properties.getGoogleGroupFields(),
+                properties.getGoogleMemberFields());
+        GoogleAppsSdkUtils.setRetryPolicies(retryPolicy(true), retryPolicy(false));
+        GoogleAppsSdkUtils.setAsyncThreadCount(properties.getAsyncRequestThreadCount());
+        GoogleAppsMetrics.configure(properties.shouldPublishMetricsOverJmx(), properties.getMetricsReportInterval(),
+                properties.getMetricsCsvDirectory());
+
         addressFormatter.setGroupIdentifierExpression(properties.getGroupIdentifierExpression())
                 .setSubjectIdentifierExpression(properties.getSubjectIdentifierExpression())
                 .setDomain(properties.getGoogleDomain());
 
         GoogleCacheManager.googleUsers().setCacheValidity(properties.getGoogleUserCacheValidity());
         GoogleCacheManager.googleGroups().setCacheValidity(properties.getGoogleGroupCacheValidity());
+        GoogleCacheManager.googleUsers().setMaxSize(properties.getGoogleUserCacheMaxSize());
+        GoogleCacheManager.googleGroups().setMaxSize(properties.getGoogleGroupCacheMaxSize());
+        GoogleCacheManager.setSnapshotDirectory(properties.getStateDirectory().isEmpty() ? null : new File(properties.getStateDirectory()),
+                properties.getGoogleCacheSnapshotMaxAge());
 
-        grouperSubjects.setCacheValidity(5);
-        grouperSubjects.seed(1000);
+        drainDelayedChanges();
+        recentlyManipulatedObjectsList = new RecentlyManipulatedObjectsList(properties.getRecentlyManipulatedQueueSize(), properties.getRecentlyManipulatedQueueDelay());
+    }
 
-        grouperGroups.setCacheValidity(5);
-        grouperGroups.seed(100);
+    /**
+     * @param idempotent whether the policy is for calls that can safely be repeated
+     * @return a retry policy configured from the consumer's properties
+     */
+    private RetryPolicy retryPolicy(boolean idempotent) {
+        return new RetryPolicy(idempotent)
+                .setMaxAttempts(properties.getRetryMaxAttempts())
+                .setDeadline(properties.getRetryDeadline() * 1000L)
+                .setBaseDelay(properties.getRetryBaseDelay())
+                .setMaxDelay(properties.getRetryMaxDelay());
+    }
 
-        recentlyManipulatedObjectsList = new RecentlyManipulatedObjectsList(properties.getRecentlyManipulatedQueueSize(), properties.getRecentlyManipulatedQueueDelay());
+    /**
+     * Starts reloading the Google user and group caches on a background thread, ahead of their expiration.
+     * Caches that have not been loaded yet are warm started from their snapshots when possible; that is only good
+     * enough for the change log consumer's lookups, so the full sync uses loadGoogleCacheForFullSync() instead.
+     * Does nothing if the refresher is already running for the current configuration.
+     */
+    public void startCacheRefresher() {
+        if (GoogleCacheManager.googleUsers().isExpired()) {
+            warmStartGooUsersCache();
+        }
+        if (GoogleCacheManager.googleGroups().isExpired()) {
+            warmStartGooGroupsCache();
+        }
+
+        cacheRefresher().start(properties.getGoogleUserCacheValidity(), properties.getGoogleGroupCacheValidity());
+    }
+
+    /**
+     * Stops the background cache refresher, if one is running.
+     */
+    public void stopCacheRefresher() {
+        if (cacheRefresher != null) {
+            cacheRefresher.stop();
+            cacheRefresher = null;
+        }
+    }
+
+    private GoogleCacheRefresher cacheRefresher() {
+        if (cacheRefresher == null) {
+            cacheRefresher = new GoogleCacheRefresher(consumerName, directoryClient);
+        }
+        return cacheRefresher;
+    }
+
+    /**
+     * Seeds the user cache from its snapshot, if there is a usable one, and re-validates it against Google in the
+     * background.
+     * @return true if the cache was seeded from the snapshot
+     */
+    private boolean warmStartGooUsersCache() {
+        if (!GoogleCacheManager.loadGoogleUsersSnapshot()) {
+            return false;
+        }
+
+        LOG.info("Google Apps Consumer '{}' - Loaded the userCache from its snapshot, re-validating it in the background.", consumerName);
+        cacheRefresher().refreshUsersSoon();
+        return true;
+    }
+
+    /**
+     * Seeds the group cache from its snapshot, if there is a usable one, and re-validates it against Google in the
+     * background.
+     * @return true if the cache was seeded from the snapshot
+     */
+    private boolean warmStartGooGroupsCache() {
+        if (!GoogleCacheManager.loadGoogleGroupsSnapshot()) {
+            return false;
+        }
+
+        LOG.info("Google Apps Consumer '{}' - Loaded the groupCache from its snapshot, re-validating it in the background.", consumerName);
+        cacheRefresher().refreshGroupsSoon();
+        return true;
     }
 
     /**
@@ -143,15 +389,19 @@ public class GoogleGrouperConnector {
     public void populateGooUsersCache(Directory directory) {
         LOG.debug("Google Apps Consumer '{}' - Populating the userCache.", consumerName);
 
-        if (GoogleCacheManager.googleUsers().isExpired()) {
+        if (GoogleCacheManager.googleUsers().isExpired() && !warmStartGooUsersCache()) {
+            GoogleCacheManager.googleUsers().startLoad();
             try {
                 final List<User> list = GoogleAppsSdkUtils.retrieveAllUsers(directoryClient);
                 GoogleCacheManager.googleUsers().seed(list);
+                GoogleCacheManager.saveGoogleUsersSnapshot(list);
 
             } catch (GoogleJsonResponseException e) {
                 LOG.error("Google Apps Consumer '{}' - Something bad happened when populating the userCache: {}", consumerName, e);
             } catch (IOException e) {
                 LOG.error("Google Apps Consumer '{}' - Something bad happened when populating the userCache: {}", consumerName, e);
+            } finally {
+                GoogleCacheManager.googleUsers().endLoad();
             }
         }
     }
@@ -159,10 +409,9 @@ public class GoogleGrouperConnector {
     public void populateGooGroupsCache(Directory directory) {
         LOG.debug("Google Apps Consumer '{}' - Populating the groupCache.", consumerName);
 
-        if (GoogleCacheManager.googleGroups().isExpired()) {
+        if (GoogleCacheManager.googleGroups().isExpired() && !warmStartGooGroupsCache()) {
             try {
-                final List<Group> list = GoogleAppsSdkUtils.retrieveAllGroups(directoryClient);
-                GoogleCacheManager.googleGroups().seed(list);
+                retrieveAllGooGroups();
 
             } catch (GoogleJsonResponseException e) {
                 LOG.error("Google Apps Consumer '{}' - Something bad happened when populating the groupCache: {}", consumerName, e);
@@ -172,6 +421,45 @@ public class GoogleGrouperConnector {
         }
     }
 
+    /**
+     * Loads the Google caches for a full sync straight from Google. Snapshots are not used: the full sync diffs
+     * against these objects, so they must be current. The group list is returned as well as cached, because the group
+     * cache may be size bounded and its entries expire, so it can't be relied on to list every group.
+     * @return every Google group
+     * @throws IOException
+     */
+    public List<Group> loadGoogleCacheForFullSync() throws IOException {
+        final List<User> users;
+        GoogleCacheManager.googleUsers().startLoad();
+        try {
+            users = GoogleAppsSdkUtils.retrieveAllUsers(directoryClient);
+            GoogleCacheManager.googleUsers().seed(users);
+        } finally {
+            GoogleCacheManager.googleUsers().endLoad();
+        }
+        GoogleCacheManager.saveGoogleUsersSnapshot(users);
+
+        return retrieveAllGooGroups();
+    }
+
+    /**
+     * Loads every group from Google and swaps them into the group cache.
+     * @return every Google group
+     * @throws IOException
+     */
+    private List<Group> retrieveAllGooGroups() throws IOException {
+        final List<Group> list;
+        GoogleCacheManager.googleGroups().startLoad();
+        try {
+            list = GoogleAppsSdkUtils.retrieveAllGroups(directoryClient);
+            GoogleCacheManager.googleGroups().seed(list);
+        } finally {
+            GoogleCacheManager.googleGroups().endLoad();
+        }
+        GoogleCacheManager.saveGoogleGroupsSnapshot(list);
+        return list;
+    }
+
     public Group fetchGooGroup(String groupKey) throws IOException {
         Group group = GoogleCacheManager.googleGroups().get(groupKey);
         if (group == null) {
@@ -251,28 +539,148 @@ public class GoogleGrouperConnector {
                         .setGivenName(subject.getAttributeValue(properties.getSubjectGivenNameField()));
             }
 
-            newUser = GoogleAppsSdkUtils.addUser(directoryClient, newUser);
-            GoogleCacheManager.googleUsers().put(newUser);
+            synchronized (userCreationLock) {
+                //another change log lane or full sync worker may have just created this user
+                final User existingUser = GoogleCacheManager.googleUsers().get(newUser.getPrimaryEmail());
+                if (existingUser != null) {
+                    return existingUser;
+                }
+
+                newUser = GoogleAppsSdkUtils.addUser(directoryClient, newUser);
+                GoogleCacheManager.googleUsers().put(newUser);
+            }
         }
 
         return newUser;
     }
 
     public void createGooMember(Group group, User user, String role) throws IOException {
+        final String groupKey = group.getEmail();
+        final Member gMember = new Member();
+        gMember.setEmail(user.getPrimaryEmail())
+                .setRole(role);
+
+        recentlyManipulatedObjectsList.submit(gMember.getEmail(), null, new RecentlyManipulatedObjectsList.Operation() {
+            public void run() throws IOException {
+                GoogleAppsSdkUtils.addGroupMember(directoryClient, groupKey, gMember);
+                membershipIndex.add(groupKey, gMember.getEmail());
+            }
+        });
+    }
+
+    /**
+     * Queues a new member in a batch; the membership is created when the batch is flushed. If the user was
+     * manipulated recently, the membership is created on its own once the user is ready instead.
+     * @param batch the batch to add the member to
+     * @param group the Google group
+     * @param user the Google user
+     * @param role the member's role
+     * @throws IOException
+     */
+    public void createGooMember(GoogleAppsMemberBatch batch, Group group, User user, String role) throws IOException {
         final Member gMember = new Member();
         gMember.setEmail(user.getPrimaryEmail())
                 .setRole(role);
 
-        recentlyManipulatedObjectsList.delayIfNeeded(gMember.getEmail());
-        GoogleAppsSdkUtils.addGroupMember(directoryClient, group.getEmail(), gMember);
-        recentlyManipulatedObjectsList.add(gMember.getEmail());
+        if (recentlyManipulatedObjectsList.isWaiting(gMember.getEmail())) {
+            createGooMember(group, user, role);
+        } else {
+            batch.addGroupMember(group.getEmail(), gMember, memberAddedCallback);
+        }
+    }
+
+    /**
+     * Queues the removal of a member in a batch; the membership is removed when the batch is flushed. If the user
+     * was manipulated recently, the membership is removed on its own once the user is ready instead.
+     * @param batch the batch to add the removal to
+     * @param groupKey the Google group's address
+     * @param userKey the Google user's address
+     * @throws IOException
+     */
+    public void removeGooMember(GoogleAppsMemberBatch batch, final String groupKey, final String userKey) throws IOException {
+        if (recentlyManipulatedObjectsList.isWaiting(userKey)) {
+            recentlyManipulatedObjectsList.submit(userKey, null, new RecentlyManipulatedObjectsList.Operation() {
+                public void run() throws IOException {
+                    GoogleAppsSdkUtils.removeGroupMember(directoryClient, groupKey, userKey);
+                    membershipIndex.remove(groupKey, userKey);
+                }
+            });
+        } else {
+            batch.removeGroupMember(groupKey, userKey, memberRemovedCallback);
+        }
+    }
+
+    /**
+     * Queues a member's role change in a batch; the role is changed when the batch is flushed. If the user was
+     * manipulated recently, the role is changed on its own once the user is ready instead.
+     * @param batch the batch to add the change to
+     * @param groupKey the Google group's address
+     * @param userKey the Google user's address
+     * @param role the member's new role
+     * @throws IOException
+     */
+    public void updateGooMember(GoogleAppsMemberBatch batch, final String groupKey, final String userKey, String role) throws IOException {
+        final Member member = new Member();
+        member.setEmail(userKey)
+                .setRole(role);
+
+        if (recentlyManipulatedObjectsList.isWaiting(userKey)) {
+            recentlyManipulatedObjectsList.submit(userKey, "role:" + groupKey, new RecentlyManipulatedObjectsList.Operation() {
+                public void run() throws IOException {
+                    GoogleAppsSdkUtils.updateGroupMember(directoryClient, groupKey, userKey, member);
+                }
+            });
+        } else {
+            batch.updateGroupMember(groupKey, userKey, member, recentlyManipulatedCallback);
+        }
+    }
+
+    /**
+     * Sets the change log sequence number the calling thread is processing, so a delayed change that fails can be
+     * traced back to it.
+     * @param sequenceNumber the sequence number, or null when the calling thread is done with the change log entry
+     */
+    public void setSequenceNumber(Long sequenceNumber) {
+        recentlyManipulatedObjectsList.setSequenceNumber(sequenceNumber);
+    }
+
+    /**
+     * Sets the group the calling thread is reconciling, so a delayed change that fails can be traced back to it.
+     * @param groupAddress the group's address, or null when the calling thread is done with the group
+     */
+    public void setDelayedChangeGroup(String groupAddress) {
+        recentlyManipulatedObjectsList.setGroup(groupAddress);
+    }
+
+    /**
+     * @param groupAddress a group's address
+     * @return true if changes made for the group were held back and haven't run yet, or failed when they did
+     */
+    public boolean hasDelayedChanges(String groupAddress) {
+        return recentlyManipulatedObjectsList.hasParkedChanges(groupAddress);
+    }
+
+    /**
+     * Waits for the changes that were held back because their objects had been manipulated recently.
+     * @return the changes that failed
+     */
+    public RecentlyManipulatedObjectsList.Failures drainDelayedChanges() {
+        return recentlyManipulatedObjectsList == null
+                ? new RecentlyManipulatedObjectsList.Failures(0, null, Collections.<String>emptySet())
+                : recentlyManipulatedObjectsList.drain();
+    }
+
+    /**
+     * @return a new membership batch bound to this connector's Directory client
+     */
+    public GoogleAppsMemberBatch newMemberBatch() {
+        return new GoogleAppsMemberBatch(directoryClient, properties.getGoogleBatchSize());
     }
 
     public void createGooGroupIfNecessary(edu.internet2.middleware.grouper.Group grouperGroup) throws IOException {
         final String groupKey = addressFormatter.qualifyGroupAddress(grouperGroup.getName());
 
         Group googleGroup = fetchGooGroup(groupKey);
-        recentlyManipulatedObjectsList.delayIfNeeded(groupKey);
 
         if (googleGroup == null) {
             googleGroup = new Group();
@@ -284,43 +692,48 @@ public class GoogleGrouperConnector {
             GoogleCacheManager.googleGroups().put(GoogleAppsSdkUtils.addGroup(directoryClient, googleGroup));
             recentlyManipulatedObjectsList.add(groupKey);
 
-            recentlyManipulatedObjectsList.delayIfNeeded(groupKey);
-            final Groups groupSettings = GoogleAppsSdkUtils.retrieveGroupSettings(groupssettingsClient, groupKey);
-            final Groups defaultGroupSettings = properties.getDefaultGroupSettings();
-            groupSettings.setWhoCanViewMembership(defaultGroupSettings.getWhoCanViewMembership())
-                    .setWhoCanInvite(defaultGroupSettings.getWhoCanInvite())
-                    .setAllowExternalMembers(defaultGroupSettings.getAllowExternalMembers())
-                    .setWhoCanPostMessage(defaultGroupSettings.getWhoCanPostMessage())
-                    .setAllowWebPosting(defaultGroupSettings.getAllowWebPosting())
-                    .setPrimaryLanguage(defaultGroupSettings.getPrimaryLanguage())
-                    .setMaxMessageBytes(defaultGroupSettings.getMaxMessageBytes())
-                    .setIsArchived(defaultGroupSettings.getIsArchived())
-                    .setMessageModerationLevel(defaultGroupSettings.getMessageModerationLevel())
-                    .setSpamModerationLevel(defaultGroupSettings.getSpamModerationLevel())
-                    .setReplyTo(defaultGroupSettings.getReplyTo())
-                    .setCustomReplyTo(defaultGroupSettings.getCustomReplyTo())
-                    .setSendMessageDenyNotification(defaultGroupSettings.getSendMessageDenyNotification())
-                    .setDefaultMessageDenyNotificationText(defaultGroupSettings.getDefaultMessageDenyNotificationText())
-                    .setShowInGroupDirectory(defaultGroupSettings.getShowInGroupDirectory())
-                    .setAllowGoogleCommunication(defaultGroupSettings.getAllowGoogleCommunication())
-                    .setMembersCanPostAsTheGroup(defaultGroupSettings.getMembersCanPostAsTheGroup())
-                    .setMessageDisplayFont(defaultGroupSettings.getMessageDisplayFont())
-                    .setIncludeInGlobalAddressList(defaultGroupSettings.getIncludeInGlobalAddressList());
-            GoogleAppsSdkUtils.updateGroupSettings(groupssettingsClient, groupKey, groupSettings);
-            recentlyManipulatedObjectsList.add(groupKey);
-
+            //The new group's settings aren't available straight away; they are applied once the group is ready.
+            recentlyManipulatedObjectsList.submit(groupKey, null, new RecentlyManipulatedObjectsList.Operation() {
+                public void run() throws IOException {
+                    final Groups groupSettings = GoogleAppsSdkUtils.retrieveGroupSettings(groupssettingsClient, groupKey);
+                    final Groups defaultGroupSettings = properties.getDefaultGroupSettings();
+                    groupSettings.setWhoCanViewMembership(defaultGroupSettings.getWhoCanViewMembership())
+                            .setWhoCanInvite(defaultGroupSettings.getWhoCanInvite())
+                            .setAllowExternalMembers(defaultGroupSettings.getAllowExternalMembers())
+                            .setWhoCanPostMessage(defaultGroupSettings.getWhoCanPostMessage())
+                            .setAllowWebPosting(defaultGroupSettings.getAllowWebPosting())
+                            .setPrimaryLanguage(defaultGroupSettings.getPrimaryLanguage())
+                            .setMaxMessageBytes(defaultGroupSettings.getMaxMessageBytes())
+                            .setIsArchived(defaultGroupSettings.getIsArchived())
+                            .setMessageModerationLevel(defaultGroupSettings.getMessageModerationLevel())
+                            .setSpamModerationLevel(defaultGroupSettings.getSpamModerationLevel())
+                            .setReplyTo(defaultGroupSettings.getReplyTo())
+                            .setCustomReplyTo(defaultGroupSettings.getCustomReplyTo())
+                            .setSendMessageDenyNotification(defaultGroupSettings.getSendMessageDenyNotification())
+                            .setDefaultMessageDenyNotificationText(defaultGroupSettings.getDefaultMessageDenyNotificationText())
+                            .setShowInGroupDirectory(defaultGroupSettings.getShowInGroupDirectory())
+                            .setAllowGoogleCommunication(defaultGroupSettings.getAllowGoogleCommunication())
+                            .setMembersCanPostAsTheGroup(defaultGroupSettings.getMembersCanPostAsTheGroup())
+                            .setMessageDisplayFont(defaultGroupSettings.getMessageDisplayFont())
+                            .setIncludeInGlobalAddressList(defaultGroupSettings.getIncludeInGlobalAddressList());
+                    GoogleAppsSdkUtils.updateGroupSettings(groupssettingsClient, groupKey, groupSettings);
+                }
+            });
 
         } else {
-            recentlyManipulatedObjectsList.delayIfNeeded(groupKey);
-            Groups groupssettings = GoogleAppsSdkUtils.retrieveGroupSettings(groupssettingsClient, groupKey);
-
-            if (groupssettings.getArchiveOnly().equalsIgnoreCase("true")) {
-                groupssettings.setArchiveOnly("false");
-                GoogleAppsSdkUtils.updateGroupSettings(groupssettingsClient, groupKey, groupssettings);
-                recentlyManipulatedObjectsList.add(groupKey);
-            }
+            recentlyManipulatedObjectsList.submit(groupKey, "unarchive", new RecentlyManipulatedObjectsList.Operation() {
+                public void run() throws IOException {
+                    Groups groupssettings = GoogleAppsSdkUtils.retrieveGroupSettings(groupssettingsClient, groupKey);
+
+                    if (groupssettings.getArchiveOnly().equalsIgnoreCase("true")) {
+                        groupssettings.setArchiveOnly("false");
+                        GoogleAppsSdkUtils.updateGroupSettings(groupssettingsClient, groupKey, groupssettings);
+                    }
+                }
+            });
         }
 
+        final GoogleAppsMemberBatch batch = newMemberBatch();
         Set<edu.internet2.middleware.grouper.Member> members = grouperGroup.getMembers();
         for (edu.internet2.middleware.grouper.Member member : members) {
             if (member.getSubjectType() == SubjectTypeEnum.PERSON) {
@@ -333,21 +746,28 @@ public class GoogleGrouperConnector {
                 }
 
                 if (user != null) {
-                    createGooMember(googleGroup, user, determineRole(member, grouperGroup));
+                    createGooMember(batch, googleGroup, user, determineRole(member, grouperGroup));
                 }
             }
         }
+        batch.flush();
     }
 
+    /**
+     * @param member a member of the group
+     * @param group a Grouper group
+     * @return the member's Google role, resolved from the group's privilege holders (loaded once per group)
+     */
     public String determineRole(edu.internet2.middleware.grouper.Member member, edu.internet2.middleware.grouper.Group group) {
-        if ((properties.getWhoCanManage().equalsIgnoreCase("BOTH") && (member.canUpdate(group) || member.canAdmin(group)))
-                || (properties.getWhoCanManage().equalsIgnoreCase("ADMIN") && member.canAdmin(group))
-                || (properties.getWhoCanManage().equalsIgnoreCase("UPDATE") && member.canUpdate(group) && !member.canAdmin(group))
-           ) {
-            return "MANAGER";
-        } else {
-            return "MEMBER";
-        }
+        return roleResolver.determineRole(member, group);
+    }
+
+    /**
+     * Forgets the privilege holders of a group, so the next determineRole() sees its current privileges.
+     * @param groupName the group's name
+     */
+    public void invalidateRoles(String groupName) {
+        roleResolver.invalidate(groupName);
     }
 
     public void deleteGooGroup(edu.internet2.middleware.grouper.Group group) throws IOException {
@@ -362,25 +782,32 @@ public class GoogleGrouperConnector {
         syncedObjects.remove(groupName);
     }
 
-    public void deleteGooGroupByEmail(String groupKey) throws IOException {
+    public void deleteGooGroupByEmail(final String groupKey) throws IOException {
         if (properties.getHandleDeletedGroup().equalsIgnoreCase("archive")) {
-            recentlyManipulatedObjectsList.delayIfNeeded(groupKey);
-
-            Groups gs = GoogleAppsSdkUtils.retrieveGroupSettings(groupssettingsClient, groupKey);
-            gs.setArchiveOnly("true");
-            GoogleAppsSdkUtils.updateGroupSettings(groupssettingsClient, groupKey, gs);
-
-            recentlyManipulatedObjectsList.add(groupKey);
+            recentlyManipulatedObjectsList.submit(groupKey, null, new RecentlyManipulatedObjectsList.Operation() {
+                public void run() throws IOException {
+                    Groups gs = GoogleAppsSdkUtils.retrieveGroupSettings(groupssettingsClient, groupKey);
+                    gs.setArchiveOnly("true");
+                    GoogleAppsSdkUtils.updateGroupSettings(groupssettingsClient, groupKey, gs);
+                    membershipIndex.removeGroup(groupKey);
+                }
+            });
 
         } else if (properties.getHandleDeletedGroup().equalsIgnoreCase("delete")) {
-            recentlyManipulatedObjectsList.delayIfNeeded(groupKey);
-
-            GoogleAppsSdkUtils.removeGroup(directoryClient, groupKey);
             GoogleCacheManager.googleGroups().remove(groupKey);
 
-            recentlyManipulatedObjectsList.delayIfNeeded(groupKey);
+            recentlyManipulatedObjectsList.submit(groupKey, null, new RecentlyManipulatedObjectsList.Operation() {
+                public void run() throws IOException {
+                    GoogleAppsSdkUtils.removeGroup(directoryClient, groupKey);
+                    GoogleCacheManager.googleGroups().remove(groupKey);
+                    membershipIndex.removeGroup(groupKey);
+                }
+            });
+
+        } else {
+            //"ignore": the group is left alone in Google, but its members no longer count as synced
+            membershipIndex.removeGroup(groupKey);
         }
-        //else "ignore" (we do nothing)
 
     }
 
@@ -503,34 +930,136 @@ public class GoogleGrouperConnector {
     public void removeGooMembership(String groupName, Subject subject) throws IOException {
         final String groupKey = addressFormatter.qualifyGroupAddress(groupName);
         final String userKey = addressFormatter.qualifySubjectAddress(subject.getId());
+        final boolean deprovision = properties.shouldDeprovisionUsers() && wouldBeUnused(userKey, groupKey, subject);
+
+        recentlyManipulatedObjectsList.submit(userKey, null, new RecentlyManipulatedObjectsList.Operation() {
+            public void run() throws IOException {
+                GoogleAppsSdkUtils.removeGroupMember(directoryClient, groupKey, userKey);
+                membershipIndex.remove(groupKey, userKey);
 
-        recentlyManipulatedObjectsList.delayIfNeeded(userKey);
-        GoogleAppsSdkUtils.removeGroupMember(directoryClient, groupKey, userKey);
-        recentlyManipulatedObjectsList.add(userKey);
+                if (deprovision) {
+                    deprovisionUserIfUnused(userKey);
+                }
+            }
+        });
+    }
 
-        if (properties.shouldDeprovisionUsers()) {
-            //FUTURE: check if the user has other memberships and if not, initiate the removal here.
+    /**
+     * Decides, before a membership is removed, whether the user would be left without any synced group. The decision
+     * is made from the membership index, so it is false until a complete full sync has filled it, and is confirmed
+     * against the subject's Grouper memberships in case the index is out of date.
+     * @param userKey the Google user's address
+     * @param groupKey the address of the group the user is being removed from
+     * @param subject the user's Grouper subject
+     * @return true if the user may be deprovisioned once the membership is gone
+     */
+    private boolean wouldBeUnused(String userKey, String groupKey, Subject subject) {
+        if (!membershipIndex.isPopulated()) {
+            LOG.debug("Google Apps Consumer '{}' - Not deprovisioning {}; the membership index has not been filled by a full sync yet.", consumerName, userKey);
+            return false;
         }
 
+        final Set<String> groups = membershipIndex.getGroups(userKey);
+        if (!groups.isEmpty() && !(groups.size() == 1 && groups.contains(groupKey.toLowerCase()))) {
+            return false;
         }
 
-    public Group updateGooGroup(String groupKey, Group group) throws IOException {
-        recentlyManipulatedObjectsList.delayIfNeeded(groupKey);
-        final Group gooGroup = GoogleAppsSdkUtils.updateGroup(directoryClient, groupKey, group);
-        recentlyManipulatedObjectsList.add(groupKey);
+        if (hasSyncedMemberships(subject)) {
+            LOG.warn("Google Apps Consumer '{}' - Not deprovisioning {}; the membership index is out of date and the subject is still in a synced group.", consumerName, userKey);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes a Google user who no longer belongs to any synced group. Runs as part of the user's membership removal,
+     * once the membership is gone and the index has been updated, so it sees memberships added in the meantime.
+     * @param userKey the Google user's address
+     * @throws IOException
+     */
+    private void deprovisionUserIfUnused(String userKey) throws IOException {
+        if (membershipIndex.hasMemberships(userKey)) {
+            LOG.debug("Google Apps Consumer '{}' - Not deprovisioning {}; they were added to another group.", consumerName, userKey);
+            return;
+        }
 
-        return gooGroup;
+        LOG.info("Google Apps Consumer '{}' - Deprovisioning {}, who has no other memberships.", consumerName, userKey);
+        GoogleCacheManager.googleUsers().remove(userKey);
+        GoogleAppsSdkUtils.removeUser(directoryClient, userKey);
+        GoogleCacheManager.googleUsers().remove(userKey);
+    }
+
+    /**
+     * @param subject a Grouper subject
+     * @return true if the subject is a member of any group that is synced to Google
+     */
+    private boolean hasSyncedMemberships(Subject subject) {
+        final edu.internet2.middleware.grouper.Member member = MemberFinder.findBySubject(GrouperSession.staticGrouperSession(), subject, false);
+        if (member == null) {
+            return false;
+        }
+
+        for (edu.internet2.middleware.grouper.Group group : member.getGroups()) {
+            if (shouldSyncGroup(group)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Updates a Google group and caches the result. If the group was manipulated recently the update is held back,
+     * and a later update of the same group replaces one still held back.
+     * @param groupKey the group's current address
+     * @param group the group as it should be
+     * @throws IOException
+     */
+    public void updateGooGroup(final String groupKey, final Group group) throws IOException {
+        recentlyManipulatedObjectsList.submit(groupKey, "update", new RecentlyManipulatedObjectsList.Operation() {
+            public void run() throws IOException {
+                final Group gooGroup = GoogleAppsSdkUtils.updateGroup(directoryClient, groupKey, group);
+                if (gooGroup != null) {
+                    GoogleCacheManager.googleGroups().put(gooGroup);
+                }
+            }
+        });
     }
 
     public List<Member> getGooMembership(String groupKey) throws IOException {
         return GoogleAppsSdkUtils.retrieveGroupMembers(directoryClient, groupKey);
     }
 
+    /**
+     * Hands the group's Google members to the visitor a page at a time, without holding the whole list.
+     * @param groupKey the group's address
+     * @param visitor receives each page of members
+     * @throws IOException
+     */
+    public void visitGooMembership(String groupKey, GoogleAppsSdkUtils.PageVisitor<Member> visitor) throws IOException {
+        GoogleAppsSdkUtils.visitGroupMembers(directoryClient, groupKey, visitor);
+    }
+
     public AddressFormatter getAddressFormatter() {
         return addressFormatter;
     }
 
-    public HashMap<String, String> getSyncedGroupsAndStems() {
+    public MembershipIndex getMembershipIndex() {
+        return membershipIndex;
+    }
+
+    /**
+     * Sends every Google request through the given transport instead of to Google, without credentials. This lets the
+     * full sync and the consumer run against a local stand-in of the Google APIs. Takes effect on the next initialize().
+     * @param httpTransport the transport to use, null to talk to Google again
+     */
+    public void setHttpTransport(HttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+        this.directoryClient = null;
+    }
+
+    public Map<String, String> getSyncedGroupsAndStems() {
         return syncedObjects;
     }
 
@@ -548,23 +1077,37 @@ public class GoogleGrouperConnector {
     }
 
 
-    public void updateGooMember(edu.internet2.middleware.grouper.Group group, Subject subject, String role) throws IOException {
-        User user = fetchGooUser(addressFormatter.qualifySubjectAddress(subject.getId()));
-        Group gooGroup = fetchGooGroup(addressFormatter.qualifyGroupAddress(group.getName()));
+    public void updateGooMember(edu.internet2.middleware.grouper.Group group, Subject subject, final String role) throws IOException {
+        final User user = fetchGooUser(addressFormatter.qualifySubjectAddress(subject.getId()));
+        final Group gooGroup = fetchGooGroup(addressFormatter.qualifyGroupAddress(group.getName()));
 
-        recentlyManipulatedObjectsList.delayIfNeeded(gooGroup.getEmail());
-        Member member = GoogleAppsSdkUtils.retrieveGroupMember(directoryClient, gooGroup.getEmail(), user.getPrimaryEmail());
+        recentlyManipulatedObjectsList.submit(gooGroup.getEmail(), "role:" + user.getPrimaryEmail(), new RecentlyManipulatedObjectsList.Operation() {
+            public void run() throws IOException {
+                Member member = GoogleAppsSdkUtils.retrieveGroupMember(directoryClient, gooGroup.getEmail(), user.getPrimaryEmail());
 
-        if (member == null) {
-            createGooMember(gooGroup, user, role);
-            return;
+                if (member == null) {
+                    createGooMember(gooGroup, user, role);
+                    return;
+                }
+
+                if (!role.equalsIgnoreCase(member.getRole())) {
+                    member.setRole(role);
+                    GoogleAppsSdkUtils.updateGroupMember(directoryClient, gooGroup.getEmail(), user.getPrimaryEmail(), member);
+                    recentlyManipulatedObjectsList.add(user.getPrimaryEmail());
+                }
+            }
+        });
+    }
+
+    /** Marks batched members as recently manipulated once Google has accepted them, and logs the ones it didn't. */
+    private class MembershipCallback implements GoogleAppsMemberBatch.Callback {
+        public void onSuccess(String groupKey, String memberKey) {
+            recentlyManipulatedObjectsList.add(memberKey);
         }
 
-        if (member.getRole() != role) {
-            member.setRole(role);
-            GoogleAppsSdkUtils.updateGroupMember(directoryClient, gooGroup.getEmail(), user.getPrimaryEmail(), member);
-            recentlyManipulatedObjectsList.add(user.getPrimaryEmail());
+        public void onFailure(String groupKey, String memberKey, GoogleJsonError error) {
+            LOG.warn("Google Apps Consumer '{}' - Error updating membership ({}) in Google Group ({}): {}",
+                    new Object[]{consumerName, memberKey, groupKey, error == null ? "retries exhausted" : error.getMessage()});
         }
     }
 }
-
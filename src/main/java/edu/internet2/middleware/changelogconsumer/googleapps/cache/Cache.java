@@ -17,91 +17,316 @@
 package edu.internet2.middleware.changelogconsumer.googleapps.cache;
 
 import com.google.api.services.admin.directory.model.Group;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.api.services.admin.directory.model.User;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsMetrics;
 import edu.internet2.middleware.subject.Subject;
 import org.joda.time.DateTime;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * CacheObject supports Google User, Google Group, Grouper Subject, and Grouper Group objects.
  *
+ * Each entry remembers when it was written and expires on its own once it is older than the cache validity; an
+ * expired entry is dropped when it is read so the caller fetches just that object again. The cache as a whole is
+ * only "expired" (needing a full load) until it has been seeded. An optional maximum size evicts the oldest entries,
+ * so a size bounded cache can't be used to list every object.
+ * A full load takes a while to fetch, so the puts and removes made between startLoad() and seed() are recorded and
+ * applied on top of the loaded items; otherwise, e.g., a group deleted mid-listing would come back.
+ * Reads and writes don't lock, except for writes made while a load is being fetched. A named cache counts its hits and misses, and publishes its size, in GoogleAppsMetrics.
+ *
  * * @author John Gasper, Unicon
  */
 public class Cache<T> {
-    private Hashtable<String, T> cache = new Hashtable<String, T>();
-    private DateTime cachePopulatedTime;
-    private int cacheValidity = 30;
+    private volatile ConcurrentHashMap<String, Entry<T>> cache = new ConcurrentHashMap<String, Entry<T>>();
+    private volatile DateTime cachePopulatedTime;
+    private volatile int cacheValidity = 30;
+    private volatile int maxSize = 0;
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+    private final Object loadLock = new Object();
+    private volatile ConcurrentHashMap<String, Entry<T>> changes;
+    private int loads;
+    private final Meter hits;
+    private final Meter misses;
+
+    public Cache() {
+        this(null);
+    }
+
+    /**
+     * @param name the cache's name in the metrics ("cache.{name}.hits", ".misses" and ".size"), null for no metrics
+     */
+    public Cache(String name) {
+        if (name == null) {
+            hits = null;
+            misses = null;
+            return;
+        }
+
+        hits = GoogleAppsMetrics.meter(MetricRegistry.name("cache", name, "hits"));
+        misses = GoogleAppsMetrics.meter(MetricRegistry.name("cache", name, "misses"));
+        GoogleAppsMetrics.gauge(MetricRegistry.name("cache", name, "size"), new Gauge<Integer>() {
+            public Integer getValue() {
+                return size();
+            }
+        });
+    }
 
     public T get(String id) {
-        return cache.get(id);
+        final Entry<T> entry = cache.get(id);
+
+        if (entry == null) {
+            miss();
+            return null;
+        }
+
+        if (isExpired(entry)) {
+            cache.remove(id, entry);
+            miss();
+            return null;
+        }
+
+        if (hits != null) {
+            hits.mark();
+        }
+        return entry.item;
     }
 
     public void clear() {
         cache.clear();
+        cachePopulatedTime = null;
     }
 
     public void put(T item) {
-        cache.put(getId(item), item);
+        write(getId(item), new Entry<T>(item));
+        evictIfNeeded();
     }
 
     public void remove (String id) {
-        if (cache.containsKey(id)) {
-            cache.remove(id);
+        write(id, new Entry<T>(null));
+    }
+
+    /**
+     * Starts recording the puts and removes, so the next seed() applies them on top of items that were fetched
+     * while they were made. Each call must be matched by a call to endLoad().
+     */
+    public void startLoad() {
+        synchronized (loadLock) {
+            if (loads++ == 0) {
+                changes = new ConcurrentHashMap<String, Entry<T>>();
+            }
+        }
+    }
+
+    /**
+     * Stops recording once every load that was started has ended, whether it was seeded or not.
+     */
+    public void endLoad() {
+        synchronized (loadLock) {
+            if (loads > 0 && --loads == 0) {
+                changes = null;
+            }
         }
     }
 
     public void seed(int size) {
-        cache = new Hashtable<String, T>(size);
+        cache = new ConcurrentHashMap<String, Entry<T>>(size);
     }
 
+    /**
+     * Replaces the contents of the cache with the items. The new contents are built off to the side and swapped in,
+     * so readers see either the old or the new contents.
+     * @param items the full set of items
+     */
     public void seed(List<T> items) {
-        cache = new Hashtable<String, T>(items.size() + 100);
+        seed(items, System.currentTimeMillis());
+    }
 
+    /**
+     * Replaces the contents of the cache with items that were loaded earlier (e.g. from a snapshot). The entries age
+     * from when the items were loaded, not from now.
+     * @param items the full set of items
+     * @param loaded when the items were loaded, in milliseconds since the epoch
+     */
+    public void seed(List<T> items, long loaded) {
         if (items == null) {
             seed(100);
-        } else {
-            for (T item : items) {
-                cache.put(getId(item), item);
-            }
+            return;
+        }
+
+        final ConcurrentHashMap<String, Entry<T>> newCache = new ConcurrentHashMap<String, Entry<T>>(items.size() + 100);
+        for (T item : items) {
+            newCache.put(getId(item), new Entry<T>(item, loaded));
+        }
 
-            cachePopulatedTime = new DateTime();
+        synchronized (loadLock) {
+            if (changes != null) {
+                for (Map.Entry<String, Entry<T>> change : changes.entrySet()) {
+                    apply(newCache, change.getKey(), change.getValue());
+                }
+            }
+            cache = newCache;
         }
+        cachePopulatedTime = new DateTime(loaded);
+        evictIfNeeded();
     }
 
     public int size() {
-        return cache == null ? 0 : cache.size();
+        return cache.size();
     }
 
     private String getId(T item) {
-        if (item.getClass().equals(User.class)) {
+        if (item instanceof User) {
             return ((User) item).getPrimaryEmail();
-        } else if (item.getClass().equals(Group.class)) {
+        } else if (item instanceof Group) {
             return ((Group) item).getEmail();
-        } else if (item.getClass().equals(Subject.class)) {
+        } else if (item instanceof Subject) {
             return ((Subject) item).getSourceId() + "__" + ((Subject) item).getId();
-        } else if (item.getClass().equals(edu.internet2.middleware.grouper.Group.class)) {
+        } else if (item instanceof edu.internet2.middleware.grouper.Group) {
             return ((edu.internet2.middleware.grouper.Group) item).getName();
         } else {
             return item.toString();
         }
     }
 
+    /**
+     * @param minutes how long each entry stays valid after it was written
+     */
     public void setCacheValidity(int minutes){
         cacheValidity = minutes;
     }
 
+    /**
+     * @param maxSize the maximum number of entries to hold, 0 for no limit
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evictIfNeeded();
+    }
+
+    /**
+     * @return when the bulk load would have gone stale; individual entries expire on their own
+     */
     public DateTime getExpiration() {
         return cachePopulatedTime != null ? cachePopulatedTime.plusMinutes(cacheValidity) : null;
     }
 
+    /**
+     * @return true if the cache has not been seeded with a full load yet
+     */
     public boolean isExpired() {
-        return cachePopulatedTime == null || getExpiration().isBeforeNow();
+        return cachePopulatedTime == null;
     }
 
+    /**
+     * @return the keys of the entries that haven't expired
+     */
     public Set<String> getKeySet() {
-        return cache.keySet();
+        final Set<String> keys = new HashSet<String>();
+        for (Map.Entry<String, Entry<T>> entry : cache.entrySet()) {
+            if (!isExpired(entry.getValue())) {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * writes to the cache, and records the write while a load is being fetched; entry has a null item for a remove.
+     */
+    private void write(String id, Entry<T> entry) {
+        if (changes == null) {
+            apply(cache, id, entry);
+            return;
+        }
+
+        synchronized (loadLock) {
+            if (changes != null) {
+                changes.put(id, entry);
+            }
+            apply(cache, id, entry);
+        }
+    }
+
+    private static <T> void apply(ConcurrentHashMap<String, Entry<T>> map, String id, Entry<T> entry) {
+        if (entry.item == null) {
+            map.remove(id);
+        } else {
+            map.put(id, entry);
+        }
+    }
+
+    private void miss() {
+        if (misses != null) {
+            misses.mark();
+        }
+    }
+
+    private boolean isExpired(Entry<T> entry) {
+        return System.currentTimeMillis() - entry.written >= cacheValidity * 60000L;
+    }
+
+    /**
+     * Drops expired entries and then the oldest ones until the cache is back to 90% of its maximum size. Only one
+     * thread evicts at a time; everyone else carries on.
+     */
+    private void evictIfNeeded() {
+        final int limit = maxSize;
+        if (limit <= 0 || cache.size() <= limit || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            final List<Map.Entry<String, Entry<T>>> entries = new ArrayList<Map.Entry<String, Entry<T>>>(cache.entrySet());
+            for (Map.Entry<String, Entry<T>> entry : entries) {
+                if (isExpired(entry.getValue())) {
+                    cache.remove(entry.getKey(), entry.getValue());
+                }
+            }
+
+            final int target = limit - limit / 10;
+            if (cache.size() > target) {
+                Collections.sort(entries, new Comparator<Map.Entry<String, Entry<T>>>() {
+                    public int compare(Map.Entry<String, Entry<T>> a, Map.Entry<String, Entry<T>> b) {
+                        return a.getValue().written < b.getValue().written ? -1 : (a.getValue().written == b.getValue().written ? 0 : 1);
+                    }
+                });
+
+                for (Map.Entry<String, Entry<T>> entry : entries) {
+                    if (cache.size() <= target) {
+                        break;
+                    }
+                    cache.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /** A cached item and the time it was written. */
+    private static class Entry<T> {
+        private final T item;
+        private final long written;
+
+        Entry(T item) {
+            this(item, System.currentTimeMillis());
+        }
+
+        Entry(T item, long written) {
+            this.item = item;
+            this.written = written;
+        }
     }
-}
\ No newline at end of file
+}
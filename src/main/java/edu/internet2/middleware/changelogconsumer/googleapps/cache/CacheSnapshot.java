@@ -0,0 +1,185 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.cache;
+
+import com.google.api.client.json.JsonFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CacheSnapshot writes a list of Google objects to a local, memory-mapped file and reads it back, so a restarted
+ * loader or full sync can start from a warm cache instead of paging through the whole directory.
+ *
+ * The file is a header (magic, format version, timestamp and entry count) followed by each object as a
+ * length-prefixed UTF-8 JSON document. Snapshots are written to a temporary file and renamed into place.
+ */
+public class CacheSnapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(CacheSnapshot.class);
+
+    private static final int MAGIC = 0x47434153; // "GCAS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * writes a snapshot of the items.
+     * @param file where to write the snapshot
+     * @param items the objects to save
+     * @param jsonFactory used to serialize the objects
+     * @throws IOException
+     */
+    public static void write(File file, List<?> items, JsonFactory jsonFactory) throws IOException {
+        final List<byte[]> entries = new ArrayList<byte[]>(items.size());
+        long size = HEADER_SIZE;
+        for (Object item : items) {
+            final byte[] entry = jsonFactory.toByteArray(item);
+            entries.add(entry);
+            size += 4 + entry.length;
+        }
+
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create snapshot directory " + directory);
+        }
+
+        final File temp = new File(file.getPath() + ".tmp");
+        final RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.setLength(size);
+            final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putLong(System.currentTimeMillis())
+                    .putInt(entries.size());
+
+            for (byte[] entry : entries) {
+                buffer.putInt(entry.length).put(entry);
+            }
+            buffer.force();
+        } finally {
+            raf.close();
+        }
+
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Unable to move snapshot " + temp + " to " + file);
+        }
+
+        LOG.debug("write() - saved {} entries to {}", entries.size(), file);
+    }
+
+    /**
+     * reads a snapshot back.
+     * @param file the snapshot file
+     * @param type the type of object stored in the snapshot
+     * @param jsonFactory used to parse the objects
+     * @param maxAge the oldest snapshot (in milliseconds) that is still usable
+     * @return the saved objects, or null if there is no usable snapshot (missing, corrupt, wrong version or too old)
+     */
+    public static <T> List<T> read(File file, Class<T> type, JsonFactory jsonFactory, long maxAge) {
+        final Contents<T> contents = load(file, type, jsonFactory, maxAge);
+        return contents == null ? null : contents.getItems();
+    }
+
+    /**
+     * reads a snapshot back, along with when it was written.
+     * @param file the snapshot file
+     * @param type the type of object stored in the snapshot
+     * @param jsonFactory used to parse the objects
+     * @param maxAge the oldest snapshot (in milliseconds) that is still usable
+     * @return the snapshot, or null if there is no usable snapshot (missing, corrupt, wrong version or too old)
+     */
+    public static <T> Contents<T> load(File file, Class<T> type, JsonFactory jsonFactory, long maxAge) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+                if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                    LOG.warn("read() - {} is not a usable snapshot, ignoring it", file);
+                    return null;
+                }
+
+                final long written = buffer.getLong();
+                final long age = System.currentTimeMillis() - written;
+                if (age > maxAge) {
+                    LOG.info("read() - {} is {} minutes old, ignoring it", file, age / 60000);
+                    return null;
+                }
+
+                final int count = buffer.getInt();
+                final List<T> items = new ArrayList<T>(count);
+                for (int i = 0; i < count; i++) {
+                    final byte[] entry = new byte[buffer.getInt()];
+                    buffer.get(entry);
+                    items.add(jsonFactory.fromString(new String(entry, "UTF-8"), type));
+                }
+
+                LOG.debug("read() - loaded {} entries from {}", count, file);
+                return new Contents<T>(items, written);
+
+            } finally {
+                raf.close();
+            }
+
+        } catch (BufferUnderflowException e) {
+            LOG.warn("read() - {} is truncated, ignoring it", file);
+        } catch (NegativeArraySizeException e) {
+            LOG.warn("read() - {} is corrupt, ignoring it", file);
+        } catch (IOException e) {
+            LOG.warn("read() - unable to read {}: {}", file, e);
+        }
+
+        return null;
+    }
+
+    /** The objects saved in a snapshot, and when they were saved. */
+    public static class Contents<T> {
+        private final List<T> items;
+        private final long written;
+
+        Contents(List<T> items, long written) {
+            this.items = items;
+            this.written = written;
+        }
+
+        public List<T> getItems() {
+            return items;
+        }
+
+        /**
+         * @return when the snapshot was written, in milliseconds since the epoch
+         */
+        public long getWritten() {
+            return written;
+        }
+    }
+}
@@ -17,23 +17,39 @@
 
 package edu.internet2.middleware.changelogconsumer.googleapps.cache;
 
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.admin.directory.model.Group;
 import com.google.api.services.admin.directory.model.User;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * ObjectCache stores objects retrieved from Google to save on the number of API round trips required.
  * Each object type has its own cache and expiration interval. The ObjectCache object (static) to maintain the cache
  * between the ChangeLogConsumer object's (prototype) life cycling.
  *
+ * When a snapshot directory is set, each full load of a cache is also saved to disk so that the next process can
+ * start from it (see CacheSnapshot) instead of reloading everything from Google.
+ *
  * @author John Gasper, Unicon
  */
 public class GoogleCacheManager {
-    private static Cache<User> googleUsers = new Cache<User>();
-    private static Cache<Group> googleGroups = new Cache<Group>();
+    private static Cache<User> googleUsers = new Cache<User>("googleUsers");
+    private static Cache<Group> googleGroups = new Cache<Group>("googleGroups");
 
     private static final Object usersLock = new Object();
     private static final Object groupsLock = new Object();
 
+    private static final Logger LOG = LoggerFactory.getLogger(GoogleCacheManager.class);
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    private static volatile File snapshotDirectory;
+    private static volatile long snapshotMaxAge;
+
     /**
      *
      * @return a Google User cache
@@ -54,4 +70,78 @@ public class GoogleCacheManager {
         }
     }
 
+    /**
+     * Sets where the cache snapshots are kept.
+     * @param directory the snapshot directory, null to disable snapshots
+     * @param maxAgeMinutes how old a snapshot may be and still be loaded
+     */
+    public static void setSnapshotDirectory(File directory, int maxAgeMinutes) {
+        snapshotDirectory = directory;
+        snapshotMaxAge = maxAgeMinutes * 60000L;
+    }
+
+    /**
+     * seeds the Google User cache from its snapshot. The entries are as old as the snapshot, so they expire as if
+     * they had been loaded when the snapshot was written.
+     * @return true if a usable snapshot was loaded
+     */
+    public static boolean loadGoogleUsersSnapshot() {
+        final File file = snapshotFile("googleUsers");
+        final CacheSnapshot.Contents<User> snapshot = file == null ? null : CacheSnapshot.load(file, User.class, JSON_FACTORY, snapshotMaxAge);
+        if (snapshot == null) {
+            return false;
+        }
+
+        googleUsers().seed(snapshot.getItems(), snapshot.getWritten());
+        return true;
+    }
+
+    /**
+     * seeds the Google Group cache from its snapshot. The entries are as old as the snapshot, so they expire as if
+     * they had been loaded when the snapshot was written.
+     * @return true if a usable snapshot was loaded
+     */
+    public static boolean loadGoogleGroupsSnapshot() {
+        final File file = snapshotFile("googleGroups");
+        final CacheSnapshot.Contents<Group> snapshot = file == null ? null : CacheSnapshot.load(file, Group.class, JSON_FACTORY, snapshotMaxAge);
+        if (snapshot == null) {
+            return false;
+        }
+
+        googleGroups().seed(snapshot.getItems(), snapshot.getWritten());
+        return true;
+    }
+
+    /**
+     * saves a full load of the Google User cache, if snapshots are enabled.
+     * @param users every user in the domain
+     */
+    public static void saveGoogleUsersSnapshot(List<User> users) {
+        saveSnapshot(snapshotFile("googleUsers"), users);
+    }
+
+    /**
+     * saves a full load of the Google Group cache, if snapshots are enabled.
+     * @param groups every group in the domain
+     */
+    public static void saveGoogleGroupsSnapshot(List<Group> groups) {
+        saveSnapshot(snapshotFile("googleGroups"), groups);
+    }
+
+    private static void saveSnapshot(File file, List<?> items) {
+        if (file == null || items == null) {
+            return;
+        }
+
+        try {
+            CacheSnapshot.write(file, items, JSON_FACTORY);
+        } catch (IOException e) {
+            LOG.warn("Unable to save the cache snapshot {}: {}", file, e);
+        }
+    }
+
+    private static File snapshotFile(String name) {
+        final File directory = snapshotDirectory;
+        return directory == null ? null : new File(directory, name + ".snapshot");
+    }
 }
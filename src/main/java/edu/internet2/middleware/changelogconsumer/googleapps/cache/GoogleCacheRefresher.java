@@ -0,0 +1,166 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.cache;
+
+import com.google.api.services.admin.directory.Directory;
+import com.google.api.services.admin.directory.model.Group;
+import com.google.api.services.admin.directory.model.User;
+import edu.internet2.middleware.changelogconsumer.googleapps.GoogleAppsSdkUtils;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GoogleCacheRefresher reloads the Google user and group caches on a background thread before their entries expire.
+ * Each reload is built off to the side and swapped in by Cache.seed(), so readers never wait on a full reload; the
+ * changes the consumer makes to the cache while a reload is fetched are kept (see Cache.startLoad()).
+ * It also re-validates caches that were warm started from a snapshot, and saves each reload as the next snapshot.
+ */
+public class GoogleCacheRefresher {
+    private static final Logger LOG = LoggerFactory.getLogger(GoogleCacheRefresher.class);
+
+    private final String consumerName;
+    private final Directory directoryClient;
+    private final ScheduledExecutorService executor;
+    private boolean started;
+
+    /**
+     * @param consumerName the consumer this refresher works for, used for logging
+     * @param directoryClient a Directory client
+     */
+    public GoogleCacheRefresher(String consumerName, Directory directoryClient) {
+        this.consumerName = consumerName;
+        this.directoryClient = directoryClient;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "google-cache-refresher-" + GoogleCacheRefresher.this.consumerName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Schedules the refreshes. Each cache is reloaded at three quarters of its validity period; a cache that has
+     * never been loaded is loaded straight away. Does nothing if the refreshes are already scheduled.
+     * @param userCacheValidity the user cache validity in minutes
+     * @param groupCacheValidity the group cache validity in minutes
+     */
+    public synchronized void start(int userCacheValidity, int groupCacheValidity) {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        final long userPeriod = refreshPeriod(userCacheValidity);
+        final long groupPeriod = refreshPeriod(groupCacheValidity);
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refreshUsers();
+            }
+        }, GoogleCacheManager.googleUsers().isExpired() ? 0 : userPeriod, userPeriod, TimeUnit.SECONDS);
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refreshGroups();
+            }
+        }, GoogleCacheManager.googleGroups().isExpired() ? 0 : groupPeriod, groupPeriod, TimeUnit.SECONDS);
+
+        LOG.debug("Google Apps Consumer '{}' - Refreshing the user cache every {}s and the group cache every {}s.",
+                new Object[]{consumerName, userPeriod, groupPeriod});
+    }
+
+    /**
+     * reloads the user cache once, as soon as the refresher thread is free.
+     */
+    public void refreshUsersSoon() {
+        executor.execute(new Runnable() {
+            public void run() {
+                refreshUsers();
+            }
+        });
+    }
+
+    /**
+     * reloads the group cache once, as soon as the refresher thread is free.
+     */
+    public void refreshGroupsSoon() {
+        executor.execute(new Runnable() {
+            public void run() {
+                refreshGroups();
+            }
+        });
+    }
+
+    /**
+     * stops any further scheduled refreshes. A reload that is already running or requested is allowed to finish.
+     */
+    public void stop() {
+        executor.shutdown();
+    }
+
+    /**
+     * reloads every user from Google and swaps the result into the user cache.
+     */
+    public void refreshUsers() {
+        GoogleCacheManager.googleUsers().startLoad();
+        try {
+            final List<User> list = GoogleAppsSdkUtils.retrieveAllUsers(directoryClient);
+            GoogleCacheManager.googleUsers().seed(list);
+            GoogleCacheManager.saveGoogleUsersSnapshot(list);
+            LOG.debug("Google Apps Consumer '{}' - Refreshed the userCache with {} users.", consumerName, list.size());
+
+        } catch (IOException e) {
+            LOG.error("Google Apps Consumer '{}' - Something bad happened when refreshing the userCache: {}", consumerName, e);
+        } catch (RuntimeException e) {
+            LOG.error("Google Apps Consumer '{}' - Something bad happened when refreshing the userCache: {}", consumerName, e);
+        } finally {
+            GoogleCacheManager.googleUsers().endLoad();
+        }
+    }
+
+    /**
+     * reloads every group from Google and swaps the result into the group cache.
+     */
+    public void refreshGroups() {
+        GoogleCacheManager.googleGroups().startLoad();
+        try {
+            final List<Group> list = GoogleAppsSdkUtils.retrieveAllGroups(directoryClient);
+            GoogleCacheManager.googleGroups().seed(list);
+            GoogleCacheManager.saveGoogleGroupsSnapshot(list);
+            LOG.debug("Google Apps Consumer '{}' - Refreshed the groupCache with {} groups.", consumerName, list.size());
+
+        } catch (IOException e) {
+            LOG.error("Google Apps Consumer '{}' - Something bad happened when refreshing the groupCache: {}", consumerName, e);
+        } catch (RuntimeException e) {
+            LOG.error("Google Apps Consumer '{}' - Something bad happened when refreshing the groupCache: {}", consumerName, e);
+        } finally {
+            GoogleCacheManager.googleGroups().endLoad();
+        }
+    }
+
+    private long refreshPeriod(int cacheValidity) {
+        return Math.max(60, cacheValidity * 45L);
+    }
+}
@@ -17,6 +17,11 @@
 
 package edu.internet2.middleware.changelogconsumer.googleapps.utils;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.apache.commons.jexl2.JexlContext;
 import org.apache.commons.jexl2.JexlEngine;
 import org.apache.commons.jexl2.MapContext;
@@ -25,49 +30,121 @@ import org.apache.commons.jexl2.UnifiedJEXL;
 /**
  * Formats user and group addresses. Supports JEXL manipulations/evaluations
  *
+ * Expressions that only wrap the variable in literal text, like "${subjectId}" or "crs-${groupPath}", are turned
+ * into plain string concatenation. Anything else is evaluated by JEXL and the finished address is memoized, up to
+ * a bounded number of entries per expression.
+ *
  * @author John Gasper, Unicon
  */
 public class AddressFormatter {
+    /** Matches expressions that are only literal text around a single variable reference. */
+    private static final Pattern SIMPLE_EXPRESSION = Pattern.compile("([^$#{}\\\\]*)\\$\\{\\s*(\\w+)\\s*\\}([^$#{}\\\\]*)");
+
+    /** The most addresses remembered for each JEXL expression. */
+    private static final int MEMO_SIZE = 10000;
+
     private final JexlEngine jexl = new JexlEngine();
     private final UnifiedJEXL ujexl = new UnifiedJEXL(jexl);
-    private UnifiedJEXL.Expression groupIdentifierExp = null;
-    private UnifiedJEXL.Expression subjectIdentifierExp = null;
+    private volatile Template groupTemplate = null;
+    private volatile Template subjectTemplate = null;
     private String domain;
 
     public String qualifySubjectAddress(String subjectId) {
-        final JexlContext context = new MapContext();
-        context.set("subjectId", subjectId);
+        final String address = subjectTemplate.format(subjectId, false);
 
-        final String address = subjectIdentifierExp.evaluate(context).toString();
-
-        return String.format("%s@%s", address.replace(":", "-"), this.domain);
+        return address + "@" + this.domain;
     }
 
     public String qualifyGroupAddress(String group) {
-        final JexlContext context = new MapContext();
-        context.set("groupPath", group);
-
-        final String mailbox = groupIdentifierExp.evaluate(context).toString();
+        final String mailbox = groupTemplate.format(group, true);
 
-        return String.format("%s@%s", mailbox.replace(":", "-").toLowerCase(), this.domain);
+        return mailbox + "@" + this.domain;
     }
 
     public AddressFormatter setGroupIdentifierExpression(String groupIdentifierExpression){
-        this.groupIdentifierExp = ujexl.parse(groupIdentifierExpression);
+        this.groupTemplate = compile(groupIdentifierExpression, "groupPath");
 
         return this;
     }
 
     public AddressFormatter setSubjectIdentifierExpression(String subjectIdentifierExpression){
-        this.subjectIdentifierExp = ujexl.parse(subjectIdentifierExpression);
+        this.subjectTemplate = compile(subjectIdentifierExpression, "subjectId");
 
         return this;
     }
 
-
     public AddressFormatter setDomain(String domain) {
         this.domain = domain;
 
         return this;
     }
+
+    private Template compile(String expression, String variable) {
+        final Matcher matcher = SIMPLE_EXPRESSION.matcher(expression);
+        if (matcher.matches() && matcher.group(2).equals(variable)) {
+            return new ConcatTemplate(matcher.group(1), matcher.group(3));
+        }
+
+        return new JexlTemplate(ujexl.parse(expression), variable);
+    }
+
+    /** Turns a subject id or group path into the local part of an address, replacing colons with dashes. */
+    private interface Template {
+        String format(String value, boolean lowerCase);
+    }
+
+    /** prefix + value + suffix, for expressions with no JEXL logic in them. */
+    private static class ConcatTemplate implements Template {
+        private final String prefix;
+        private final String suffix;
+
+        ConcatTemplate(String prefix, String suffix) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        public String format(String value, boolean lowerCase) {
+            final String local = (prefix + value + suffix).replace(':', '-');
+            return lowerCase ? local.toLowerCase() : local;
+        }
+    }
+
+    /** Evaluates a full JEXL expression, remembering the most recently used results. */
+    private static class JexlTemplate implements Template {
+        private final UnifiedJEXL.Expression expression;
+        private final String variable;
+        private final Map<String, String> memo = Collections.synchronizedMap(new LinkedHashMap<String, String>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MEMO_SIZE;
+            }
+        });
+
+        JexlTemplate(UnifiedJEXL.Expression expression, String variable) {
+            this.expression = expression;
+            this.variable = variable;
+        }
+
+        public String format(String value, boolean lowerCase) {
+            if (value != null) {
+                final String local = memo.get(value);
+                if (local != null) {
+                    return local;
+                }
+            }
+
+            final JexlContext context = new MapContext();
+            context.set(variable, value);
+
+            String local = expression.evaluate(context).toString().replace(':', '-');
+            if (lowerCase) {
+                local = local.toLowerCase();
+            }
+
+            if (value != null) {
+                memo.put(value, local);
+            }
+            return local;
+        }
+    }
 }
@@ -53,7 +53,7 @@ public class ComparableGroupItem {
 
     @Override
     public boolean equals(Object obj) {
-        return obj.getClass() == ComparableGroupItem.class && name.hashCode() == obj.hashCode();
+        return obj != null && obj.getClass() == ComparableGroupItem.class && name.equals(((ComparableGroupItem) obj).name);
     }
 
     public Group getGrouperGroup() {
@@ -53,7 +53,7 @@ public class ComparableMemberItem {
 
     @Override
     public boolean equals(Object obj) {
-        return obj.getClass() == ComparableMemberItem.class && email.hashCode() == obj.hashCode();
+        return obj != null && obj.getClass() == ComparableMemberItem.class && email.equals(((ComparableMemberItem) obj).email);
     }
 
     public Member getGrouperMember() {
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DirtyGroupLedger remembers which Google groups the change log consumer touched (or failed on) since the last
+ * incremental full sync, so that sync only has to re-verify those groups.
+ *
+ * The ledger is a plain text file with one group address per line. The consumer appends the groups of each batch
+ * that aren't already listed, so the file never holds more than one line per group however long it goes between
+ * incremental syncs; a full sync checks the ledger out (moving the file aside) and commits it once the groups have been verified, putting
+ * back any that still need work. If a full sync dies part way through, the checked out groups are picked up again by
+ * the next one. A second file holds where the rotating sample of clean groups left off.
+ */
+public class DirtyGroupLedger {
+    private static final Logger LOG = LoggerFactory.getLogger(DirtyGroupLedger.class);
+    private static final String ENCODING = "UTF-8";
+
+    private final File ledgerFile;
+    private final File checkedOutFile;
+    private final File cursorFile;
+    private final Set<String> marked = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param directory where the ledger is kept
+     * @param consumerName the consumer the ledger belongs to
+     */
+    public DirtyGroupLedger(File directory, String consumerName) {
+        this.ledgerFile = new File(directory, consumerName + ".dirtyGroups");
+        this.checkedOutFile = new File(directory, consumerName + ".dirtyGroups.checkedOut");
+        this.cursorFile = new File(directory, consumerName + ".sampleCursor");
+    }
+
+    /**
+     * remembers a group until the next flush(). Safe to call from several threads.
+     * @param groupAddress the Google group's address
+     */
+    public void markDirty(String groupAddress) {
+        marked.add(groupAddress.toLowerCase());
+    }
+
+    /**
+     * appends the groups marked since the last flush to the ledger.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (marked.isEmpty()) {
+            return;
+        }
+
+        final List<String> groups = new ArrayList<String>(marked);
+        marked.removeAll(groups);
+        try {
+            append(ledgerFile, groups);
+        } catch (IOException e) {
+            marked.addAll(groups);
+            throw e;
+        }
+
+        LOG.debug("flush() - marked {} groups dirty in {}", groups.size(), ledgerFile);
+    }
+
+    /**
+     * Takes the current ledger for a full sync. Groups checked out by an earlier sync that never committed are included.
+     * @return the dirty group addresses
+     * @throws IOException
+     */
+    public Set<String> checkout() throws IOException {
+        if (ledgerFile.isFile()) {
+            if (checkedOutFile.isFile()) {
+                append(checkedOutFile, read(ledgerFile));
+                if (!ledgerFile.delete()) {
+                    throw new IOException("Unable to remove " + ledgerFile);
+                }
+            } else if (!ledgerFile.renameTo(checkedOutFile)) {
+                throw new IOException("Unable to move " + ledgerFile + " to " + checkedOutFile);
+            }
+        }
+
+        final Set<String> groups = new HashSet<String>(read(checkedOutFile));
+        LOG.debug("checkout() - {} dirty groups", groups.size());
+        return groups;
+    }
+
+    /**
+     * Finishes a full sync: forgets the checked out groups and puts back the ones that still need work.
+     * @param stillDirty groups that could not be verified
+     * @param sampleCursor where the next rotating sample should start after, null to leave it as it is
+     * @throws IOException
+     */
+    public void commit(Collection<String> stillDirty, String sampleCursor) throws IOException {
+        final List<String> groups = new ArrayList<String>(stillDirty.size());
+        for (String group : stillDirty) {
+            groups.add(group.toLowerCase());
+        }
+        append(ledgerFile, groups);
+
+        if (checkedOutFile.isFile() && !checkedOutFile.delete()) {
+            throw new IOException("Unable to remove " + checkedOutFile);
+        }
+
+        if (sampleCursor != null) {
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(cursorFile), ENCODING);
+            try {
+                writer.write(sampleCursor);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * @return the last group address in the previous rotating sample, or an empty string to start at the beginning
+     * @throws IOException
+     */
+    public String getSampleCursor() throws IOException {
+        final List<String> lines = read(cursorFile);
+        return lines.isEmpty() ? "" : lines.get(0);
+    }
+
+    private static List<String> read(File file) throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        if (!file.isFile()) {
+            return lines;
+        }
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    lines.add(line.trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return lines;
+    }
+
+    /** appends the groups the file doesn't already list. */
+    private static void append(File file, Collection<String> groups) throws IOException {
+        final Set<String> listed = new HashSet<String>(read(file));
+        final List<String> unlisted = new ArrayList<String>(groups.size());
+        for (String group : groups) {
+            if (listed.add(group)) {
+                unlisted.add(group);
+            }
+        }
+
+        if (unlisted.isEmpty()) {
+            return;
+        }
+
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create ledger directory " + directory);
+        }
+
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), ENCODING);
+        try {
+            for (String group : unlisted) {
+                writer.write(group);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
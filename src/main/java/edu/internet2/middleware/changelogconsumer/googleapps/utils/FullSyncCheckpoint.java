@@ -0,0 +1,190 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * FullSyncCheckpoint records which groups the current full sync has already reconciled, so that a run that was killed
+ * or ran into the API quota can be resumed without reconciling (and re-downloading the membership of) those groups again.
+ *
+ * The checkpoint is a plain text file: a header line with the run ID and the time the run started, then one group
+ * address per line, appended (and flushed) as each group is finished. The file is removed once a run finishes cleanly.
+ */
+public class FullSyncCheckpoint {
+    private static final Logger LOG = LoggerFactory.getLogger(FullSyncCheckpoint.class);
+    private static final String ENCODING = "UTF-8";
+
+    private final File file;
+    private final Set<String> done = Collections.synchronizedSet(new HashSet<String>());
+    private String runId;
+    private long started;
+    private Writer writer;
+
+    /**
+     * @param directory where the checkpoint is kept
+     * @param consumerName the consumer the checkpoint belongs to
+     */
+    public FullSyncCheckpoint(File directory, String consumerName) {
+        this.file = new File(directory, consumerName + ".fullSyncCheckpoint");
+    }
+
+    /**
+     * Starts recording a run.
+     * @param resume true to carry on from the existing checkpoint, if there is a usable one; false to start a new run
+     * @throws IOException
+     */
+    public synchronized void open(boolean resume) throws IOException {
+        done.clear();
+
+        if (resume && read()) {
+            writer = new OutputStreamWriter(new FileOutputStream(file, true), ENCODING);
+            LOG.debug("open() - resuming run {} with {} groups done", runId, done.size());
+            return;
+        }
+
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create checkpoint directory " + directory);
+        }
+
+        runId = UUID.randomUUID().toString();
+        started = System.currentTimeMillis();
+        writer = new OutputStreamWriter(new FileOutputStream(file, false), ENCODING);
+        writer.write(runId + " " + started + "\n");
+        writer.flush();
+    }
+
+    /**
+     * @param groupAddress a group's address
+     * @return true if the group was reconciled earlier in this run
+     */
+    public boolean isDone(String groupAddress) {
+        return done.contains(groupAddress.toLowerCase());
+    }
+
+    /**
+     * records that a group has been reconciled. Safe to call from several threads.
+     * @param groupAddress the group's address
+     */
+    public synchronized void markDone(String groupAddress) {
+        if (writer == null || !done.add(groupAddress.toLowerCase())) {
+            return;
+        }
+
+        try {
+            writer.write(groupAddress.toLowerCase() + "\n");
+            writer.flush();
+        } catch (IOException e) {
+            LOG.warn("markDone() - unable to update {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * stops recording, leaving the checkpoint in place so the run can be resumed.
+     */
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOG.warn("close() - unable to close {}: {}", file, e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * stops recording and removes the checkpoint; the run is complete.
+     */
+    public synchronized void finish() {
+        close();
+        if (file.isFile() && !file.delete()) {
+            LOG.warn("finish() - unable to remove {}", file);
+        }
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    /**
+     * @return when the run started, in milliseconds since the epoch
+     */
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * @return the number of groups reconciled so far in this run
+     */
+    public int getDoneCount() {
+        return done.size();
+    }
+
+    private boolean read() {
+        if (!file.isFile()) {
+            return false;
+        }
+
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+            try {
+                final String[] header = String.valueOf(reader.readLine()).split(" ");
+                if (header.length != 2) {
+                    LOG.warn("read() - {} is not a usable checkpoint, ignoring it", file);
+                    return false;
+                }
+                runId = header[0];
+                started = Long.parseLong(header[1]);
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        done.add(line.trim());
+                    }
+                }
+                return true;
+
+            } finally {
+                reader.close();
+            }
+
+        } catch (NumberFormatException e) {
+            LOG.warn("read() - {} is not a usable checkpoint, ignoring it", file);
+        } catch (IOException e) {
+            LOG.warn("read() - unable to read {}: {}", file, e.getMessage());
+        }
+
+        done.clear();
+        return false;
+    }
+}
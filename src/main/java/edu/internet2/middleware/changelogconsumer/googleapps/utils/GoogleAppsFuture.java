@@ -0,0 +1,220 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * GoogleAppsFuture is the result of an asynchronous Google API request (see the *Async methods of GoogleAppsSdkUtils).
+ * Besides blocking on get(), a caller can add callbacks that run as soon as the request completes, so it can keep
+ * many requests in flight without a thread waiting on each one.
+ *
+ * Callbacks run on the thread that completes the future (or straight away, on the caller's thread, if it is already
+ * complete), so they should be quick and must not block.
+ */
+public class GoogleAppsFuture<T> implements Future<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(GoogleAppsFuture.class);
+
+    /**
+     * Receives the outcome of a request.
+     */
+    public interface Callback<T> {
+        /**
+         * @param result what Google returned; null if the object was not found, or the request has no response body
+         */
+        void onSuccess(T result);
+
+        /**
+         * @param error why the request failed, after any retries
+         */
+        void onFailure(Throwable error);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>();
+    private boolean completed;
+    private boolean cancelled;
+    private T result;
+    private Throwable error;
+
+    /**
+     * @param error why the request could not be started
+     * @return a future that has already failed
+     */
+    public static <T> GoogleAppsFuture<T> failed(Throwable error) {
+        final GoogleAppsFuture<T> future = new GoogleAppsFuture<T>();
+        future.setException(error);
+        return future;
+    }
+
+    /**
+     * completes the future successfully.
+     * @param result the result
+     * @return false if the future was already complete
+     */
+    public boolean set(T result) {
+        final List<Callback<? super T>> toRun;
+
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            this.result = result;
+            toRun = complete();
+        }
+
+        for (Callback<? super T> callback : toRun) {
+            onSuccess(callback, result);
+        }
+        return true;
+    }
+
+    /**
+     * completes the future with an error.
+     * @param error the error
+     * @return false if the future was already complete
+     */
+    public boolean setException(Throwable error) {
+        final List<Callback<? super T>> toRun;
+
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            this.error = error;
+            toRun = complete();
+        }
+
+        for (Callback<? super T> callback : toRun) {
+            onFailure(callback, error);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a callback, which runs straight away if the future is already complete.
+     * @param callback the callback
+     * @return this future
+     */
+    public GoogleAppsFuture<T> addCallback(Callback<? super T> callback) {
+        synchronized (this) {
+            if (!completed) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+
+        if (error == null) {
+            onSuccess(callback, result);
+        } else {
+            onFailure(callback, error);
+        }
+        return this;
+    }
+
+    /**
+     * Cancels the request. A request that is already on the wire is not interrupted, but its result is ignored and
+     * it isn't retried. Callbacks are told about the cancellation through onFailure().
+     * @param mayInterruptIfRunning ignored
+     * @return false if the future was already complete
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final CancellationException cancellation = new CancellationException("The request was cancelled");
+        final List<Callback<? super T>> toRun;
+
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            cancelled = true;
+            error = cancellation;
+            toRun = complete();
+        }
+
+        for (Callback<? super T> callback : toRun) {
+            onFailure(callback, cancellation);
+        }
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    /** must hold the lock */
+    private List<Callback<? super T>> complete() {
+        completed = true;
+        done.countDown();
+
+        final List<Callback<? super T>> toRun = new ArrayList<Callback<? super T>>(callbacks);
+        callbacks.clear();
+        return toRun;
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        if (cancelled) {
+            throw (CancellationException) error;
+        }
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+
+    private void onSuccess(Callback<? super T> callback, T result) {
+        try {
+            callback.onSuccess(result);
+        } catch (RuntimeException e) {
+            LOG.error("A request callback failed: {}", e);
+        }
+    }
+
+    private void onFailure(Callback<? super T> callback, Throwable error) {
+        try {
+            callback.onFailure(error);
+        } catch (RuntimeException e) {
+            LOG.error("A request callback failed: {}", e);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.utils;
+
+import com.codahale.metrics.CsvReporter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.ScheduledReporter;
+import com.codahale.metrics.Slf4jReporter;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GoogleAppsMetrics holds the provisioner's counters and latency histograms: a timer for each type of Google API
+ * request, retries by reason, cache hits and misses, how long changes were held back by the
+ * RecentlyManipulatedObjectsList, and the rate and processing time of each type of change log entry.
+ *
+ * The registry is static so the numbers carry across the ChangeLogConsumer object's (prototype) life cycling.
+ * configure() publishes it over JMX and/or reports it periodically to the log and to CSV files, so the numbers are
+ * available without turning on debug logging.
+ */
+public class GoogleAppsMetrics {
+    private static final Logger LOG = LoggerFactory.getLogger(GoogleAppsMetrics.class);
+
+    /** the JMX domain, and the logger the periodic reports are written to */
+    public static final String DOMAIN = "edu.internet2.middleware.changelogconsumer.googleapps";
+
+    /** retry reasons */
+    public static final String RATE_LIMIT_EXCEEDED = "rateLimitExceeded";
+    public static final String BACKEND_ERROR = "backendError";
+    public static final String IO_ERROR = "IO";
+
+    private static final MetricRegistry registry = new MetricRegistry();
+    private static final ConcurrentHashMap<Class<?>, Timer> requestTimers = new ConcurrentHashMap<Class<?>, Timer>();
+
+    private static JmxReporter jmxReporter;
+    private static ScheduledReporter logReporter;
+    private static ScheduledReporter csvReporter;
+    private static String reporting = "";
+
+    private GoogleAppsMetrics() {
+    }
+
+    /**
+     * @return the registry holding every metric
+     */
+    public static MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @param request a Google API request, e.g. a Directory.Members.Insert
+     * @return the timer for that type of request, named e.g. "requests.Directory.Members.Insert"
+     */
+    public static Timer requestTimer(Object request) {
+        final Class<?> type = request.getClass();
+        Timer timer = requestTimers.get(type);
+
+        if (timer == null) {
+            timer = registry.timer(MetricRegistry.name("requests", requestName(type)));
+            requestTimers.putIfAbsent(type, timer);
+        }
+
+        return timer;
+    }
+
+    /**
+     * counts a request that is being retried.
+     * @param reason RATE_LIMIT_EXCEEDED, BACKEND_ERROR or IO_ERROR
+     */
+    public static void retried(String reason) {
+        registry.meter(MetricRegistry.name("retries", reason)).mark();
+    }
+
+    /**
+     * counts a call that failed and that its retry policy won't retry (any more).
+     */
+    public static void failed() {
+        registry.meter("requests.failures").mark();
+    }
+
+    /**
+     * @param eventType the change log event type, e.g. "membership__addMembership"
+     * @return the timer for that type of change log entry; its rate is the entries processed per second
+     */
+    public static Timer changeLogTimer(String eventType) {
+        return registry.timer(MetricRegistry.name("changeLog", eventType));
+    }
+
+    /**
+     * @param name the metric name
+     * @return the meter with that name
+     */
+    public static Meter meter(String name) {
+        return registry.meter(name);
+    }
+
+    /**
+     * @param name the metric name
+     * @return the timer with that name
+     */
+    public static Timer timer(String name) {
+        return registry.timer(name);
+    }
+
+    /**
+     * registers a gauge, replacing any gauge already registered under the name.
+     * @param name the metric name
+     * @param gauge the gauge
+     */
+    public static void gauge(String name, Gauge<?> gauge) {
+        synchronized (registry) {
+            registry.remove(name);
+            registry.register(name, gauge);
+        }
+    }
+
+    /**
+     * Starts (or restarts) the metric reporters. Does nothing if they are already running with the same settings.
+     * @param jmx whether to publish the metrics over JMX
+     * @param reportInterval how often (in seconds) to write the metrics to the log, and the CSV files; 0 for never
+     * @param csvDirectory where to write the CSV files, empty for no CSV files
+     */
+    public static synchronized void configure(boolean jmx, int reportInterval, String csvDirectory) {
+        final String settings = jmx + "|" + reportInterval + "|" + csvDirectory;
+        if (settings.equals(reporting)) {
+            return;
+        }
+
+        stop();
+        reporting = settings;
+
+        if (jmx) {
+            jmxReporter = JmxReporter.forRegistry(registry)
+                    .inDomain(DOMAIN)
+                    .convertRatesTo(TimeUnit.SECONDS)
+                    .convertDurationsTo(TimeUnit.MILLISECONDS)
+                    .build();
+            jmxReporter.start();
+        }
+
+        if (reportInterval > 0) {
+            logReporter = Slf4jReporter.forRegistry(registry)
+                    .outputTo(LoggerFactory.getLogger(DOMAIN + ".metrics"))
+                    .convertRatesTo(TimeUnit.SECONDS)
+                    .convertDurationsTo(TimeUnit.MILLISECONDS)
+                    .build();
+            logReporter.start(reportInterval, TimeUnit.SECONDS);
+
+            if (!csvDirectory.isEmpty()) {
+                final File directory = new File(csvDirectory);
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    LOG.warn("Google Apps Consumer - Unable to create the metrics directory {}, not writing CSV files", directory);
+                } else {
+                    csvReporter = CsvReporter.forRegistry(registry)
+                            .formatFor(Locale.US)
+                            .convertRatesTo(TimeUnit.SECONDS)
+                            .convertDurationsTo(TimeUnit.MILLISECONDS)
+                            .build(directory);
+                    csvReporter.start(reportInterval, TimeUnit.SECONDS);
+                }
+            }
+        }
+
+        LOG.debug("Google Apps Consumer - Reporting metrics: jmx={}, every {}s, csv directory '{}'",
+                new Object[]{jmx, reportInterval, csvDirectory});
+    }
+
+    /**
+     * stops the metric reporters. The metrics themselves keep counting.
+     */
+    public static synchronized void stop() {
+        if (jmxReporter != null) {
+            jmxReporter.stop();
+            jmxReporter = null;
+        }
+        if (logReporter != null) {
+            logReporter.stop();
+            logReporter = null;
+        }
+        if (csvReporter != null) {
+            csvReporter.stop();
+            csvReporter = null;
+        }
+        reporting = "";
+    }
+
+    /**
+     * @param type a request class, e.g. com.google.api.services.admin.directory.Directory$Members$Insert
+     * @return the class name without its package and with nested classes dotted, e.g. "Directory.Members.Insert"
+     */
+    static String requestName(Class<?> type) {
+        final String name = type.getName();
+        return name.substring(name.lastIndexOf('.') + 1).replace('$', '.');
+    }
+}
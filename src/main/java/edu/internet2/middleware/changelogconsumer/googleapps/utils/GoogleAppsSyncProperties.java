@@ -19,6 +19,8 @@ package edu.internet2.middleware.changelogconsumer.googleapps.utils;
 
 import com.google.api.services.groupssettings.model.Groups;
 import edu.internet2.middleware.grouper.app.loader.GrouperLoaderConfig;
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +34,11 @@ public class GoogleAppsSyncProperties {
     private static final Logger LOG = LoggerFactory.getLogger(GoogleAppsSyncProperties.class);
     private static final String PARAMETER_NAMESPACE = "changeLog.consumer.";
 
+    /** The partial-response projections (the "fields" parameter) the provisioner needs from each resource type. */
+    public static final String DEFAULT_USER_FIELDS = "id,primaryEmail,name";
+    public static final String DEFAULT_GROUP_FIELDS = "id,email,name,description,aliases";
+    public static final String DEFAULT_MEMBER_FIELDS = "id,email,role,type";
+
     private String serviceAccountPKCS12FilePath;
     private String serviceAccountEmail;
     private String serviceImpersonationUser;
@@ -45,12 +52,31 @@ public class GoogleAppsSyncProperties {
     private int googleUserCacheValidity;
     private int googleGroupCacheValidity;
 
+    /** how many entries the Google caches may hold, 0 for no limit */
+    private int googleUserCacheMaxSize;
+    private int googleGroupCacheMaxSize;
+
     /** should the Google caches be pre-filled at start-up to take advantage of bath queries */
     private boolean prefillGoogleCachesForConsumer;
     private boolean prefillGoogleCachesForFullSync;
 
+    /** should the change log consumer reload the Google caches on a background thread before they expire */
+    private boolean refreshGoogleCachesInBackground;
+
+    /** where local state (such as the Google cache snapshots) is kept, empty to keep no local state */
+    private String stateDirectory;
+
+    /** how old (in minutes) a Google cache snapshot may be and still be used for a warm start */
+    private int googleCacheSnapshotMaxAge;
+
+    /** how many groups that weren't changed an incremental full sync also verifies, in rotation */
+    private int fullSyncSampleSize;
+
     private boolean retryOnError;
 
+    /** whether to fold each batch of change log entries into its net changes before processing it */
+    private boolean compactChangeLog;
+
     /** Whether or not to provision users. */
     private boolean provisionUsers;
 
@@ -86,6 +112,50 @@ public class GoogleAppsSyncProperties {
     private int recentlyManipulatedQueueSize;
     private int recentlyManipulatedQueueDelay;
 
+    /** How many membership changes are sent to Google in a single batch request */
+    private int googleBatchSize;
+
+    /** How many groups a full sync reconciles concurrently */
+    private int fullSyncThreadCount;
+
+    /** How many groups the change log consumer processes concurrently */
+    private int changeLogThreadCount;
+
+    /**
+     * How long (in minutes) a full sync lock is honoured before it is assumed to be left over from a sync that died;
+     * a running sync refreshes its lock several times within this period
+     */
+    private int fullSyncLockTimeout;
+
+    /** Client-side rate limits (requests per second) for each API, 0 (the default) disables the limit */
+    private int directoryReadRateLimit;
+    private int directoryWriteRateLimit;
+    private int groupssettingsReadRateLimit;
+    private int groupssettingsWriteRateLimit;
+
+    /** The fields requested from Google for each resource type, empty for the full resource */
+    private String googleUserFields;
+    private String googleGroupFields;
+    private String googleMemberFields;
+
+    /** How failed Google API calls are retried: attempts, the total deadline (seconds) and the back-off bounds (ms) */
+    private int retryMaxAttempts;
+    private int retryDeadline;
+    private int retryBaseDelay;
+    private int retryMaxDelay;
+
+    /** How many asynchronous Google API requests can be on the wire at once */
+    private int asyncRequestThreadCount;
+
+    /** Whether to publish the metrics over JMX */
+    private boolean metricsJmx;
+
+    /** How often (in seconds) the metrics are written to the log and the CSV files, 0 for never */
+    private int metricsReportInterval;
+
+    /** Where the metrics CSV files are written, empty for no CSV files */
+    private String metricsCsvDirectory;
+
     public GoogleAppsSyncProperties(String consumerName) {
         final String qualifiedParameterNamespace = PARAMETER_NAMESPACE + consumerName + ".";
 
@@ -147,12 +217,36 @@ public class GoogleAppsSyncProperties {
                 GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "googleGroupCacheValidityPeriod", 30);
         LOG.debug("Google Apps Consumer - Setting googleGroupCacheValidityPeriod to {}", googleGroupCacheValidity);
 
+        googleUserCacheMaxSize =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "googleUserCacheMaxSize", 0);
+        LOG.debug("Google Apps Consumer - Setting googleUserCacheMaxSize to {}", googleUserCacheMaxSize);
+
+        googleGroupCacheMaxSize =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "googleGroupCacheMaxSize", 0);
+        LOG.debug("Google Apps Consumer - Setting googleGroupCacheMaxSize to {}", googleGroupCacheMaxSize);
+
         prefillGoogleCachesForConsumer = GrouperLoaderConfig.retrieveConfig().propertyValueBoolean(PARAMETER_NAMESPACE + "prefillGoogleCachesForConsumer", false);
         LOG.debug("Google Apps Consumer - Setting prefillGoogleCachesForConsumer to {}", prefillGoogleCachesForConsumer);
 
         prefillGoogleCachesForFullSync = GrouperLoaderConfig.retrieveConfig().propertyValueBoolean(PARAMETER_NAMESPACE + "prefillGoogleCachesForFullSync", false);
         LOG.debug("Google Apps Consumer - Setting prefillGoogleCachesForFullSync to {}", prefillGoogleCachesForFullSync);
 
+        refreshGoogleCachesInBackground =
+                GrouperLoaderConfig.retrieveConfig().propertyValueBoolean(qualifiedParameterNamespace + "refreshGoogleCachesInBackground", false);
+        LOG.debug("Google Apps Consumer - Setting refreshGoogleCachesInBackground to {}", refreshGoogleCachesInBackground);
+
+        stateDirectory =
+                GrouperLoaderConfig.retrieveConfig().propertyValueString(qualifiedParameterNamespace + "stateDirectory", "");
+        LOG.debug("Google Apps Consumer - Setting stateDirectory to {}", stateDirectory);
+
+        googleCacheSnapshotMaxAge =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "googleCacheSnapshotMaxAge", 1440);
+        LOG.debug("Google Apps Consumer - Setting googleCacheSnapshotMaxAge to {}", googleCacheSnapshotMaxAge);
+
+        fullSyncSampleSize =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "fullSyncSampleSize", 100);
+        LOG.debug("Google Apps Consumer - Setting fullSyncSampleSize to {}", fullSyncSampleSize);
+
         handleDeletedGroup =
                 GrouperLoaderConfig.retrieveConfig().propertyValueString(qualifiedParameterNamespace + "handleDeletedGroup", "ignore");
         LOG.debug("Google Apps Consumer - Setting handleDeletedGroup to {}", handleDeletedGroup);
@@ -169,6 +263,82 @@ public class GoogleAppsSyncProperties {
                 GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "recentlyManipulatedQueueDelay", 2);
         LOG.debug("Google Apps Consumer - Setting recentlyManipulatedQueueDelay to {}", recentlyManipulatedQueueDelay);
 
+        googleBatchSize =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "googleBatchSize", 50);
+        LOG.debug("Google Apps Consumer - Setting googleBatchSize to {}", googleBatchSize);
+
+        fullSyncThreadCount =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "fullSyncThreadCount", 1);
+        LOG.debug("Google Apps Consumer - Setting fullSyncThreadCount to {}", fullSyncThreadCount);
+
+        changeLogThreadCount =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "changeLogThreadCount", 1);
+        LOG.debug("Google Apps Consumer - Setting changeLogThreadCount to {}", changeLogThreadCount);
+
+        fullSyncLockTimeout =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "fullSyncLockTimeout", 15);
+        LOG.debug("Google Apps Consumer - Setting fullSyncLockTimeout to {}", fullSyncLockTimeout);
+
+        directoryReadRateLimit =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "directoryReadRateLimit", 0);
+        LOG.debug("Google Apps Consumer - Setting directoryReadRateLimit to {}", directoryReadRateLimit);
+
+        directoryWriteRateLimit =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "directoryWriteRateLimit", 0);
+        LOG.debug("Google Apps Consumer - Setting directoryWriteRateLimit to {}", directoryWriteRateLimit);
+
+        groupssettingsReadRateLimit =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "groupssettingsReadRateLimit", 0);
+        LOG.debug("Google Apps Consumer - Setting groupssettingsReadRateLimit to {}", groupssettingsReadRateLimit);
+
+        groupssettingsWriteRateLimit =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "groupssettingsWriteRateLimit", 0);
+        LOG.debug("Google Apps Consumer - Setting groupssettingsWriteRateLimit to {}", groupssettingsWriteRateLimit);
+
+        googleUserFields =
+                GrouperLoaderConfig.retrieveConfig().propertyValueString(qualifiedParameterNamespace + "googleUserFields", DEFAULT_USER_FIELDS);
+        LOG.debug("Google Apps Consumer - Setting googleUserFields to {}", googleUserFields);
+
+        googleGroupFields =
+                GrouperLoaderConfig.retrieveConfig().propertyValueString(qualifiedParameterNamespace + "googleGroupFields", DEFAULT_GROUP_FIELDS);
+        LOG.debug("Google Apps Consumer - Setting googleGroupFields to {}", googleGroupFields);
+
+        googleMemberFields =
+                GrouperLoaderConfig.retrieveConfig().propertyValueString(qualifiedParameterNamespace + "googleMemberFields", DEFAULT_MEMBER_FIELDS);
+        LOG.debug("Google Apps Consumer - Setting googleMemberFields to {}", googleMemberFields);
+
+        retryMaxAttempts =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "retryMaxAttempts", 7);
+        LOG.debug("Google Apps Consumer - Setting retryMaxAttempts to {}", retryMaxAttempts);
+
+        retryDeadline =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "retryDeadline", 120);
+        LOG.debug("Google Apps Consumer - Setting retryDeadline to {}", retryDeadline);
+
+        retryBaseDelay =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "retryBaseDelay", 1000);
+        LOG.debug("Google Apps Consumer - Setting retryBaseDelay to {}", retryBaseDelay);
+
+        retryMaxDelay =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "retryMaxDelay", 32000);
+        LOG.debug("Google Apps Consumer - Setting retryMaxDelay to {}", retryMaxDelay);
+
+        asyncRequestThreadCount =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "asyncRequestThreadCount", 8);
+        LOG.debug("Google Apps Consumer - Setting asyncRequestThreadCount to {}", asyncRequestThreadCount);
+
+        metricsJmx =
+                GrouperLoaderConfig.retrieveConfig().propertyValueBoolean(qualifiedParameterNamespace + "metricsJmx", true);
+        LOG.debug("Google Apps Consumer - Setting metricsJmx to {}", metricsJmx);
+
+        metricsReportInterval =
+                GrouperLoaderConfig.retrieveConfig().propertyValueInt(qualifiedParameterNamespace + "metricsReportInterval", 0);
+        LOG.debug("Google Apps Consumer - Setting metricsReportInterval to {}", metricsReportInterval);
+
+        metricsCsvDirectory =
+                GrouperLoaderConfig.retrieveConfig().propertyValueString(qualifiedParameterNamespace + "metricsCsvDirectory", "");
+        LOG.debug("Google Apps Consumer - Setting metricsCsvDirectory to {}", metricsCsvDirectory);
+
 
         defaultGroupSettings.setWhoCanViewMembership(
                 GrouperLoaderConfig.retrieveConfig().propertyValueString(qualifiedParameterNamespace + "whoCanViewMembership", "ALL_IN_DOMAIN_CAN_VIEW"));
@@ -249,6 +419,9 @@ public class GoogleAppsSyncProperties {
         retryOnError = GrouperLoaderConfig.retrieveConfig().propertyValueBoolean(PARAMETER_NAMESPACE + "retryOnError", false);
         LOG.debug("Google Apps Consumer - Setting retryOnError to {}", retryOnError);
 
+        compactChangeLog = GrouperLoaderConfig.retrieveConfig().propertyValueBoolean(qualifiedParameterNamespace + "compactChangeLog", true);
+        LOG.debug("Google Apps Consumer - Setting compactChangeLog to {}", compactChangeLog);
+
         googleGroupFilter = GrouperLoaderConfig.retrieveConfig().propertyValueString(PARAMETER_NAMESPACE + "googleGroupFilter", ".*");
         LOG.debug("Google Apps Consumer - Setting googleGroupFilter to {}", googleGroupFilter);
 
@@ -257,6 +430,20 @@ public class GoogleAppsSyncProperties {
 
     }
 
+    /**
+     * Two property sets are equal when every configured value is the same; used to tell when a consumer needs to be
+     * re-initialized.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        return EqualsBuilder.reflectionEquals(this, obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
     public boolean isRetryOnError() {
         return retryOnError;
     }
@@ -301,6 +488,14 @@ public class GoogleAppsSyncProperties {
         return googleUserCacheValidity;
     }
 
+    public int getGoogleGroupCacheMaxSize() {
+        return googleGroupCacheMaxSize;
+    }
+
+    public int getGoogleUserCacheMaxSize() {
+        return googleUserCacheMaxSize;
+    }
+
     public boolean getprefillGoogleCachesForConsumer() {
         return prefillGoogleCachesForConsumer;
     }
@@ -309,6 +504,10 @@ public class GoogleAppsSyncProperties {
         return prefillGoogleCachesForFullSync;
     }
 
+    public boolean shouldRefreshGoogleCachesInBackground() {
+        return refreshGoogleCachesInBackground;
+    }
+
     public String getSubjectIdentifierExpression() {
         return subjectIdentifierExpression;
     }
@@ -348,4 +547,96 @@ public class GoogleAppsSyncProperties {
     public int getRecentlyManipulatedQueueDelay() {
         return recentlyManipulatedQueueDelay;
     }
+
+    public int getGoogleBatchSize() {
+        return googleBatchSize;
+    }
+
+    public int getFullSyncThreadCount() {
+        return fullSyncThreadCount;
+    }
+
+    public int getDirectoryReadRateLimit() {
+        return directoryReadRateLimit;
+    }
+
+    public int getDirectoryWriteRateLimit() {
+        return directoryWriteRateLimit;
+    }
+
+    public int getGroupssettingsReadRateLimit() {
+        return groupssettingsReadRateLimit;
+    }
+
+    public int getGroupssettingsWriteRateLimit() {
+        return groupssettingsWriteRateLimit;
+    }
+
+    public String getStateDirectory() {
+        return stateDirectory;
+    }
+
+    public int getGoogleCacheSnapshotMaxAge() {
+        return googleCacheSnapshotMaxAge;
+    }
+
+    public String getGoogleUserFields() {
+        return googleUserFields;
+    }
+
+    public String getGoogleGroupFields() {
+        return googleGroupFields;
+    }
+
+    public String getGoogleMemberFields() {
+        return googleMemberFields;
+    }
+
+    public boolean shouldCompactChangeLog() {
+        return compactChangeLog;
+    }
+
+    public int getChangeLogThreadCount() {
+        return changeLogThreadCount;
+    }
+
+    public int getFullSyncSampleSize() {
+        return fullSyncSampleSize;
+    }
+
+    public int getFullSyncLockTimeout() {
+        return fullSyncLockTimeout;
+    }
+
+    public int getRetryMaxAttempts() {
+        return retryMaxAttempts;
+    }
+
+    public int getRetryDeadline() {
+        return retryDeadline;
+    }
+
+    public int getRetryBaseDelay() {
+        return retryBaseDelay;
+    }
+
+    public int getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+
+    public int getAsyncRequestThreadCount() {
+        return asyncRequestThreadCount;
+    }
+
+    public boolean shouldPublishMetricsOverJmx() {
+        return metricsJmx;
+    }
+
+    public int getMetricsReportInterval() {
+        return metricsReportInterval;
+    }
+
+    public String getMetricsCsvDirectory() {
+        return metricsCsvDirectory;
+    }
 }
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.utils;
+
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.Member;
+import edu.internet2.middleware.grouper.cfg.GrouperConfig;
+import edu.internet2.middleware.grouper.privs.PrivilegeHelper;
+import edu.internet2.middleware.grouper.subj.InternalSourceAdapter;
+import edu.internet2.middleware.subject.Subject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * GroupRoleResolver decides whether a group member is a Google MEMBER or MANAGER from the group's ADMIN and UPDATE
+ * privilege holders. The holders are loaded for the whole group at once and kept for a few minutes, so resolving the
+ * roles of a group's members costs one privilege lookup per privilege instead of one per member. Wheel group members
+ * and the root subject can administer every group without holding the privilege, so they are looked up once per
+ * subject and treated as ADMIN holders, just as member.canAdmin(group) would.
+ *
+ * Call invalidate() when a group's privileges change.
+ */
+public class GroupRoleResolver {
+    private static final Logger LOG = LoggerFactory.getLogger(GroupRoleResolver.class);
+
+    private static final String ALL = key(InternalSourceAdapter.ID, GrouperConfig.ALL);
+
+    private final ConcurrentHashMap<String, GroupPrivileges> privileges = new ConcurrentHashMap<String, GroupPrivileges>();
+    private final ConcurrentHashMap<String, WheelOrRoot> wheelOrRoot = new ConcurrentHashMap<String, WheelOrRoot>();
+    private volatile String whoCanManage = "none";
+    private volatile long validity = 5 * 60000L;
+
+    /**
+     * @param whoCanManage which privilege holders become managers: none, ADMIN, UPDATE or BOTH
+     */
+    public GroupRoleResolver setWhoCanManage(String whoCanManage) {
+        this.whoCanManage = whoCanManage;
+        return this;
+    }
+
+    /**
+     * @param minutes how long a group's privilege holders are kept
+     */
+    public GroupRoleResolver setCacheValidity(int minutes) {
+        this.validity = minutes * 60000L;
+        return this;
+    }
+
+    /**
+     * @param member a member of the group
+     * @param group a Grouper group
+     * @return the member's Google role, MANAGER or MEMBER
+     */
+    public String determineRole(Member member, Group group) {
+        final String manage = whoCanManage;
+        final boolean both = manage.equalsIgnoreCase("BOTH");
+        final boolean admin = manage.equalsIgnoreCase("ADMIN");
+        final boolean update = manage.equalsIgnoreCase("UPDATE");
+
+        if (!both && !admin && !update) {
+            return "MEMBER";
+        }
+
+        final GroupPrivileges groupPrivileges = privileges(group, !admin);
+        final String key = key(member.getSubjectSourceId(), member.getSubjectId());
+        final boolean canUpdate = !admin && groupPrivileges.isUpdater(key);
+
+        // the wheel lookup is only needed when the holders alone don't settle the role
+        boolean canAdmin = groupPrivileges.isAdmin(key);
+        if (!canAdmin && (admin || (both && !canUpdate) || (update && canUpdate))) {
+            canAdmin = isWheelOrRoot(member, key);
+        }
+
+        if ((both && (canAdmin || canUpdate))
+                || (admin && canAdmin)
+                || (update && canUpdate && !canAdmin)
+           ) {
+            return "MANAGER";
+        } else {
+            return "MEMBER";
+        }
+    }
+
+    /**
+     * forgets a group's privilege holders.
+     * @param groupName the group's name
+     */
+    public void invalidate(String groupName) {
+        privileges.remove(groupName);
+    }
+
+    public void clear() {
+        privileges.clear();
+        wheelOrRoot.clear();
+    }
+
+    /**
+     * @param member a Grouper member
+     * @return true if the member is the root subject or in the wheel group, and so can administer every group
+     */
+    protected boolean isWheelOrRoot(Member member) {
+        return PrivilegeHelper.isWheelOrRoot(member.getSubject());
+    }
+
+    private boolean isWheelOrRoot(Member member, String key) {
+        final WheelOrRoot cached = wheelOrRoot.get(key);
+        if (cached != null && System.currentTimeMillis() - cached.loaded < validity) {
+            return cached.value;
+        }
+
+        final WheelOrRoot loaded = new WheelOrRoot(isWheelOrRoot(member));
+        wheelOrRoot.put(key, loaded);
+        return loaded.value;
+    }
+
+    private GroupPrivileges privileges(Group group, boolean needUpdaters) {
+        final GroupPrivileges cached = privileges.get(group.getName());
+        if (cached != null && System.currentTimeMillis() - cached.loaded < validity && (cached.updaters != null || !needUpdaters)) {
+            return cached;
+        }
+
+        LOG.debug("Loading the privilege holders of {}", group.getName());
+        final GroupPrivileges loaded = new GroupPrivileges(keys(group.getAdmins()),
+                needUpdaters ? keys(group.getUpdaters()) : null);
+
+        privileges.put(group.getName(), loaded);
+        return loaded;
+    }
+
+    private static Set<String> keys(Set<Subject> subjects) {
+        final Set<String> keys = new HashSet<String>(subjects.size());
+        for (Subject subject : subjects) {
+            keys.add(key(subject.getSourceId(), subject.getId()));
+        }
+        return keys;
+    }
+
+    private static String key(String sourceId, String subjectId) {
+        return sourceId + "__" + subjectId;
+    }
+
+    /** Whether a subject is in the wheel group or is the root subject. */
+    private static class WheelOrRoot {
+        private final boolean value;
+        private final long loaded = System.currentTimeMillis();
+
+        WheelOrRoot(boolean value) {
+            this.value = value;
+        }
+    }
+
+    /** The subjects holding a group's ADMIN and UPDATE privileges. */
+    private static class GroupPrivileges {
+        private final Set<String> admins;
+        private final Set<String> updaters;
+        private final long loaded = System.currentTimeMillis();
+
+        GroupPrivileges(Set<String> admins, Set<String> updaters) {
+            this.admins = admins;
+            this.updaters = updaters;
+        }
+
+        boolean isAdmin(String key) {
+            return admins.contains(key) || admins.contains(ALL);
+        }
+
+        boolean isUpdater(String key) {
+            final Set<String> holders = updaters != null ? updaters : Collections.<String>emptySet();
+            return holders.contains(key) || holders.contains(ALL);
+        }
+    }
+}
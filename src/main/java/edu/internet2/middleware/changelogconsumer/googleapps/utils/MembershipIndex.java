@@ -0,0 +1,338 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MembershipIndex keeps, for every user, the synced Google groups the user belongs to, so deciding whether a user
+ * still has any memberships is a lookup instead of a scan of every group in the directory.
+ *
+ * A full sync fills the index from each group's membership, and the connector keeps it up to date as it adds and
+ * removes members. Until the index has been filled (or loaded) from a complete full sync it only knows about part of
+ * the directory, so isPopulated() must be checked before trusting a user's lack of memberships.
+ *
+ * The index can be saved to a plain text file with one group per line: the group address followed by its members,
+ * separated by tabs. Addresses are kept in lower case.
+ *
+ * Between full syncs the change log consumer journals its changes: once startJournal() is called, every add and
+ * remove is recorded, and flushJournal() appends them to a journal file beside the saved index ("+", "-" or "x" for a
+ * removed group, then the addresses, separated by tabs). load() replays the journal over the saved index, and save()
+ * starts a new, empty journal, so a restarted consumer picks up where the last one left off.
+ */
+public class MembershipIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(MembershipIndex.class);
+    private static final String ENCODING = "UTF-8";
+
+    private final Map<String, Set<String>> groupsByUser = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> membersByGroup = new HashMap<String, Set<String>>();
+    private boolean populated;
+
+    private File journal;
+    private final List<String> journalEntries = new ArrayList<String>();
+
+    /**
+     * records a membership.
+     * @param groupAddress the Google group's address
+     * @param userAddress the member's address
+     */
+    public synchronized void add(String groupAddress, String userAddress) {
+        final String group = groupAddress.toLowerCase();
+        final String user = userAddress.toLowerCase();
+
+        entry(membersByGroup, group).add(user);
+        entry(groupsByUser, user).add(group);
+        journal("+", group, user);
+    }
+
+    /**
+     * forgets a membership.
+     * @param groupAddress the Google group's address
+     * @param userAddress the member's address
+     */
+    public synchronized void remove(String groupAddress, String userAddress) {
+        final String group = groupAddress.toLowerCase();
+        final String user = userAddress.toLowerCase();
+
+        removeFrom(membersByGroup, group, user);
+        removeFrom(groupsByUser, user, group);
+        journal("-", group, user);
+    }
+
+    /**
+     * replaces everything known about a group's membership.
+     * @param groupAddress the Google group's address
+     * @param userAddresses the group's members
+     */
+    public synchronized void setMembers(String groupAddress, Collection<String> userAddresses) {
+        removeGroup(groupAddress);
+
+        for (String userAddress : userAddresses) {
+            add(groupAddress, userAddress);
+        }
+    }
+
+    /**
+     * forgets a group and all of its memberships.
+     * @param groupAddress the Google group's address
+     */
+    public synchronized void removeGroup(String groupAddress) {
+        final String group = groupAddress.toLowerCase();
+        final Set<String> members = membersByGroup.remove(group);
+
+        if (members != null) {
+            for (String user : members) {
+                removeFrom(groupsByUser, user, group);
+            }
+        }
+        journal("x", group, null);
+    }
+
+    /**
+     * @param userAddress the user's address
+     * @return the groups the user belongs to
+     */
+    public synchronized Set<String> getGroups(String userAddress) {
+        final Set<String> groups = groupsByUser.get(userAddress.toLowerCase());
+        return groups == null ? Collections.<String>emptySet() : new HashSet<String>(groups);
+    }
+
+    /**
+     * @param userAddress the user's address
+     * @return true if the user belongs to at least one group
+     */
+    public synchronized boolean hasMemberships(String userAddress) {
+        return groupsByUser.containsKey(userAddress.toLowerCase());
+    }
+
+    /**
+     * @return true if the index was filled by (or loaded from) a complete full sync
+     */
+    public synchronized boolean isPopulated() {
+        return populated;
+    }
+
+    /**
+     * records that the index now holds the membership of every synced group.
+     */
+    public synchronized void markPopulated() {
+        populated = true;
+    }
+
+    /**
+     * @return the number of groups in the index
+     */
+    public synchronized int groupCount() {
+        return membersByGroup.size();
+    }
+
+    /**
+     * forgets everything.
+     */
+    public synchronized void clear() {
+        groupsByUser.clear();
+        membersByGroup.clear();
+        populated = false;
+    }
+
+    /**
+     * records the changes made from now on, for flushJournal() to append to the journal of a saved index.
+     * @param file the saved index the journal belongs to
+     */
+    public synchronized void startJournal(File file) {
+        journal = journalFile(file);
+    }
+
+    /**
+     * appends the changes recorded since the last flush to the journal.
+     * @throws IOException
+     */
+    public synchronized void flushJournal() throws IOException {
+        if (journal == null || journalEntries.isEmpty()) {
+            return;
+        }
+
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(journal, true), ENCODING);
+        try {
+            for (String entry : journalEntries) {
+                writer.write(entry);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        LOG.debug("flushJournal() - journaled {} changes to {}", journalEntries.size(), journal);
+        journalEntries.clear();
+    }
+
+    /**
+     * writes the index to a file, by way of a temporary file that is renamed into place, and empties its journal.
+     * @param file where to save the index
+     * @throws IOException
+     */
+    public synchronized void save(File file) throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create index directory " + directory);
+        }
+
+        final File temp = new File(file.getPath() + ".tmp");
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(temp), ENCODING);
+        try {
+            for (Map.Entry<String, Set<String>> group : membersByGroup.entrySet()) {
+                writer.write(group.getKey());
+                for (String user : group.getValue()) {
+                    writer.write('\t');
+                    writer.write(user);
+                }
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Unable to move index " + temp + " to " + file);
+        }
+
+        //the saved index already holds every journaled change
+        journalEntries.clear();
+        final File savedJournal = journalFile(file);
+        if (savedJournal.isFile() && !savedJournal.delete()) {
+            throw new IOException("Unable to remove the index journal " + savedJournal);
+        }
+
+        LOG.debug("save() - saved {} groups to {}", membersByGroup.size(), file);
+    }
+
+    /**
+     * replaces the contents of the index with a saved one, replays its journal, and marks it populated.
+     * @param file the saved index
+     * @return false if there is no saved index
+     * @throws IOException
+     */
+    public synchronized boolean load(File file) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+
+        clear();
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields[0].isEmpty()) {
+                    continue;
+                }
+
+                entry(membersByGroup, fields[0]);
+                for (int i = 1; i < fields.length; i++) {
+                    add(fields[0], fields[i]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        final int replayed = replay(journalFile(file));
+
+        //loading isn't a change, so nothing above is journaled again
+        journalEntries.clear();
+        populated = true;
+        LOG.debug("load() - loaded {} groups and {} journaled changes from {}", new Object[]{membersByGroup.size(), replayed, file});
+        return true;
+    }
+
+    /** must hold the lock */
+    private int replay(File file) throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        int replayed = 0;
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields[0].equals("+") && fields.length == 3) {
+                    add(fields[1], fields[2]);
+                } else if (fields[0].equals("-") && fields.length == 3) {
+                    remove(fields[1], fields[2]);
+                } else if (fields[0].equals("x") && fields.length == 2) {
+                    removeGroup(fields[1]);
+                } else {
+                    //a line cut short by a crash
+                    continue;
+                }
+                replayed++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        return replayed;
+    }
+
+    /** must hold the lock */
+    private void journal(String operation, String group, String user) {
+        if (journal != null) {
+            journalEntries.add(user == null ? operation + "\t" + group : operation + "\t" + group + "\t" + user);
+        }
+    }
+
+    private static File journalFile(File file) {
+        return new File(file.getPath() + ".journal");
+    }
+
+    private static Set<String> entry(Map<String, Set<String>> map, String key) {
+        Set<String> values = map.get(key);
+        if (values == null) {
+            values = new HashSet<String>();
+            map.put(key, values);
+        }
+        return values;
+    }
+
+    private static void removeFrom(Map<String, Set<String>> map, String key, String value) {
+        final Set<String> values = map.get(key);
+        if (values != null && values.remove(value) && values.isEmpty()) {
+            map.remove(key);
+        }
+    }
+}
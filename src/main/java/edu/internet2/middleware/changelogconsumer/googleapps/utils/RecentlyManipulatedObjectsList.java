@@ -17,35 +17,109 @@
 
 package edu.internet2.middleware.changelogconsumer.googleapps.utils;
 
-import edu.internet2.middleware.changelogconsumer.googleapps.GoogleAppsFullSync;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 
 /**
- * RecentlyManipulatedObjectsList tracks objects that have been recently manipulated on Google so that a delay can be
- * introduced if that object is manipulated again in the near tear.
+ * RecentlyManipulatedObjectsList tracks objects that have been recently manipulated on Google so that further changes
+ * to the same object can be held back until Google has caught up.
  *
  * .add(item) should be called immediately after an object is manipulated (created, deleted, etc)
- * .delayIfNeeded(item) should be called immediately before an object is called.
+ * .submit(item, ...) runs a change to an object: straight away if the object hasn't been manipulated recently,
+ * otherwise the change is parked and run on a worker thread once the delay has passed. Only the changes to that
+ * object wait; the caller carries on. A change submitted while another thread is still running a change to the same
+ * object is parked too, and waits out the delay after that change finishes. Changes to one object run in the order
+ * they were submitted, and the last parked change can be replaced by a later one with the same coalesce key (e.g. two
+ * updates of the same group in a row).
+ * .drain() waits for the parked changes, and should be called at the end of a batch of work. It reports the parked
+ * changes that failed, the earliest change log sequence number among them (see setSequenceNumber()), so the caller
+ * can process those entries again, and the groups they were made for (see setGroup()).
+ *
+ * The list is safe to share between threads. How many changes were parked or coalesced, and how long parked changes
+ * waited, are recorded in GoogleAppsMetrics.
  */
 public class RecentlyManipulatedObjectsList {
     private static final Logger LOG = LoggerFactory.getLogger(RecentlyManipulatedObjectsList.class);
+    private static final Meter parkedMeter = GoogleAppsMetrics.meter("recentlyManipulated.parked");
+    private static final Meter coalescedMeter = GoogleAppsMetrics.meter("recentlyManipulated.coalesced");
+    private static final Timer delayTimer = GoogleAppsMetrics.timer("recentlyManipulated.delay");
+
+    /**
+     * A change to a Google object.
+     */
+    public interface Operation {
+        void run() throws IOException;
+    }
+
+    /**
+     * The outcome of a drain.
+     */
+    public static class Failures {
+        private final int count;
+        private final Long firstSequenceNumber;
+        private final Set<String> groups;
+
+        public Failures(int count, Long firstSequenceNumber, Set<String> groups) {
+            this.count = count;
+            this.firstSequenceNumber = firstSequenceNumber;
+            this.groups = groups;
+        }
+
+        /** @return how many parked changes failed */
+        public int getCount() {
+            return count;
+        }
+
+        /** @return the earliest sequence number a failed change was submitted under, or null if none was */
+        public Long getFirstSequenceNumber() {
+            return firstSequenceNumber;
+        }
+
+        /** @return the groups failed changes were made for */
+        public Set<String> getGroups() {
+            return groups;
+        }
+    }
 
-    private LinkedHashMap<String, String> queue;
+    private final LinkedHashMap<String, Long> recent;
+    private final Map<String, PendingKey> pending = new HashMap<String, PendingKey>();
+    private final Set<String> running = new HashSet<String>();
+    private final DelayQueue<PendingKey> ready = new DelayQueue<PendingKey>();
+    private final Object lock = new Object();
     private final int queueSize;
-    private long delay;
+    private final long delay;
+
+    private final ThreadLocal<Long> sequenceNumber = new ThreadLocal<Long>();
+    private final ThreadLocal<String> group = new ThreadLocal<String>();
+    private final Map<String, Integer> outstandingByGroup = new HashMap<String, Integer>();
+
+    private Thread worker;
+    private int outstanding;
+    private int failures;
+    private Long firstFailedSequenceNumber;
+    private Set<String> failedGroups = new HashSet<String>();
 
     public RecentlyManipulatedObjectsList(int size, int delay) {
         this.queueSize = size;
         this.delay = delay * 1000;
 
-        queue = new LinkedHashMap<String, String>(this.queueSize, 1)
+        recent = new LinkedHashMap<String, Long>(this.queueSize, 1)
         {
             @Override
-            protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
             {
                 return this.size() > queueSize;
             }
@@ -53,31 +127,300 @@ public class RecentlyManipulatedObjectsList {
     }
 
     public void add(String item){
-        queue.put(item, item);
+        synchronized (lock) {
+            recent.remove(item);
+            recent.put(item, System.currentTimeMillis());
+        }
         LOG.trace("Adding item {}", item);
     }
 
-    public boolean delayIfNeeded(String item) {
-        if (queue.containsKey(item)) {
+    /**
+     * Sets the change log sequence number the calling thread is processing; the changes it parks remember it.
+     * @param sequenceNumber the sequence number, or null when the changes don't come from the change log
+     */
+    public void setSequenceNumber(Long sequenceNumber) {
+        this.sequenceNumber.set(sequenceNumber);
+    }
+
+    /**
+     * Sets the group the calling thread is reconciling; the changes it parks remember it.
+     * @param groupAddress the group's address, or null when the changes aren't made for a group
+     */
+    public void setGroup(String groupAddress) {
+        this.group.set(groupAddress);
+    }
+
+    /**
+     * @param groupAddress a group's address
+     * @return true if changes made for the group (see setGroup()) are parked or running, or failed since the last drain
+     */
+    public boolean hasParkedChanges(String groupAddress) {
+        synchronized (lock) {
+            return outstandingByGroup.containsKey(groupAddress) || failedGroups.contains(groupAddress);
+        }
+    }
+
+    /**
+     * @param item the object's key
+     * @return true if changes to the object would be held back right now
+     */
+    public boolean isWaiting(String item) {
+        synchronized (lock) {
+            return isBusy(item);
+        }
+    }
+
+    /**
+     * Runs a change to an object, or parks it if the object was manipulated recently or already has parked changes.
+     * A change that runs straight away throws its own errors; a parked change's errors are logged and reported by drain().
+     * @param item the object's key
+     * @param coalesceKey a change replaces the object's last parked change if both have the same coalesce key;
+     *                    null if the change must always run
+     * @param operation the change
+     * @throws IOException
+     */
+    public void submit(String item, String coalesceKey, Operation operation) throws IOException {
+        synchronized (lock) {
+            if (isBusy(item)) {
+                park(item, coalesceKey, operation, sequenceNumber.get(), group.get());
+                return;
+            }
+
+            // other threads park their changes to the object until this one has finished
+            running.add(item);
+        }
+
+        boolean succeeded = false;
+        try {
+            operation.run();
+            succeeded = true;
+        } finally {
+            synchronized (lock) {
+                running.remove(item);
+                if (succeeded) {
+                    recent.remove(item);
+                    recent.put(item, System.currentTimeMillis());
+                    LOG.trace("Adding item {}", item);
+                }
+
+                final PendingKey pendingKey = pending.get(item);
+                if (pendingKey != null) {
+                    pendingKey.readyAt = Math.max(readyAt(item), System.currentTimeMillis());
+                    ready.put(pendingKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until every parked change has run.
+     * @return the parked changes that failed since the last drain
+     */
+    public Failures drain() {
+        synchronized (lock) {
+            while (outstanding > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            final Failures failed = new Failures(failures, firstFailedSequenceNumber, failedGroups);
+            failures = 0;
+            firstFailedSequenceNumber = null;
+            failedGroups = new HashSet<String>();
+            return failed;
+        }
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            recent.clear();
+        }
+    }
+
+    /** must hold the lock */
+    private boolean isBusy(String item) {
+        return pending.containsKey(item) || running.contains(item) || readyAt(item) > System.currentTimeMillis();
+    }
+
+    /** must hold the lock */
+    private long readyAt(String item) {
+        final Long manipulated = recent.get(item);
+        return manipulated == null ? 0 : manipulated + delay;
+    }
+
+    /** must hold the lock */
+    private void park(String item, String coalesceKey, Operation operation, Long sequenceNumber, String group) {
+        PendingKey pendingKey = pending.get(item);
+
+        if (pendingKey == null) {
+            pendingKey = new PendingKey(item, Math.max(readyAt(item), System.currentTimeMillis()));
+            pending.put(item, pendingKey);
+
+            // a key that's running is queued once the running change finishes
+            if (!running.contains(item)) {
+                ready.put(pendingKey);
+            }
+
+        } else if (coalesceKey != null && !pendingKey.operations.isEmpty()) {
+            // only the last parked change is replaced, so the change still runs after everything submitted before it
+            final PendingOperation parked = pendingKey.operations.getLast();
+            if (coalesceKey.equals(parked.coalesceKey) && (group == null ? parked.group == null : group.equals(parked.group))) {
+                LOG.trace("Item {} already has a parked {} change, replacing it.", item, coalesceKey);
+                parked.operation = operation;
+                if (parked.sequenceNumber == null) {
+                    parked.sequenceNumber = sequenceNumber;
+                }
+                coalescedMeter.mark();
+                return;
+            }
+        }
+
+        LOG.trace("Item {} was manipulated recently, parking the change until {}.", item, pendingKey.readyAt);
+        pendingKey.operations.add(new PendingOperation(coalesceKey, operation, sequenceNumber, group));
+        outstanding++;
+        if (group != null) {
+            final Integer count = outstandingByGroup.get(group);
+            outstandingByGroup.put(group, count == null ? 1 : count + 1);
+        }
+        parkedMeter.mark();
+
+        if (worker == null) {
+            worker = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "recently-manipulated-objects");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Runs parked changes as their objects become ready; the thread ends once nothing is parked.
+     */
+    private void work() {
+        while (true) {
+            final PendingKey pendingKey;
+            final PendingOperation next;
+
+            synchronized (lock) {
+                if (pending.isEmpty()) {
+                    worker = null;
+                    return;
+                }
+            }
+
             try {
-                LOG.trace("Item {} found, sleeping for {} milliseconds then removing.", item, delay);
-                Thread.sleep(delay);
+                pendingKey = ready.take();
             } catch (InterruptedException e) {
+                synchronized (lock) {
+                    worker = null;
+                }
+                return;
+            }
 
+            synchronized (lock) {
+                next = pendingKey.operations.removeFirst();
             }
+            delayTimer.update(System.currentTimeMillis() - next.parked, TimeUnit.MILLISECONDS);
 
-            queue.remove(item);
+            // changes the parked change submits in turn are traced to the same change log entry and group
+            sequenceNumber.set(next.sequenceNumber);
+            group.set(next.group);
+            try {
+                next.operation.run();
+
+            } catch (IOException e) {
+                LOG.error("Error running a delayed change to {}: {}", pendingKey.item, e);
+                failed(next);
+            } catch (RuntimeException e) {
+                LOG.error("Error running a delayed change to {}: {}", pendingKey.item, e);
+                failed(next);
+            } finally {
+                sequenceNumber.remove();
+                group.remove();
+            }
 
-            return true;
+            synchronized (lock) {
+                recent.remove(pendingKey.item);
+                recent.put(pendingKey.item, System.currentTimeMillis());
 
-        } else {
-            return false;
+                if (pendingKey.operations.isEmpty()) {
+                    pending.remove(pendingKey.item);
+                } else {
+                    pendingKey.readyAt = System.currentTimeMillis() + delay;
+                    ready.put(pendingKey);
+                }
+
+                outstanding--;
+                if (next.group != null) {
+                    final int count = outstandingByGroup.get(next.group);
+                    if (count > 1) {
+                        outstandingByGroup.put(next.group, count - 1);
+                    } else {
+                        outstandingByGroup.remove(next.group);
+                    }
+                }
+                lock.notifyAll();
+            }
         }
     }
 
-    public void clear() {
-        queue.clear();
+    private void failed(PendingOperation operation) {
+        synchronized (lock) {
+            failures++;
+            if (operation.sequenceNumber != null
+                    && (firstFailedSequenceNumber == null || operation.sequenceNumber < firstFailedSequenceNumber)) {
+                firstFailedSequenceNumber = operation.sequenceNumber;
+            }
+            if (operation.group != null) {
+                failedGroups.add(operation.group);
+            }
+        }
     }
-}
 
+    /** An object's parked changes, in order, and when the next one may run. */
+    private static class PendingKey implements Delayed {
+        private final String item;
+        private final LinkedList<PendingOperation> operations = new LinkedList<PendingOperation>();
+        private volatile long readyAt;
 
+        PendingKey(String item, long readyAt) {
+            this.item = item;
+            this.readyAt = readyAt;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            final long difference = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return difference < 0 ? -1 : (difference == 0 ? 0 : 1);
+        }
+    }
+
+    /**
+     * A parked change, when it was first parked, the earliest sequence number it was submitted under and the group
+     * it was made for.
+     */
+    private static class PendingOperation {
+        private final String coalesceKey;
+        private final long parked;
+        private final String group;
+        private Operation operation;
+        private Long sequenceNumber;
+
+        PendingOperation(String coalesceKey, Operation operation, Long sequenceNumber, String group) {
+            this.coalesceKey = coalesceKey;
+            this.parked = System.currentTimeMillis();
+            this.group = group;
+            this.operation = operation;
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.utils;
+
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RetryPolicy decides whether, and after how long, a failed Google API call is tried again.
+ *
+ * Back-off uses decorrelated jitter: each wait is picked at random between the base delay and three times the
+ * previous wait, capped at the maximum delay, so clients that failed together don't retry together. A Retry-After
+ * from Google is honoured when it asks for a longer wait. Each call has a total deadline as well as a maximum number
+ * of attempts; a retry that couldn't start before the deadline isn't made, which bounds how long a call can take.
+ *
+ * A policy for calls that are not idempotent (inserts) only retries an I/O error when the request never reached
+ * Google (e.g. the connection was refused); otherwise the call may have been applied and is not repeated. Errors that
+ * Google returned (rate limits, backend errors) are retried for every call. A rate limited call wasn't applied, but a
+ * call that hit a backend error may have been, so a retried insert can find the object already exists; see
+ * Call.mayHaveBeenApplied().
+ */
+public class RetryPolicy {
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+    private static final Random randomGenerator = new Random();
+    private static final Timer backOffTimer = GoogleAppsMetrics.timer("retries.backOff");
+
+    private final boolean idempotent;
+    private volatile int maxAttempts = 7;
+    private volatile long deadline = 120000;
+    private volatile long baseDelay = 1000;
+    private volatile long maxDelay = 32000;
+
+    /**
+     * @param idempotent whether the calls can safely be repeated (reads, updates and deletes)
+     */
+    public RetryPolicy(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    /**
+     * @param maxAttempts how many times a call is attempted, including the first
+     * @return this policy
+     */
+    public RetryPolicy setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        return this;
+    }
+
+    /**
+     * @param millis how long a call (all of its attempts and waits) may take before it is no longer retried
+     * @return this policy
+     */
+    public RetryPolicy setDeadline(long millis) {
+        this.deadline = millis;
+        return this;
+    }
+
+    /**
+     * @param millis the shortest wait before a retry
+     * @return this policy
+     */
+    public RetryPolicy setBaseDelay(long millis) {
+        this.baseDelay = Math.max(1, millis);
+        return this;
+    }
+
+    /**
+     * @param millis the longest wait before a retry, unless Google asks for longer with Retry-After
+     * @return this policy
+     */
+    public RetryPolicy setMaxDelay(long millis) {
+        this.maxDelay = millis;
+        return this;
+    }
+
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return the retry state for a new call, started now
+     */
+    public Call start() {
+        return new Call();
+    }
+
+    /**
+     * @param retryAfter a Retry-After header value: a number of seconds or an HTTP date; may be null
+     * @param now the current time in milliseconds
+     * @return how long (in milliseconds) Google asked us to wait, 0 if it didn't
+     */
+    public static long parseRetryAfter(String retryAfter, long now) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return 0;
+        }
+
+        final String value = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // not a number of seconds, so it should be a date
+        }
+
+        try {
+            final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            return Math.max(0, format.parse(value).getTime() - now);
+        } catch (ParseException e) {
+            LOG.debug("parseRetryAfter() - ignoring an unreadable Retry-After: {}", value);
+            return 0;
+        }
+    }
+
+    /**
+     * @param e an I/O error
+     * @return true if the error happened before the request was sent, so it was certainly not applied
+     */
+    private static boolean isUnsent(IOException e) {
+        return e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof UnknownHostException;
+    }
+
+    /**
+     * The retry state of a single call. Not thread safe; a call's attempts run one after the other.
+     */
+    public class Call {
+        private final long started = System.currentTimeMillis();
+        private int attempts = 1;
+        private long previousDelay = baseDelay;
+        private boolean mayHaveBeenApplied;
+
+        /**
+         * Decides on a retry after Google returned an error that is worth retrying.
+         * @param reason why the call failed, GoogleAppsMetrics.RATE_LIMIT_EXCEEDED or BACKEND_ERROR
+         * @param retryAfter how long Google asked us to wait, 0 if it didn't
+         * @return how long (in milliseconds) to wait before the next attempt, or -1 to give up
+         */
+        public long nextDelay(String reason, long retryAfter) {
+            if (attempts >= maxAttempts) {
+                LOG.error("nextDelay() - Retried attempt {} times, failing request", attempts);
+                GoogleAppsMetrics.failed();
+                return -1;
+            }
+
+            final long upper = Math.max(baseDelay, Math.min(maxDelay, previousDelay * 3));
+            final long jittered = baseDelay + (long) (randomGenerator.nextDouble() * (upper - baseDelay));
+            final long delay = Math.max(jittered, retryAfter);
+
+            if (System.currentTimeMillis() + delay - started > deadline) {
+                LOG.error("nextDelay() - A retry in {}ms would pass the {}ms deadline, failing request", delay, deadline);
+                GoogleAppsMetrics.failed();
+                return -1;
+            }
+
+            attempts++;
+            previousDelay = delay;
+            if (GoogleAppsMetrics.BACKEND_ERROR.equals(reason)) {
+                mayHaveBeenApplied = true;
+            }
+            GoogleAppsMetrics.retried(reason);
+            backOffTimer.update(delay, TimeUnit.MILLISECONDS);
+            return delay;
+        }
+
+        /**
+         * Decides on a retry after an I/O error.
+         * @param e the error
+         * @return how long (in milliseconds) to wait before the next attempt, or -1 to give up
+         */
+        public long nextDelay(IOException e) {
+            if (!mayRetry(e)) {
+                LOG.error("nextDelay() - Not retrying a call that may have been applied: {}", e.toString());
+                GoogleAppsMetrics.failed();
+                return -1;
+            }
+
+            return nextDelay(GoogleAppsMetrics.IO_ERROR, 0);
+        }
+
+        /**
+         * @param e an I/O error
+         * @return true if the policy allows a call that hit the error to be repeated
+         */
+        public boolean mayRetry(IOException e) {
+            return idempotent || isUnsent(e);
+        }
+
+        /**
+         * @return true if an earlier attempt hit a backend error, which Google may have applied anyway; a retried
+         * insert that then reports the object already exists (409) has succeeded
+         */
+        public boolean mayHaveBeenApplied() {
+            return mayHaveBeenApplied;
+        }
+
+        /**
+         * @return how many attempts have been made (or started), including the first
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * SetDiff compares what should exist (Grouper items) with what does exist (Google addresses) in a single sorted
+ * merge, splitting them into missing, extra and matched with exact string comparison of the addresses.
+ *
+ * The Google side is just an array of address strings, so a group with a very large membership costs one reference
+ * per member rather than a wrapper object and a hash bag entry each. Matched items are the Grouper side items, so
+ * they keep their back links. An address listed more than once on the Google side is treated as a single address,
+ * but expected items are not merged: every expected item with a given address ends up in matched (or missing).
+ */
+public class SetDiff<T> {
+
+    /** Gets the address an item is compared by. */
+    public interface KeyFunction<T> {
+        String keyOf(T item);
+    }
+
+    /** Compares ComparableGroupItems by address. */
+    public static final KeyFunction<ComparableGroupItem> GROUP_ADDRESS = new KeyFunction<ComparableGroupItem>() {
+        public String keyOf(ComparableGroupItem item) {
+            return item.getName();
+        }
+    };
+
+    /** Compares ComparableMemberItems by address. */
+    public static final KeyFunction<ComparableMemberItem> MEMBER_ADDRESS = new KeyFunction<ComparableMemberItem>() {
+        public String keyOf(ComparableMemberItem item) {
+            return item.getEmail();
+        }
+    };
+
+    private final List<T> missing = new ArrayList<T>();
+    private final List<T> matched = new ArrayList<T>();
+    private final List<String> extra = new ArrayList<String>();
+
+    /**
+     * @param expected the items that should exist
+     * @param actual the addresses that do exist
+     * @param key gets each expected item's address
+     */
+    @SuppressWarnings("unchecked")
+    public SetDiff(Collection<T> expected, Collection<String> actual, final KeyFunction<T> key) {
+        final T[] left = (T[]) expected.toArray();
+        Arrays.sort(left, new Comparator<T>() {
+            public int compare(T a, T b) {
+                return key.keyOf(a).compareTo(key.keyOf(b));
+            }
+        });
+
+        final String[] right = actual.toArray(new String[actual.size()]);
+        Arrays.sort(right);
+
+        int i = 0;
+        int j = 0;
+        while (i < left.length && j < right.length) {
+            final String rightKey = right[j];
+            final int comparison = key.keyOf(left[i]).compareTo(rightKey);
+
+            if (comparison < 0) {
+                missing.add(left[i++]);
+            } else if (comparison > 0) {
+                extra.add(rightKey);
+                j = skip(right, j, rightKey);
+            } else {
+                while (i < left.length && key.keyOf(left[i]).equals(rightKey)) {
+                    matched.add(left[i++]);
+                }
+                j = skip(right, j, rightKey);
+            }
+        }
+
+        while (i < left.length) {
+            missing.add(left[i++]);
+        }
+
+        while (j < right.length) {
+            final String rightKey = right[j];
+            extra.add(rightKey);
+            j = skip(right, j, rightKey);
+        }
+    }
+
+    /**
+     * @return the expected items that don't exist, in address order
+     */
+    public List<T> getMissing() {
+        return missing;
+    }
+
+    /**
+     * @return the expected items that do exist, in address order
+     */
+    public List<T> getMatched() {
+        return matched;
+    }
+
+    /**
+     * @return the addresses that exist but aren't expected, in order
+     */
+    public List<String> getExtra() {
+        return extra;
+    }
+
+    private static int skip(String[] keys, int index, String key) {
+        while (index < keys.length && keys[index].equals(key)) {
+            index++;
+        }
+        return index;
+    }
+}
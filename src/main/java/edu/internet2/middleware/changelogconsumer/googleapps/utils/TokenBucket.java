@@ -0,0 +1,152 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TokenBucket is a client-side rate limiter for Google API calls. Callers acquire a permit before each request and
+ * wait if the bucket is empty, so that we stay under our quota instead of finding out from a 403.
+ *
+ * The bucket is adaptive: each rate limit error halves the current rate (down to a tenth of the configured rate),
+ * and every run of successful requests wins back a tenth of the configured rate.
+ * A rate of zero or less disables the limit.
+ */
+public class TokenBucket {
+    private static final Logger LOG = LoggerFactory.getLogger(TokenBucket.class);
+
+    /** How many successful calls in a row are needed before the rate is increased again. */
+    private static final int SPEED_UP_AFTER = 50;
+
+    private final String name;
+    private double maxRate;
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private int successes;
+
+    /**
+     * @param name a label for logging
+     * @param permitsPerSecond the configured (maximum) rate
+     */
+    public TokenBucket(String name, double permitsPerSecond) {
+        this.name = name;
+        this.lastRefill = System.nanoTime();
+        setMaxRate(permitsPerSecond);
+    }
+
+    /**
+     * Changes the configured rate. The adaptive state is only reset when the rate actually changes.
+     * @param permitsPerSecond the configured (maximum) rate
+     */
+    public synchronized void setMaxRate(double permitsPerSecond) {
+        if (permitsPerSecond == maxRate && rate != 0) {
+            return;
+        }
+
+        LOG.debug("TokenBucket '{}' - setting rate to {}/s", name, permitsPerSecond);
+        maxRate = permitsPerSecond;
+        rate = permitsPerSecond;
+        tokens = Math.max(1, permitsPerSecond);
+        successes = 0;
+    }
+
+    /**
+     * blocks until a single permit is available.
+     */
+    public void acquire() {
+        acquire(1);
+    }
+
+    /**
+     * blocks until the requested number of permits are available.
+     * @param permits the number of requests about to be sent
+     */
+    public void acquire(int permits) {
+        final long wait = reserve(permits);
+
+        if (wait > 0) {
+            LOG.trace("TokenBucket '{}' - waiting {} milliseconds for {} permits", new Object[]{name, wait, permits});
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * slows the bucket down after Google has told us that we are over the quota.
+     */
+    public synchronized void slowDown() {
+        if (maxRate <= 0) {
+            return;
+        }
+
+        refill();
+        rate = Math.max(maxRate / 10, rate / 2);
+        tokens = Math.min(tokens, 0);
+        successes = 0;
+        LOG.warn("TokenBucket '{}' - rate limited by Google, slowing down to {}/s", name, rate);
+    }
+
+    /**
+     * records a successful call, speeding the bucket back up towards the configured rate.
+     */
+    public synchronized void onSuccess() {
+        if (rate >= maxRate || ++successes < SPEED_UP_AFTER) {
+            return;
+        }
+
+        refill();
+        rate = Math.min(maxRate, rate + maxRate / 10);
+        successes = 0;
+        LOG.debug("TokenBucket '{}' - speeding up to {}/s", name, rate);
+    }
+
+    /**
+     * @return the current (adapted) rate in permits per second
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Takes the permits, borrowing against the future if need be. Callers that must not block (e.g. asynchronous
+     * requests) use this and schedule the request after the wait instead of calling acquire().
+     * @param permits the number of requests about to be sent
+     * @return how long the caller should wait (in milliseconds) before using the permits
+     */
+    public synchronized long reserve(int permits) {
+        if (maxRate <= 0) {
+            return 0;
+        }
+
+        refill();
+        tokens -= permits;
+
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1000 / rate);
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) * rate / 1000000000L);
+        lastRefill = now;
+    }
+}
@@ -50,4 +50,38 @@ public class AddressFormatterTest {
         assertEquals(expected, result);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testQualifySubjectAddressKeepsCase() {
+        AddressFormatter addressFormatter = new AddressFormatter();
+        addressFormatter
+                .setSubjectIdentifierExpression("${subjectId}")
+                .setDomain("test.edu");
+
+        assertEquals("JDoe@test.edu", addressFormatter.qualifySubjectAddress("JDoe"));
+        assertEquals("a-b@test.edu", addressFormatter.qualifySubjectAddress("a:b"));
+    }
+
+    @Test
+    public void testQualifyGroupAddressLowerCases() {
+        AddressFormatter addressFormatter = new AddressFormatter();
+        addressFormatter
+                .setGroupIdentifierExpression("${groupPath}")
+                .setDomain("test.edu");
+
+        assertEquals("courses-abc-101@test.edu", addressFormatter.qualifyGroupAddress("Courses:ABC-101"));
+    }
+
+    @Test
+    public void testChangingExpressionDropsRememberedAddresses() {
+        AddressFormatter addressFormatter = new AddressFormatter();
+        addressFormatter
+                .setGroupIdentifierExpression("crs-${groupPath.replace(\"abc1:\", \"\")}-test")
+                .setDomain("test.edu");
+
+        assertEquals("crs-abc2-test@test.edu", addressFormatter.qualifyGroupAddress("abc1:abc2"));
+        assertEquals("crs-abc2-test@test.edu", addressFormatter.qualifyGroupAddress("abc1:abc2"));
+
+        addressFormatter.setGroupIdentifierExpression("new-${groupPath.replace(\"abc1:\", \"\")}");
+        assertEquals("new-abc2@test.edu", addressFormatter.qualifyGroupAddress("abc1:abc2"));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.admin.directory.model.Group;
+import edu.internet2.middleware.changelogconsumer.googleapps.cache.CacheSnapshot;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class CacheSnapshotTest {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    private File file;
+    private List<Group> groups;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("googleGroups", ".snapshot");
+
+        groups = new ArrayList<Group>();
+        for (int i = 0; i < 100; i++) {
+            groups.add(new Group().setEmail("test" + i + "@test.edu").setName("Test Group " + i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        CacheSnapshot.write(file, groups, JSON_FACTORY);
+
+        List<Group> result = CacheSnapshot.read(file, Group.class, JSON_FACTORY, 60000);
+        assertEquals(groups.size(), result.size());
+        assertEquals("test42@test.edu", result.get(42).getEmail());
+        assertEquals("Test Group 42", result.get(42).getName());
+    }
+
+    @Test
+    public void testLoadKeepsTheWriteTime() throws Exception {
+        final long before = System.currentTimeMillis();
+        CacheSnapshot.write(file, groups, JSON_FACTORY);
+
+        CacheSnapshot.Contents<Group> snapshot = CacheSnapshot.load(file, Group.class, JSON_FACTORY, 60000);
+        assertEquals(groups.size(), snapshot.getItems().size());
+        assertTrue(snapshot.getWritten() >= before && snapshot.getWritten() <= System.currentTimeMillis());
+    }
+
+    @Test
+    public void testStaleSnapshotIsIgnored() throws Exception {
+        CacheSnapshot.write(file, groups, JSON_FACTORY);
+        Thread.sleep(10);
+
+        assertNull(CacheSnapshot.read(file, Group.class, JSON_FACTORY, 1));
+    }
+
+    @Test
+    public void testTruncatedSnapshotIsIgnored() throws Exception {
+        CacheSnapshot.write(file, groups, JSON_FACTORY);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+
+        assertNull(CacheSnapshot.read(file, Group.class, JSON_FACTORY, 60000));
+    }
+
+    @Test
+    public void testMissingSnapshotIsIgnored() {
+        file.delete();
+
+        assertNull(CacheSnapshot.read(file, Group.class, JSON_FACTORY, 60000));
+    }
+}
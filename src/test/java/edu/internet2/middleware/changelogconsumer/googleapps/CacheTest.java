@@ -0,0 +1,141 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import com.google.api.services.admin.directory.model.Group;
+import edu.internet2.middleware.changelogconsumer.googleapps.cache.Cache;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsMetrics;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class CacheTest {
+
+    @Test
+    public void testPutAndGet() {
+        Cache<Group> cache = new Cache<Group>();
+        cache.put(new Group().setEmail("test@test.edu"));
+
+        assertNotNull(cache.get("test@test.edu"));
+        assertNull(cache.get("other@test.edu"));
+    }
+
+    @Test
+    public void testNamedCacheCountsHitsAndMisses() {
+        Cache<Group> cache = new Cache<Group>("cacheTest");
+        cache.put(new Group().setEmail("test@test.edu"));
+
+        cache.get("test@test.edu");
+        cache.get("test@test.edu");
+        cache.get("other@test.edu");
+
+        assertEquals(2, GoogleAppsMetrics.meter("cache.cacheTest.hits").getCount());
+        assertEquals(1, GoogleAppsMetrics.meter("cache.cacheTest.misses").getCount());
+    }
+
+    @Test
+    public void testEntriesExpireIndividually() {
+        Cache<Group> cache = new Cache<Group>();
+        cache.put(new Group().setEmail("test@test.edu"));
+
+        cache.setCacheValidity(0);
+        assertNull(cache.get("test@test.edu"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testKeySetSkipsExpiredEntries() {
+        Cache<Group> cache = new Cache<Group>();
+        cache.put(new Group().setEmail("test@test.edu"));
+        assertEquals(1, cache.getKeySet().size());
+
+        cache.setCacheValidity(0);
+        assertTrue(cache.getKeySet().isEmpty());
+    }
+
+    @Test
+    public void testOnlyExpiredUntilSeeded() {
+        Cache<Group> cache = new Cache<Group>();
+        assertTrue(cache.isExpired());
+
+        List<Group> groups = new ArrayList<Group>();
+        groups.add(new Group().setEmail("test@test.edu"));
+        cache.seed(groups);
+        assertFalse(cache.isExpired());
+        assertEquals(1, cache.size());
+
+        cache.clear();
+        assertTrue(cache.isExpired());
+    }
+
+    @Test
+    public void testSeededEntriesAgeFromWhenTheyWereLoaded() {
+        Cache<Group> cache = new Cache<Group>();
+        cache.setCacheValidity(30);
+
+        List<Group> groups = new ArrayList<Group>();
+        groups.add(new Group().setEmail("test@test.edu"));
+        cache.seed(groups, System.currentTimeMillis() - 60 * 60000L);
+
+        assertFalse(cache.isExpired());
+        assertNull(cache.get("test@test.edu"));
+    }
+
+    @Test
+    public void testMaxSize() {
+        Cache<Group> cache = new Cache<Group>();
+        cache.setMaxSize(10);
+
+        for (int i = 0; i < 100; i++) {
+            cache.put(new Group().setEmail("test" + i + "@test.edu"));
+        }
+
+        assertTrue(cache.size() <= 10);
+    }
+
+    @Test
+    public void testChangesDuringLoadAreKept() {
+        Cache<Group> cache = new Cache<Group>();
+        cache.put(new Group().setEmail("deleted@test.edu"));
+
+        cache.startLoad();
+        List<Group> loaded = new ArrayList<Group>();
+        loaded.add(new Group().setEmail("deleted@test.edu"));
+        loaded.add(new Group().setEmail("kept@test.edu"));
+        cache.remove("deleted@test.edu");
+        cache.put(new Group().setEmail("created@test.edu"));
+        cache.seed(loaded);
+        cache.endLoad();
+
+        assertNull(cache.get("deleted@test.edu"));
+        assertNotNull(cache.get("created@test.edu"));
+        assertNotNull(cache.get("kept@test.edu"));
+
+        cache.remove("kept@test.edu");
+        cache.seed(loaded);
+        assertNotNull(cache.get("kept@test.edu"));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogLabels;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ */
+public class ChangeLogCoalescerTest {
+
+    private static final String GROUP = "test:group";
+    private static final String OTHER_GROUP = "test:other";
+
+    @Test
+    public void testAddAndDeleteCancel() {
+        ChangeLogCoalescer coalescer = new ChangeLogCoalescer(Arrays.asList(
+                membership(1, "addMembership", GROUP, "m1"),
+                membership(2, "deleteMembership", GROUP, "m1"),
+                membership(3, "deleteMembership", GROUP, "m2"),
+                membership(4, "addMembership", GROUP, "m2"),
+                membership(5, "addMembership", GROUP, "m3")));
+
+        assertEquals(Arrays.asList(5L), sequenceNumbers(coalescer.getEntries()));
+        assertEquals(5L, coalescer.getLastSequenceNumber());
+    }
+
+    @Test
+    public void testRepeatedAddsAreKept() {
+        ChangeLogCoalescer coalescer = new ChangeLogCoalescer(Arrays.asList(
+                membership(1, "addMembership", GROUP, "m1"),
+                membership(2, "addMembership", GROUP, "m1")));
+
+        assertEquals(Arrays.asList(1L, 2L), sequenceNumbers(coalescer.getEntries()));
+    }
+
+    @Test
+    public void testPrivilegeChangesCollapse() {
+        ChangeLogCoalescer coalescer = new ChangeLogCoalescer(Arrays.asList(
+                privilege(1, "addPrivilege", GROUP, "m1"),
+                privilege(2, "addPrivilege", GROUP, "m2"),
+                privilege(3, "deletePrivilege", GROUP, "m1"),
+                privilege(4, "addPrivilege", OTHER_GROUP, "m1")));
+
+        assertEquals(Arrays.asList(2L, 3L, 4L), sequenceNumbers(coalescer.getEntries()));
+    }
+
+    @Test
+    public void testGroupUpdatesCollapse() {
+        ChangeLogCoalescer coalescer = new ChangeLogCoalescer(Arrays.asList(
+                groupUpdate(1, GROUP, "description"),
+                groupUpdate(2, GROUP, "displayExtension"),
+                groupUpdate(3, GROUP, "description")));
+
+        assertEquals(Arrays.asList(2L, 3L), sequenceNumbers(coalescer.getEntries()));
+    }
+
+    @Test
+    public void testGroupBarrier() {
+        ChangeLogCoalescer coalescer = new ChangeLogCoalescer(Arrays.asList(
+                membership(1, "addMembership", GROUP, "m1"),
+                group(2, "deleteGroup", GROUP),
+                membership(3, "deleteMembership", GROUP, "m1"),
+                membership(4, "addMembership", GROUP, "m2"),
+                group(5, "addGroup", OTHER_GROUP),
+                membership(6, "deleteMembership", GROUP, "m2")));
+
+        assertEquals(Arrays.asList(1L, 2L, 3L, 5L), sequenceNumbers(coalescer.getEntries()));
+    }
+
+    @Test
+    public void testAttributeAssignIsABarrierForEveryGroup() {
+        ChangeLogCoalescer coalescer = new ChangeLogCoalescer(Arrays.asList(
+                membership(1, "addMembership", GROUP, "m1"),
+                privilege(2, "addPrivilege", OTHER_GROUP, "m1"),
+                entry(3, "attributeAssign", "addAttributeAssign"),
+                membership(4, "deleteMembership", GROUP, "m1"),
+                privilege(5, "deletePrivilege", OTHER_GROUP, "m1")));
+
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), sequenceNumbers(coalescer.getEntries()));
+    }
+
+    @Test
+    public void testNoCompaction() {
+        ChangeLogCoalescer coalescer = new ChangeLogCoalescer(Arrays.asList(
+                membership(1, "addMembership", GROUP, "m1"),
+                membership(2, "deleteMembership", GROUP, "m1")), false);
+
+        assertEquals(Arrays.asList(1L, 2L), sequenceNumbers(coalescer.getEntries()));
+        assertEquals(1L, coalescer.lastSafeSequenceNumber(2));
+    }
+
+    @Test
+    public void testChainedSupersededBy() {
+        ChangeLogCoalescer coalescer = new ChangeLogCoalescer(Arrays.asList(
+                privilege(1, "addPrivilege", GROUP, "m1"),
+                privilege(2, "deletePrivilege", GROUP, "m1"),
+                membership(3, "addMembership", GROUP, "m2"),
+                privilege(4, "addPrivilege", GROUP, "m1")));
+
+        assertEquals(Arrays.asList(3L, 4L), sequenceNumbers(coalescer.getEntries()));
+
+        // 1 was superseded by 2, which was itself superseded by 4
+        assertEquals(0L, coalescer.lastSafeSequenceNumber(3));
+        assertEquals(0L, coalescer.lastSafeSequenceNumber(4));
+    }
+
+    @Test
+    public void testLastSafeSequenceNumber() {
+        ChangeLogCoalescer coalescer = new ChangeLogCoalescer(Arrays.asList(
+                membership(10, "addMembership", GROUP, "m1"),
+                membership(11, "addMembership", GROUP, "m2"),
+                membership(12, "deleteMembership", GROUP, "m1"),
+                membership(13, "addMembership", GROUP, "m3"),
+                membership(14, "addMembership", GROUP, "m4"),
+                membership(15, "deleteMembership", GROUP, "m4")));
+
+        assertEquals(Arrays.asList(11L, 13L), sequenceNumbers(coalescer.getEntries()));
+
+        // 10 waits on 12, which is after the stop point
+        assertEquals(9L, coalescer.lastSafeSequenceNumber(11));
+
+        // 10 and 12 cancelled before the stop point; 14 and 15 are after it
+        assertEquals(12L, coalescer.lastSafeSequenceNumber(13));
+    }
+
+    private ChangeLogEntry entry(long sequenceNumber, String category, String action) {
+        ChangeLogEntry entry = mock(ChangeLogEntry.class);
+        when(entry.getSequenceNumber()).thenReturn(sequenceNumber);
+        when(entry.getChangeLogType()).thenReturn(new ChangeLogType(category, action, ""));
+        return entry;
+    }
+
+    private ChangeLogEntry membership(long sequenceNumber, String action, String groupName, String memberId) {
+        ChangeLogEntry entry = entry(sequenceNumber, "membership", action);
+        if (action.equals("addMembership")) {
+            when(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName)).thenReturn(groupName);
+            when(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.memberId)).thenReturn(memberId);
+            when(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.fieldName)).thenReturn("members");
+        } else {
+            when(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.groupName)).thenReturn(groupName);
+            when(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.memberId)).thenReturn(memberId);
+            when(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_DELETE.fieldName)).thenReturn("members");
+        }
+        return entry;
+    }
+
+    private ChangeLogEntry privilege(long sequenceNumber, String action, String groupName, String memberId) {
+        ChangeLogEntry entry = entry(sequenceNumber, "privilege", action);
+        if (action.equals("addPrivilege")) {
+            when(entry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_ADD.ownerName)).thenReturn(groupName);
+            when(entry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_ADD.memberId)).thenReturn(memberId);
+        } else {
+            when(entry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_DELETE.ownerName)).thenReturn(groupName);
+            when(entry.retrieveValueForLabel(ChangeLogLabels.PRIVILEGE_DELETE.memberId)).thenReturn(memberId);
+        }
+        return entry;
+    }
+
+    private ChangeLogEntry groupUpdate(long sequenceNumber, String groupName, String property) {
+        ChangeLogEntry entry = entry(sequenceNumber, "group", "updateGroup");
+        when(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.name)).thenReturn(groupName);
+        when(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_UPDATE.propertyChanged)).thenReturn(property);
+        return entry;
+    }
+
+    private ChangeLogEntry group(long sequenceNumber, String action, String groupName) {
+        ChangeLogEntry entry = entry(sequenceNumber, "group", action);
+        if (action.equals("addGroup")) {
+            when(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_ADD.name)).thenReturn(groupName);
+        } else {
+            when(entry.retrieveValueForLabel(ChangeLogLabels.GROUP_DELETE.name)).thenReturn(groupName);
+        }
+        return entry;
+    }
+
+    private static List<Long> sequenceNumbers(List<ChangeLogEntry> entries) {
+        List<Long> sequenceNumbers = new ArrayList<Long>();
+        for (ChangeLogEntry entry : entries) {
+            sequenceNumbers.add(entry.getSequenceNumber());
+        }
+        return sequenceNumbers;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.grouper.GrouperSession;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogEntry;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogLabels;
+import edu.internet2.middleware.grouper.changeLog.ChangeLogType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ */
+public class ChangeLogDispatcherTest {
+
+    private final List<Long> processed = Collections.synchronizedList(new ArrayList<Long>());
+
+    /** A processor that records each entry, sleeping first for the given entries and failing the given ones. */
+    private class Processor implements ChangeLogDispatcher.EntryProcessor {
+        private final List<Long> slow;
+        private final List<Long> failing;
+
+        Processor(List<Long> slow, List<Long> failing) {
+            this.slow = slow;
+            this.failing = failing;
+        }
+
+        public boolean process(ChangeLogEntry changeLogEntry) {
+            if (slow.contains(changeLogEntry.getSequenceNumber())) {
+                pause(200);
+            }
+            processed.add(changeLogEntry.getSequenceNumber());
+            return !failing.contains(changeLogEntry.getSequenceNumber());
+        }
+
+        public boolean isStopping() {
+            return false;
+        }
+    }
+
+    @Test
+    public void testSameGroupKeepsOrder() {
+        List<ChangeLogEntry> entries = Arrays.asList(
+                membership(1, "test:a"), membership(2, "test:b"), membership(3, "test:a"),
+                membership(4, "test:b"), membership(5, "test:a"), membership(6, "test:b"));
+
+        int done = dispatcher(4).dispatch(entries, new Processor(Arrays.asList(1L, 4L), Collections.<Long>emptyList()));
+
+        assertEquals(6, done);
+        assertEquals(6, processed.size());
+        assertOrdered(Arrays.asList(1L, 3L, 5L));
+        assertOrdered(Arrays.asList(2L, 4L, 6L));
+    }
+
+    @Test
+    public void testBarrierWaitsForAllLanes() {
+        List<ChangeLogEntry> entries = Arrays.asList(
+                membership(1, "test:a"), membership(2, "test:b"), barrier(3), membership(4, "test:a"));
+
+        int done = dispatcher(4).dispatch(entries, new Processor(Arrays.asList(1L, 2L), Collections.<Long>emptyList()));
+
+        assertEquals(4, done);
+        assertEquals(Long.valueOf(3), processed.get(2));
+        assertEquals(Long.valueOf(4), processed.get(3));
+    }
+
+    @Test
+    public void testFailureReportsItsIndex() {
+        List<ChangeLogEntry> entries = Arrays.asList(
+                membership(1, "test:a"), membership(2, "test:b"), membership(3, "test:c"), membership(4, "test:d"));
+
+        int done = dispatcher(4).dispatch(entries, new Processor(Arrays.asList(2L), Arrays.asList(2L)));
+
+        // the lanes for 3 and 4 finished before 2 failed, but only 1 can be acknowledged
+        assertEquals(1, done);
+        assertTrue(processed.containsAll(Arrays.asList(1L, 3L, 4L)));
+    }
+
+    @Test
+    public void testFailureStopsLaterEntriesOfTheGroup() {
+        List<ChangeLogEntry> entries = Arrays.asList(
+                membership(1, "test:a"), membership(2, "test:a"), membership(3, "test:a"));
+
+        int done = dispatcher(2).dispatch(entries, new Processor(Collections.<Long>emptyList(), Arrays.asList(2L)));
+
+        assertEquals(1, done);
+        assertEquals(Arrays.asList(1L, 2L), processed);
+    }
+
+    @Test
+    public void testStoppingHaltsDispatch() {
+        List<ChangeLogEntry> entries = Arrays.asList(
+                membership(1, "test:a"), membership(2, "test:b"), membership(3, "test:a"), membership(4, "test:b"));
+
+        for (int threads : new int[]{1, 4}) {
+            processed.clear();
+            final AtomicInteger checks = new AtomicInteger();
+
+            int done = dispatcher(threads).dispatch(entries, new Processor(Collections.<Long>emptyList(), Collections.<Long>emptyList()) {
+                @Override
+                public boolean isStopping() {
+                    return checks.incrementAndGet() > 2;
+                }
+            });
+
+            assertEquals(2, done);
+            assertEquals(2, processed.size());
+            assertFalse(processed.contains(3L));
+            assertFalse(processed.contains(4L));
+        }
+    }
+
+    private void assertOrdered(List<Long> expected) {
+        List<Long> actual = new ArrayList<Long>();
+        synchronized (processed) {
+            for (Long sequenceNumber : processed) {
+                if (expected.contains(sequenceNumber)) {
+                    actual.add(sequenceNumber);
+                }
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
+    private static ChangeLogDispatcher dispatcher(int threadCount) {
+        return new ChangeLogDispatcher("test", threadCount) {
+            @Override
+            GrouperSession startLaneSession() {
+                return null;
+            }
+        };
+    }
+
+    private static ChangeLogEntry membership(long sequenceNumber, String groupName) {
+        ChangeLogEntry entry = mock(ChangeLogEntry.class);
+        when(entry.getSequenceNumber()).thenReturn(sequenceNumber);
+        when(entry.getChangeLogType()).thenReturn(new ChangeLogType("membership", "addMembership", ""));
+        when(entry.retrieveValueForLabel(ChangeLogLabels.MEMBERSHIP_ADD.groupName)).thenReturn(groupName);
+        return entry;
+    }
+
+    private static ChangeLogEntry barrier(long sequenceNumber) {
+        ChangeLogEntry entry = mock(ChangeLogEntry.class);
+        when(entry.getSequenceNumber()).thenReturn(sequenceNumber);
+        when(entry.getChangeLogType()).thenReturn(new ChangeLogType("attributeAssign", "addAttributeAssign", ""));
+        return entry;
+    }
+
+    private static void pause(long milliseconds) {
+        try {
+            Thread.sleep(milliseconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.DirtyGroupLedger;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class DirtyGroupLedgerTest {
+
+    @Test
+    public void testFlushDoesNotRepeatGroups() throws Exception {
+        File directory = newDirectory();
+
+        for (int batch = 0; batch < 10; batch++) {
+            DirtyGroupLedger ledger = new DirtyGroupLedger(directory, "test");
+            ledger.markDirty("group1@test.edu");
+            ledger.markDirty("Group2@test.edu");
+            ledger.flush();
+        }
+
+        assertEquals(2, lines(new File(directory, "test.dirtyGroups")));
+    }
+
+    @Test
+    public void testCheckoutAndCommit() throws Exception {
+        File directory = newDirectory();
+
+        DirtyGroupLedger ledger = new DirtyGroupLedger(directory, "test");
+        ledger.markDirty("group1@test.edu");
+        ledger.markDirty("group2@test.edu");
+        ledger.flush();
+
+        assertEquals(new HashSet<String>(Arrays.asList("group1@test.edu", "group2@test.edu")), ledger.checkout());
+
+        ledger.markDirty("group2@test.edu");
+        ledger.flush();
+        ledger.commit(Arrays.asList("group2@test.edu"), "group1@test.edu");
+
+        assertEquals(1, lines(new File(directory, "test.dirtyGroups")));
+        assertEquals(new HashSet<String>(Arrays.asList("group2@test.edu")), ledger.checkout());
+        assertEquals("group1@test.edu", ledger.getSampleCursor());
+    }
+
+    private static File newDirectory() throws Exception {
+        File directory = File.createTempFile("dirtyGroupLedger", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private static int lines(File file) throws Exception {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int lines = 0;
+            while (reader.readLine() != null) {
+                lines++;
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+}
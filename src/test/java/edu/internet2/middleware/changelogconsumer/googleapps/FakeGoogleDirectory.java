@@ -0,0 +1,781 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * FakeGoogleDirectory is an in-process stand-in for the Google Directory and Groupssettings APIs, so the provisioner
+ * can be exercised (and load tested) without a Google tenant. Build the Directory and Groupssettings clients on it,
+ * or hand it to GoogleGrouperConnector.setHttpTransport().
+ *
+ * It keeps users, groups, members and group settings in memory and answers list requests a page at a time. Missing
+ * objects get a 404 and duplicates a 409, as Google would. Batch requests are unpacked and each call in them is
+ * answered on its own. Rate limit (403 rateLimitExceeded) and backend (503 backendError) errors can be injected at
+ * random or for the next few calls, and a backend error can be given for a call that was applied anyway, as Google
+ * sometimes does. HTTP requests can be made to time out, and every HTTP request can be delayed to simulate the network. Calls are counted
+ * per operation, so the quota a run would use can be read back afterwards.
+ *
+ * The "fields" projection is ignored; full resources are always returned.
+ */
+public class FakeGoogleDirectory extends HttpTransport {
+    private static final String DIRECTORY_PATH = "admin/directory/v1";
+    private static final String GROUPSSETTINGS_PATH = "groups/v1/groups";
+    private static final String BATCH_PATH = "batch";
+    private static final String BATCH_BOUNDARY = "batch_fake_google_directory";
+
+    private final JsonFactory jsonFactory;
+
+    private final Map<String, GenericJson> users = new TreeMap<String, GenericJson>();
+    private final Map<String, GenericJson> groups = new TreeMap<String, GenericJson>();
+    private final Map<String, Map<String, GenericJson>> members = new HashMap<String, Map<String, GenericJson>>();
+    private final Map<String, GenericJson> groupSettings = new HashMap<String, GenericJson>();
+    private long nextId = 100000000000000000L;
+
+    private final Random random = new Random(42);
+    private volatile long latency;
+    private volatile double rateLimitErrorRate;
+    private volatile double backendErrorRate;
+    private final AtomicInteger forcedRateLimitErrors = new AtomicInteger();
+    private final AtomicInteger forcedBackendErrors = new AtomicInteger();
+    private final AtomicInteger forcedAppliedBackendErrors = new AtomicInteger();
+    private final AtomicInteger forcedTimeouts = new AtomicInteger();
+
+    private final AtomicInteger httpRequestCount = new AtomicInteger();
+    private final AtomicInteger injectedErrorCount = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicInteger> callCounts = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * @param jsonFactory used to read and write the JSON bodies
+     */
+    public FakeGoogleDirectory(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * @param millis how long each HTTP request (a whole batch counts as one) takes to answer
+     * @return this
+     */
+    public FakeGoogleDirectory setLatency(long millis) {
+        this.latency = millis;
+        return this;
+    }
+
+    /**
+     * @param rate the fraction of calls, from 0 to 1, answered with 403 rateLimitExceeded
+     * @return this
+     */
+    public FakeGoogleDirectory setRateLimitErrorRate(double rate) {
+        this.rateLimitErrorRate = rate;
+        return this;
+    }
+
+    /**
+     * @param rate the fraction of calls, from 0 to 1, answered with 503 backendError
+     * @return this
+     */
+    public FakeGoogleDirectory setBackendErrorRate(double rate) {
+        this.backendErrorRate = rate;
+        return this;
+    }
+
+    /**
+     * @param count how many of the next calls are answered with 403 rateLimitExceeded
+     * @return this
+     */
+    public FakeGoogleDirectory failNextWithRateLimit(int count) {
+        forcedRateLimitErrors.addAndGet(count);
+        return this;
+    }
+
+    /**
+     * @param count how many of the next calls are answered with 503 backendError
+     * @return this
+     */
+    public FakeGoogleDirectory failNextWithBackendError(int count) {
+        forcedBackendErrors.addAndGet(count);
+        return this;
+    }
+
+    /**
+     * @param count how many of the next calls are applied but answered with 503 backendError
+     * @return this
+     */
+    public FakeGoogleDirectory failNextWithBackendErrorAfterApplying(int count) {
+        forcedAppliedBackendErrors.addAndGet(count);
+        return this;
+    }
+
+    /**
+     * @param count how many of the next HTTP requests (a whole batch counts as one) time out without an answer
+     * @return this
+     */
+    public FakeGoogleDirectory failNextWithTimeout(int count) {
+        forcedTimeouts.addAndGet(count);
+        return this;
+    }
+
+    /**
+     * adds a user directly, without going through the API.
+     * @param email the user's primary address
+     * @return this
+     */
+    public synchronized FakeGoogleDirectory addUser(String email) {
+        final GenericJson user = new GenericJson();
+        user.put("primaryEmail", email);
+        insertUser(user);
+        return this;
+    }
+
+    /**
+     * adds a group directly, without going through the API.
+     * @param email the group's address
+     * @return this
+     */
+    public synchronized FakeGoogleDirectory addGroup(String email) {
+        final GenericJson group = new GenericJson();
+        group.put("email", email);
+        group.put("name", email.substring(0, email.indexOf('@') < 0 ? email.length() : email.indexOf('@')));
+        insertGroup(group);
+        return this;
+    }
+
+    /**
+     * adds a member directly, without going through the API. The group is created if need be.
+     * @param groupEmail the group's address
+     * @param email the member's address
+     * @param role MEMBER, MANAGER or OWNER
+     * @return this
+     */
+    public synchronized FakeGoogleDirectory addMember(String groupEmail, String email, String role) {
+        if (!groups.containsKey(groupEmail.toLowerCase())) {
+            addGroup(groupEmail);
+        }
+
+        final GenericJson member = new GenericJson();
+        member.put("email", email);
+        member.put("role", role);
+        insertMember(groupEmail.toLowerCase(), member);
+        return this;
+    }
+
+    /**
+     * @return the addresses of every user
+     */
+    public synchronized Set<String> getUsers() {
+        return new TreeSet<String>(users.keySet());
+    }
+
+    /**
+     * @return the addresses of every group
+     */
+    public synchronized Set<String> getGroups() {
+        return new TreeSet<String>(groups.keySet());
+    }
+
+    /**
+     * @param groupEmail the group's address
+     * @return the member addresses of the group, empty if there is no such group
+     */
+    public synchronized Set<String> getMembers(String groupEmail) {
+        final Map<String, GenericJson> groupMembers = members.get(groupEmail.toLowerCase());
+        return groupMembers == null ? new TreeSet<String>() : new TreeSet<String>(groupMembers.keySet());
+    }
+
+    /**
+     * @param groupEmail the group's address
+     * @param email the member's address
+     * @return the member's role, or null if it isn't a member
+     */
+    public synchronized String getRole(String groupEmail, String email) {
+        final Map<String, GenericJson> groupMembers = members.get(groupEmail.toLowerCase());
+        final GenericJson member = groupMembers == null ? null : groupMembers.get(email.toLowerCase());
+        return member == null ? null : (String) member.get("role");
+    }
+
+    /**
+     * @param groupEmail the group's address
+     * @return the group's settings, or null if there is no such group
+     */
+    public synchronized Map<String, Object> getGroupSettings(String groupEmail) {
+        final GenericJson settings = groupSettings.get(groupEmail.toLowerCase());
+        return settings == null ? null : new HashMap<String, Object>(settings);
+    }
+
+    /**
+     * @return how many HTTP requests were made; a batch counts once
+     */
+    public int getHttpRequestCount() {
+        return httpRequestCount.get();
+    }
+
+    /**
+     * @return how many API calls were made, counting each call in a batch, which is what Google's quota counts
+     */
+    public int getCallCount() {
+        int total = 0;
+        for (AtomicInteger count : callCounts.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of API calls per operation, e.g. "GET members" or "POST users"
+     */
+    public Map<String, Integer> getCallCounts() {
+        final Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> entry : callCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * @return how many calls were answered with an injected 403 or 503
+     */
+    public int getInjectedErrorCount() {
+        return injectedErrorCount.get();
+    }
+
+    /**
+     * forgets the call counts.
+     */
+    public void resetCounts() {
+        httpRequestCount.set(0);
+        injectedErrorCount.set(0);
+        callCounts.clear();
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new FakeRequest(method, url);
+    }
+
+    /**
+     * Answers one HTTP request. Batches are unpacked; anything else is a single API call.
+     */
+    private Response handle(String method, String url, String contentType, String body) throws IOException {
+        httpRequestCount.incrementAndGet();
+
+        if (forcedTimeouts.get() > 0 && forcedTimeouts.getAndDecrement() > 0) {
+            injectedErrorCount.incrementAndGet();
+            throw new SocketTimeoutException("Read timed out");
+        }
+
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+
+        final List<String> path = path(new GenericUrl(url));
+        if (!path.isEmpty() && path.get(0).equals(BATCH_PATH)) {
+            return handleBatch(contentType, body);
+        }
+
+        return call(method, url, body);
+    }
+
+    /**
+     * Answers a single API call, possibly with an injected error.
+     */
+    private Response call(String method, String url, String body) throws IOException {
+        final GenericUrl genericUrl = new GenericUrl(url);
+        final List<String> path = path(genericUrl);
+
+        if (forcedRateLimitErrors.get() > 0 && forcedRateLimitErrors.getAndDecrement() > 0 || chance(rateLimitErrorRate)) {
+            count(method, "rateLimitExceeded");
+            injectedErrorCount.incrementAndGet();
+            return error(403, "rateLimitExceeded", "Rate Limit Exceeded");
+        }
+
+        if (forcedBackendErrors.get() > 0 && forcedBackendErrors.getAndDecrement() > 0 || chance(backendErrorRate)) {
+            count(method, "backendError");
+            injectedErrorCount.incrementAndGet();
+            return error(503, "backendError", "Backend Error");
+        }
+
+        final String joined = join(path);
+        if (joined.startsWith(GROUPSSETTINGS_PATH + "/") && path.size() == 4) {
+            count(method, "groupssettings");
+            return groupSettings(method, path.get(3).toLowerCase(), body);
+        }
+
+        if (!joined.startsWith(DIRECTORY_PATH + "/")) {
+            count(method, joined);
+            return notFound();
+        }
+
+        final List<String> resource = path.subList(3, path.size());
+        count(method, resource.size() > 2 ? resource.get(2) : resource.get(0));
+
+        final Response response = directory(method, genericUrl, resource, body);
+        if (forcedAppliedBackendErrors.get() > 0 && forcedAppliedBackendErrors.getAndDecrement() > 0) {
+            injectedErrorCount.incrementAndGet();
+            return error(503, "backendError", "Backend Error");
+        }
+        return response;
+    }
+
+    /**
+     * Answers a Directory API call.
+     */
+    private synchronized Response directory(String method, GenericUrl genericUrl, List<String> resource, String body) throws IOException {
+        if (resource.get(0).equals("users")) {
+            return resource.size() == 1 ? users(method, genericUrl, body) : user(method, resource.get(1).toLowerCase(), body);
+
+        } else if (resource.get(0).equals("groups") && resource.size() <= 2) {
+            return resource.size() == 1 ? groups(method, genericUrl, body) : group(method, resource.get(1).toLowerCase(), body);
+
+        } else if (resource.get(0).equals("groups") && resource.get(2).equals("members")) {
+            final String groupKey = resource.get(1).toLowerCase();
+            return resource.size() == 3 ? members(method, groupKey, genericUrl, body) : member(method, groupKey, resource.get(3).toLowerCase(), body);
+        }
+
+        return notFound();
+    }
+
+    private Response users(String method, GenericUrl url, String body) throws IOException {
+        if (method.equals("GET")) {
+            return page("admin#directory#users", "users", users.values(), url, 100);
+
+        } else if (method.equals("POST")) {
+            final GenericJson user = parse(body);
+            if (users.containsKey(((String) user.get("primaryEmail")).toLowerCase())) {
+                return error(409, "duplicate", "Entity already exists.");
+            }
+            return ok(insertUser(user));
+        }
+
+        return error(405, "methodNotAllowed", "Method not allowed");
+    }
+
+    private Response user(String method, String userKey, String body) throws IOException {
+        final GenericJson user = users.get(userKey);
+        if (user == null) {
+            return notFound();
+        }
+
+        if (method.equals("GET")) {
+            return ok(user);
+        } else if (method.equals("DELETE")) {
+            users.remove(userKey);
+            for (Map<String, GenericJson> groupMembers : members.values()) {
+                groupMembers.remove(userKey);
+            }
+            return noContent();
+        } else {
+            return ok(update(user, method, body, "primaryEmail", "id"));
+        }
+    }
+
+    private Response groups(String method, GenericUrl url, String body) throws IOException {
+        if (method.equals("GET")) {
+            return page("admin#directory#groups", "groups", groups.values(), url, 200);
+
+        } else if (method.equals("POST")) {
+            final GenericJson group = parse(body);
+            if (groups.containsKey(((String) group.get("email")).toLowerCase())) {
+                return error(409, "duplicate", "Entity already exists.");
+            }
+            return ok(insertGroup(group));
+        }
+
+        return error(405, "methodNotAllowed", "Method not allowed");
+    }
+
+    private Response group(String method, String groupKey, String body) throws IOException {
+        final GenericJson group = groups.get(groupKey);
+        if (group == null) {
+            return notFound();
+        }
+
+        if (method.equals("GET")) {
+            return ok(group);
+        } else if (method.equals("DELETE")) {
+            groups.remove(groupKey);
+            members.remove(groupKey);
+            groupSettings.remove(groupKey);
+            return noContent();
+        } else {
+            return ok(update(group, method, body, "email", "id"));
+        }
+    }
+
+    private Response members(String method, String groupKey, GenericUrl url, String body) throws IOException {
+        final Map<String, GenericJson> groupMembers = members.get(groupKey);
+        if (groupMembers == null) {
+            return notFound();
+        }
+
+        if (method.equals("GET")) {
+            return page("admin#directory#members", "members", groupMembers.values(), url, 200);
+
+        } else if (method.equals("POST")) {
+            final GenericJson member = parse(body);
+            if (groupMembers.containsKey(((String) member.get("email")).toLowerCase())) {
+                return error(409, "duplicate", "Member already exists.");
+            }
+            return ok(insertMember(groupKey, member));
+        }
+
+        return error(405, "methodNotAllowed", "Method not allowed");
+    }
+
+    private Response member(String method, String groupKey, String memberKey, String body) throws IOException {
+        final Map<String, GenericJson> groupMembers = members.get(groupKey);
+        final GenericJson member = groupMembers == null ? null : groupMembers.get(memberKey);
+        if (member == null) {
+            return notFound();
+        }
+
+        if (method.equals("GET")) {
+            return ok(member);
+        } else if (method.equals("DELETE")) {
+            groupMembers.remove(memberKey);
+            return noContent();
+        } else {
+            return ok(update(member, method, body, "email", "id"));
+        }
+    }
+
+    private synchronized Response groupSettings(String method, String groupKey, String body) throws IOException {
+        final GenericJson settings = groupSettings.get(groupKey);
+        if (settings == null) {
+            return notFound();
+        }
+
+        if (method.equals("GET")) {
+            return ok(settings);
+        }
+        return ok(update(settings, method, body, "email", "kind"));
+    }
+
+    private GenericJson insertUser(GenericJson user) {
+        user.put("kind", "admin#directory#user");
+        user.put("id", Long.toString(nextId++));
+        users.put(((String) user.get("primaryEmail")).toLowerCase(), user);
+        return user;
+    }
+
+    private GenericJson insertGroup(GenericJson group) {
+        final String email = (String) group.get("email");
+        group.put("kind", "admin#directory#group");
+        group.put("id", Long.toString(nextId++));
+        groups.put(email.toLowerCase(), group);
+        members.put(email.toLowerCase(), new LinkedHashMap<String, GenericJson>());
+
+        final GenericJson settings = new GenericJson();
+        settings.put("kind", "groupsSettings#groups");
+        settings.put("email", email);
+        settings.put("archiveOnly", "false");
+        settings.put("whoCanViewMembership", "ALL_IN_DOMAIN_CAN_VIEW");
+        groupSettings.put(email.toLowerCase(), settings);
+        return group;
+    }
+
+    private GenericJson insertMember(String groupKey, GenericJson member) {
+        final String email = (String) member.get("email");
+        member.put("kind", "admin#directory#member");
+        if (member.get("role") == null) {
+            member.put("role", "MEMBER");
+        }
+        member.put("type", groups.containsKey(email.toLowerCase()) ? "GROUP" : "USER");
+
+        final GenericJson user = users.get(email.toLowerCase());
+        member.put("id", user != null ? user.get("id") : Long.toString(nextId++));
+
+        members.get(groupKey).put(email.toLowerCase(), member);
+        return member;
+    }
+
+    /** PUT replaces the resource and PATCH merges into it; either way the identifying fields are kept. */
+    private GenericJson update(GenericJson resource, String method, String body, String... keep) throws IOException {
+        final GenericJson changes = parse(body);
+        if (method.equals("PUT")) {
+            final Map<String, Object> kept = new HashMap<String, Object>();
+            for (String key : keep) {
+                kept.put(key, resource.get(key));
+            }
+            kept.put("kind", resource.get("kind"));
+            resource.clear();
+            resource.putAll(changes);
+            resource.putAll(kept);
+        } else {
+            for (String key : keep) {
+                changes.remove(key);
+            }
+            resource.putAll(changes);
+        }
+        return resource;
+    }
+
+    private Response page(String kind, String collection, Collection<GenericJson> items, GenericUrl url, int defaultPageSize) throws IOException {
+        final Object maxResults = url.getFirst("maxResults");
+        final Object pageToken = url.getFirst("pageToken");
+        final int pageSize = maxResults == null ? defaultPageSize : Integer.parseInt(maxResults.toString());
+        final int start = pageToken == null ? 0 : Integer.parseInt(pageToken.toString());
+
+        final List<GenericJson> all = new ArrayList<GenericJson>(items);
+        final int end = Math.min(all.size(), start + pageSize);
+
+        final GenericJson page = new GenericJson();
+        page.put("kind", kind);
+        if (start < end) {
+            page.put(collection, new ArrayList<GenericJson>(all.subList(start, end)));
+        }
+        if (end < all.size()) {
+            page.put("nextPageToken", Integer.toString(end));
+        }
+        return ok(page);
+    }
+
+    /**
+     * Unpacks a multipart/mixed batch, answers each call in it and packs the answers the same way.
+     */
+    private Response handleBatch(String contentType, String body) throws IOException {
+        final String boundary = "--" + contentType.substring(contentType.indexOf("boundary=") + "boundary=".length()).replace("\"", "").trim();
+
+        final StringBuilder response = new StringBuilder();
+        for (String part : body.split(java.util.regex.Pattern.quote(boundary))) {
+            final String trimmed = part.trim();
+            if (trimmed.isEmpty() || trimmed.equals("--")) {
+                continue;
+            }
+
+            // the part headers, then the embedded request line, its headers and its body
+            final String[] sections = part.replace("\r\n", "\n").split("\n\n", 3);
+            if (sections.length < 2) {
+                continue;
+            }
+
+            final String[] requestLines = sections[1].trim().split("\n");
+            final String[] requestLine = requestLines[0].split(" ");
+            final String url = requestLine[1].startsWith("/") ? "https://www.googleapis.com" + requestLine[1] : requestLine[1];
+            final String requestBody = sections.length > 2 ? sections[2].trim() : "";
+
+            final Response answer = call(requestLine[0], url, requestBody);
+
+            response.append("--").append(BATCH_BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append(contentId(sections[0]))
+                    .append("\r\n")
+                    .append("HTTP/1.1 ").append(answer.status).append(' ').append(reason(answer.status)).append("\r\n");
+            if (answer.body != null) {
+                response.append("Content-Type: application/json; charset=UTF-8\r\n")
+                        .append("Content-Length: ").append(answer.body.getBytes("UTF-8").length).append("\r\n")
+                        .append("\r\n")
+                        .append(answer.body).append("\r\n");
+            } else {
+                response.append("Content-Length: 0\r\n")
+                        .append("\r\n");
+            }
+        }
+        response.append("--").append(BATCH_BOUNDARY).append("--\r\n");
+
+        return new Response(200, response.toString(), "multipart/mixed; boundary=" + BATCH_BOUNDARY);
+    }
+
+    private static String contentId(String partHeaders) {
+        for (String header : partHeaders.split("\n")) {
+            if (header.toLowerCase().startsWith("content-id:")) {
+                final String id = header.substring("content-id:".length()).trim();
+                return "Content-ID: " + (id.startsWith("<") ? "<response-" + id.substring(1) : "response-" + id) + "\r\n";
+            }
+        }
+        return "";
+    }
+
+    private boolean chance(double rate) {
+        if (rate <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+
+    private void count(String method, String resource) {
+        final String key = method + " " + resource;
+        callCounts.putIfAbsent(key, new AtomicInteger());
+        callCounts.get(key).incrementAndGet();
+    }
+
+    private GenericJson parse(String body) throws IOException {
+        return jsonFactory.fromString(body, GenericJson.class);
+    }
+
+    private Response ok(GenericJson json) throws IOException {
+        return new Response(200, jsonFactory.toString(json), "application/json; charset=UTF-8");
+    }
+
+    private static Response noContent() {
+        return new Response(204, null, null);
+    }
+
+    private Response notFound() throws IOException {
+        return error(404, "notFound", "Resource Not Found");
+    }
+
+    private Response error(int code, String reason, String message) throws IOException {
+        final GenericJson detail = new GenericJson();
+        detail.put("domain", code == 403 ? "usageLimits" : "global");
+        detail.put("reason", reason);
+        detail.put("message", message);
+
+        final GenericJson error = new GenericJson();
+        error.put("errors", Arrays.asList(detail));
+        error.put("code", code);
+        error.put("message", message);
+
+        final GenericJson json = new GenericJson();
+        json.put("error", error);
+        return new Response(code, jsonFactory.toString(json), "application/json; charset=UTF-8");
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 503: return "Service Unavailable";
+            default: return "Unknown";
+        }
+    }
+
+    private static List<String> path(GenericUrl url) {
+        final List<String> path = new ArrayList<String>();
+        if (url.getPathParts() != null) {
+            for (String part : url.getPathParts()) {
+                if (part != null && !part.isEmpty()) {
+                    path.add(part);
+                }
+            }
+        }
+        return path;
+    }
+
+    private static String join(List<String> path) {
+        final StringBuilder joined = new StringBuilder();
+        for (String part : path) {
+            if (joined.length() > 0) {
+                joined.append('/');
+            }
+            joined.append(part);
+        }
+        return joined.toString();
+    }
+
+    /** A status code and JSON body. */
+    private static class Response {
+        private final int status;
+        private final String body;
+        private final String contentType;
+
+        Response(int status, String body, String contentType) {
+            this.status = status;
+            this.body = body;
+            this.contentType = contentType;
+        }
+    }
+
+    /** Collects the request the client builds and hands it to the fake when it is executed. */
+    private class FakeRequest extends LowLevelHttpRequest {
+        private final String method;
+        private final String url;
+
+        FakeRequest(String method, String url) {
+            this.method = method;
+            this.url = url;
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            final Response response = handle(method, url, getContentType(), readContent());
+
+            final MockLowLevelHttpResponse lowLevelResponse = new MockLowLevelHttpResponse();
+            lowLevelResponse.setStatusCode(response.status);
+            lowLevelResponse.setReasonPhrase(reason(response.status));
+            if (response.body != null) {
+                lowLevelResponse.setContentType(response.contentType);
+                lowLevelResponse.setContent(response.body);
+            }
+            return lowLevelResponse;
+        }
+
+        private String readContent() throws IOException {
+            final StreamingContent content = getStreamingContent();
+            if (content == null) {
+                return "";
+            }
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            content.writeTo(bytes);
+
+            InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+            if ("gzip".equals(getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+
+            final ByteArrayOutputStream text = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                text.write(buffer, 0, read);
+            }
+            return text.toString("UTF-8");
+        }
+    }
+}
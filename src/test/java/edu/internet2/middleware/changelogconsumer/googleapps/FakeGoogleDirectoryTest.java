@@ -0,0 +1,192 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.admin.directory.Directory;
+import com.google.api.services.admin.directory.model.Group;
+import com.google.api.services.admin.directory.model.Member;
+import com.google.api.services.admin.directory.model.User;
+import com.google.api.services.admin.directory.model.UserName;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsFuture;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs GoogleAppsSdkUtils against FakeGoogleDirectory, so no Google tenant or credentials are needed.
+ */
+public class FakeGoogleDirectoryTest {
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    private FakeGoogleDirectory fake;
+    private Directory directoryClient;
+
+    @Before
+    public void setup() {
+        fake = new FakeGoogleDirectory(JSON_FACTORY);
+        directoryClient = new Directory.Builder(fake, JSON_FACTORY, null)
+                .setApplicationName("Google Apps Grouper Provisioner")
+                .build();
+    }
+
+    @Test
+    public void testUserAndGroupLifecycle() throws Exception {
+        User user = new User()
+                .setPrimaryEmail("jdoe@test.edu")
+                .setName(new UserName().setGivenName("Jane").setFamilyName("Doe"));
+        assertNotNull(GoogleAppsSdkUtils.addUser(directoryClient, user).getId());
+        assertEquals("jdoe@test.edu", GoogleAppsSdkUtils.retrieveUser(directoryClient, "jdoe@test.edu").getPrimaryEmail());
+
+        GoogleAppsSdkUtils.addGroup(directoryClient, new Group().setEmail("test-group@test.edu").setName("test group"));
+        assertNotNull(GoogleAppsSdkUtils.retrieveGroup(directoryClient, "test-group@test.edu"));
+
+        GoogleAppsSdkUtils.removeGroup(directoryClient, "test-group@test.edu");
+        assertNull(GoogleAppsSdkUtils.retrieveGroup(directoryClient, "test-group@test.edu"));
+        assertNull(GoogleAppsSdkUtils.retrieveUser(directoryClient, "nobody@test.edu"));
+    }
+
+    @Test
+    public void testMembersArePaged() throws Exception {
+        for (int i = 0; i < 450; i++) {
+            fake.addMember("big-group@test.edu", "user" + i + "@test.edu", "MEMBER");
+        }
+        fake.resetCounts();
+
+        assertEquals(450, GoogleAppsSdkUtils.retrieveGroupMembers(directoryClient, "big-group@test.edu").size());
+        assertEquals(3, fake.getCallCounts().get("GET members").intValue());
+    }
+
+    @Test
+    public void testBatchedMembers() throws Exception {
+        fake.addGroup("test-group@test.edu")
+                .addMember("test-group@test.edu", "old@test.edu", "MEMBER");
+        fake.resetCounts();
+
+        GoogleAppsMemberBatch batch = new GoogleAppsMemberBatch(directoryClient, 100);
+        for (int i = 0; i < 5; i++) {
+            batch.addGroupMember("test-group@test.edu", new Member().setEmail("user" + i + "@test.edu").setRole("MEMBER"), null);
+        }
+        batch.removeGroupMember("test-group@test.edu", "old@test.edu", null);
+        batch.flush();
+
+        assertEquals(5, fake.getMembers("test-group@test.edu").size());
+        assertEquals(1, fake.getHttpRequestCount());
+        assertEquals(6, fake.getCallCount());
+    }
+
+    @Test
+    public void testBatchCountsFailures() throws Exception {
+        fake.addGroup("test-group@test.edu");
+
+        GoogleAppsMemberBatch batch = new GoogleAppsMemberBatch(directoryClient, 100);
+        batch.addGroupMember("missing-group@test.edu", new Member().setEmail("user@test.edu").setRole("MEMBER"), null);
+        batch.addGroupMember("test-group@test.edu", new Member().setEmail("user@test.edu").setRole("MEMBER"), null);
+        batch.removeGroupMember("test-group@test.edu", "nobody@test.edu", null);
+        batch.flush();
+
+        // removing a member who isn't there leaves the group as it should be
+        assertEquals(1, batch.getFailureCount());
+        assertEquals(1, fake.getMembers("test-group@test.edu").size());
+    }
+
+    @Test
+    public void testBackendErrorsAreRetried() throws Exception {
+        fake.addGroup("test-group@test.edu")
+                .failNextWithBackendError(1);
+
+        assertNotNull(GoogleAppsSdkUtils.retrieveGroup(directoryClient, "test-group@test.edu"));
+        assertEquals(1, fake.getInjectedErrorCount());
+        assertTrue(fake.getCallCount() >= 2);
+    }
+
+    @Test
+    public void testRetriedInsertThatWasAppliedSucceeds() throws Exception {
+        fake.addGroup("test-group@test.edu")
+                .failNextWithBackendErrorAfterApplying(1);
+
+        assertNotNull(GoogleAppsSdkUtils.addGroupMember(directoryClient, "test-group@test.edu",
+                new Member().setEmail("user@test.edu").setRole("MEMBER")));
+        assertEquals(1, fake.getMembers("test-group@test.edu").size());
+
+        fake.failNextWithBackendErrorAfterApplying(1);
+        GoogleAppsMemberBatch batch = new GoogleAppsMemberBatch(directoryClient, 100);
+        batch.addGroupMember("test-group@test.edu", new Member().setEmail("other@test.edu").setRole("MEMBER"), null);
+        batch.flush();
+
+        assertEquals(0, batch.getFailureCount());
+        assertEquals(2, fake.getMembers("test-group@test.edu").size());
+    }
+
+    @Test
+    public void testBatchRetriesOnlyWhatItMay() throws Exception {
+        fake.addGroup("test-group@test.edu")
+                .addMember("test-group@test.edu", "old@test.edu", "MEMBER")
+                .failNextWithTimeout(1);
+
+        GoogleAppsMemberBatch batch = new GoogleAppsMemberBatch(directoryClient, 100);
+        batch.addGroupMember("test-group@test.edu", new Member().setEmail("new@test.edu").setRole("MEMBER"), null);
+        batch.removeGroupMember("test-group@test.edu", "old@test.edu", null);
+        try {
+            batch.flush();
+            fail("the timed out insert should have been reported");
+        } catch (IOException e) {
+            // the insert may have been applied, so it isn't repeated
+        }
+
+        assertEquals(1, batch.getFailureCount());
+        assertTrue(fake.getMembers("test-group@test.edu").isEmpty());
+    }
+
+    @Test
+    public void testAsyncRequestsOverlap() throws Exception {
+        fake.addGroup("test-group@test.edu")
+                .setLatency(100);
+
+        final long start = System.currentTimeMillis();
+        List<GoogleAppsFuture<Member>> futures = new ArrayList<GoogleAppsFuture<Member>>();
+        for (int i = 0; i < 40; i++) {
+            futures.add(GoogleAppsSdkUtils.addGroupMemberAsync(directoryClient, "test-group@test.edu",
+                    new Member().setEmail("user" + i + "@test.edu").setRole("MEMBER")));
+        }
+        for (GoogleAppsFuture<Member> future : futures) {
+            assertNotNull(future.get());
+        }
+
+        assertEquals(40, fake.getMembers("test-group@test.edu").size());
+        assertTrue(System.currentTimeMillis() - start < 40 * 100 / 2);
+    }
+
+    @Test
+    public void testAsyncRequestsAreRetried() throws Exception {
+        fake.addGroup("test-group@test.edu")
+                .failNextWithBackendError(1);
+
+        assertNotNull(GoogleAppsSdkUtils.retrieveGroupAsync(directoryClient, "test-group@test.edu").get());
+        assertEquals(1, fake.getInjectedErrorCount());
+        assertNull(GoogleAppsSdkUtils.retrieveUserAsync(directoryClient, "nobody@test.edu").get());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsFuture;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ */
+public class GoogleAppsFutureTest {
+
+    @Test
+    public void testCallbacksRunOnceComplete() throws Exception {
+        final List<String> results = new ArrayList<String>();
+        final GoogleAppsFuture<String> future = new GoogleAppsFuture<String>();
+
+        future.addCallback(new Recorder(results));
+        assertTrue(results.isEmpty());
+
+        assertTrue(future.set("done"));
+        assertFalse(future.set("again"));
+        future.addCallback(new Recorder(results));
+
+        assertEquals(2, results.size());
+        assertEquals("done", results.get(1));
+        assertEquals("done", future.get());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final List<String> results = new ArrayList<String>();
+        final GoogleAppsFuture<String> future = GoogleAppsFuture.failed(new IOException("boom"));
+        future.addCallback(new Recorder(results));
+
+        assertEquals("failed: boom", results.get(0));
+        try {
+            future.get();
+            fail("expected an ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final List<String> results = new ArrayList<String>();
+        final GoogleAppsFuture<String> future = new GoogleAppsFuture<String>();
+        future.addCallback(new Recorder(results));
+
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertFalse(future.set("late"));
+        assertEquals("failed: The request was cancelled", results.get(0));
+        try {
+            future.get();
+            fail("expected a CancellationException");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    private static class Recorder implements GoogleAppsFuture.Callback<String> {
+        private final List<String> results;
+
+        Recorder(List<String> results) {
+            this.results = results;
+        }
+
+        public void onSuccess(String result) {
+            results.add(result);
+        }
+
+        public void onFailure(Throwable error) {
+            results.add("failed: " + error.getMessage());
+        }
+    }
+}
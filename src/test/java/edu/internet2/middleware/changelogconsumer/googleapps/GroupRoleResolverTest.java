@@ -0,0 +1,159 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GroupRoleResolver;
+import edu.internet2.middleware.grouper.Group;
+import edu.internet2.middleware.grouper.Member;
+import edu.internet2.middleware.subject.Subject;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ */
+public class GroupRoleResolverTest {
+
+    private Group group;
+    private Member admin;
+    private Member updater;
+    private Member member;
+
+    @Before
+    public void setup() {
+        group = mock(Group.class);
+        when(group.getName()).thenReturn("test:group");
+
+        admin = member("admin");
+        updater = member("updater");
+        member = member("member");
+
+        when(group.getAdmins()).thenReturn(subjects("admin"));
+        when(group.getUpdaters()).thenReturn(subjects("updater", "admin"));
+    }
+
+    @Test
+    public void testNone() {
+        GroupRoleResolver resolver = new GroupRoleResolver().setWhoCanManage("none");
+
+        assertEquals("MEMBER", resolver.determineRole(admin, group));
+        assertEquals("MEMBER", resolver.determineRole(updater, group));
+        assertEquals("MEMBER", resolver.determineRole(member, group));
+    }
+
+    @Test
+    public void testAdmin() {
+        GroupRoleResolver resolver = new GroupRoleResolver().setWhoCanManage("ADMIN");
+
+        assertEquals("MANAGER", resolver.determineRole(admin, group));
+        assertEquals("MEMBER", resolver.determineRole(updater, group));
+        assertEquals("MEMBER", resolver.determineRole(member, group));
+    }
+
+    @Test
+    public void testUpdate() {
+        GroupRoleResolver resolver = new GroupRoleResolver().setWhoCanManage("UPDATE");
+
+        assertEquals("MEMBER", resolver.determineRole(admin, group));
+        assertEquals("MANAGER", resolver.determineRole(updater, group));
+        assertEquals("MEMBER", resolver.determineRole(member, group));
+    }
+
+    @Test
+    public void testBoth() {
+        GroupRoleResolver resolver = new GroupRoleResolver().setWhoCanManage("BOTH");
+
+        assertEquals("MANAGER", resolver.determineRole(admin, group));
+        assertEquals("MANAGER", resolver.determineRole(updater, group));
+        assertEquals("MEMBER", resolver.determineRole(member, group));
+    }
+
+    @Test
+    public void testGrouperAll() {
+        when(group.getAdmins()).thenReturn(subjects());
+        when(group.getUpdaters()).thenReturn(Collections.singleton(subject("g:isa", "GrouperAll")));
+
+        GroupRoleResolver resolver = new GroupRoleResolver().setWhoCanManage("UPDATE");
+        assertEquals("MANAGER", resolver.determineRole(member, group));
+
+        resolver = new GroupRoleResolver().setWhoCanManage("ADMIN");
+        assertEquals("MEMBER", resolver.determineRole(member, group));
+    }
+
+    @Test
+    public void testWheelOrRootCanAdminister() {
+        GroupRoleResolver resolver = new GroupRoleResolver() {
+            @Override
+            protected boolean isWheelOrRoot(Member wheelMember) {
+                return wheelMember == member;
+            }
+        };
+
+        resolver.setWhoCanManage("ADMIN");
+        assertEquals("MANAGER", resolver.determineRole(member, group));
+        assertEquals("MEMBER", resolver.determineRole(updater, group));
+
+        resolver.setWhoCanManage("BOTH");
+        assertEquals("MANAGER", resolver.determineRole(member, group));
+
+        when(group.getUpdaters()).thenReturn(subjects("member"));
+        resolver.invalidate("test:group");
+        resolver.setWhoCanManage("UPDATE");
+        assertEquals("MEMBER", resolver.determineRole(member, group));
+    }
+
+    @Test
+    public void testInvalidate() {
+        GroupRoleResolver resolver = new GroupRoleResolver().setWhoCanManage("ADMIN");
+        assertEquals("MEMBER", resolver.determineRole(member, group));
+
+        when(group.getAdmins()).thenReturn(subjects("admin", "member"));
+        assertEquals("MEMBER", resolver.determineRole(member, group));
+
+        resolver.invalidate("test:group");
+        assertEquals("MANAGER", resolver.determineRole(member, group));
+    }
+
+    private Member member(String id) {
+        Member member = mock(Member.class);
+        when(member.getSubjectSourceId()).thenReturn("jdbc");
+        when(member.getSubjectId()).thenReturn(id);
+        return member;
+    }
+
+    private Subject subject(String sourceId, String id) {
+        Subject subject = mock(Subject.class);
+        when(subject.getSourceId()).thenReturn(sourceId);
+        when(subject.getId()).thenReturn(id);
+        return subject;
+    }
+
+    private Set<Subject> subjects(String... ids) {
+        Set<Subject> subjects = new HashSet<Subject>();
+        for (String id : ids) {
+            subjects.add(subject("jdbc", id));
+        }
+        return subjects;
+    }
+}
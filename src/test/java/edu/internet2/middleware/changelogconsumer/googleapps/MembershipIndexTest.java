@@ -0,0 +1,119 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.MembershipIndex;
+import java.io.File;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class MembershipIndexTest {
+
+    @Test
+    public void testAddAndRemove() {
+        MembershipIndex index = new MembershipIndex();
+        index.add("group1@test.edu", "User@test.edu");
+        index.add("group2@test.edu", "user@test.edu");
+
+        assertEquals(2, index.getGroups("user@test.edu").size());
+
+        index.remove("group1@test.edu", "user@test.edu");
+        assertTrue(index.hasMemberships("user@test.edu"));
+
+        index.remove("GROUP2@test.edu", "user@test.edu");
+        assertFalse(index.hasMemberships("user@test.edu"));
+    }
+
+    @Test
+    public void testSetMembersReplacesGroup() {
+        MembershipIndex index = new MembershipIndex();
+        index.add("group1@test.edu", "user1@test.edu");
+        index.setMembers("group1@test.edu", Arrays.asList("user2@test.edu"));
+
+        assertFalse(index.hasMemberships("user1@test.edu"));
+        assertTrue(index.hasMemberships("user2@test.edu"));
+
+        index.removeGroup("group1@test.edu");
+        assertFalse(index.hasMemberships("user2@test.edu"));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = File.createTempFile("membershipIndex", ".txt");
+        file.deleteOnExit();
+
+        MembershipIndex index = new MembershipIndex();
+        index.setMembers("group1@test.edu", Arrays.asList("user1@test.edu", "user2@test.edu"));
+        index.setMembers("empty@test.edu", Arrays.<String>asList());
+        index.save(file);
+
+        MembershipIndex loaded = new MembershipIndex();
+        assertFalse(loaded.isPopulated());
+        assertTrue(loaded.load(file));
+
+        assertTrue(loaded.isPopulated());
+        assertEquals(1, loaded.getGroups("user2@test.edu").size());
+        assertFalse(loaded.hasMemberships("user3@test.edu"));
+    }
+
+    @Test
+    public void testJournalSurvivesRestart() throws Exception {
+        File file = File.createTempFile("membershipIndex", ".txt");
+        File journal = new File(file.getPath() + ".journal");
+        file.deleteOnExit();
+        journal.deleteOnExit();
+
+        MembershipIndex fullSync = new MembershipIndex();
+        fullSync.setMembers("group1@test.edu", Arrays.asList("user1@test.edu", "user2@test.edu"));
+        fullSync.setMembers("group2@test.edu", Arrays.asList("user3@test.edu"));
+        fullSync.save(file);
+
+        // the consumer changes the index after the full sync, then restarts
+        MembershipIndex consumer = new MembershipIndex();
+        assertTrue(consumer.load(file));
+        consumer.startJournal(file);
+        consumer.add("group2@test.edu", "user1@test.edu");
+        consumer.remove("group1@test.edu", "user1@test.edu");
+        consumer.remove("group1@test.edu", "user2@test.edu");
+        consumer.removeGroup("group2@test.edu");
+        consumer.add("group3@test.edu", "user4@test.edu");
+        consumer.flushJournal();
+
+        MembershipIndex restarted = new MembershipIndex();
+        assertTrue(restarted.load(file));
+        assertFalse(restarted.hasMemberships("user1@test.edu"));
+        assertFalse(restarted.hasMemberships("user2@test.edu"));
+        assertFalse(restarted.hasMemberships("user3@test.edu"));
+        assertTrue(restarted.hasMemberships("user4@test.edu"));
+
+        // a new full sync starts a new journal
+        fullSync.save(file);
+        assertFalse(journal.exists());
+
+        restarted = new MembershipIndex();
+        assertTrue(restarted.load(file));
+        assertTrue(restarted.hasMemberships("user1@test.edu"));
+        assertFalse(restarted.hasMemberships("user4@test.edu"));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.RecentlyManipulatedObjectsList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class RecentlyManipulatedObjectsListTest {
+
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+    private RecentlyManipulatedObjectsList.Operation record(final String name) {
+        return new RecentlyManipulatedObjectsList.Operation() {
+            public void run() {
+                ran.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testRunsStraightAwayWhenNotRecent() throws Exception {
+        RecentlyManipulatedObjectsList list = new RecentlyManipulatedObjectsList(5, 1);
+
+        list.submit("cold@test.edu", null, record("cold"));
+        assertEquals(Arrays.asList("cold"), ran);
+        assertTrue(list.isWaiting("cold@test.edu"));
+    }
+
+    @Test
+    public void testRecentObjectDoesNotHoldUpOthers() throws Exception {
+        RecentlyManipulatedObjectsList list = new RecentlyManipulatedObjectsList(5, 1);
+        list.add("hot@test.edu");
+
+        long start = System.currentTimeMillis();
+        list.submit("hot@test.edu", null, record("hot1"));
+        list.submit("hot@test.edu", null, record("hot2"));
+        list.submit("cold@test.edu", null, record("cold"));
+
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertEquals(Arrays.asList("cold"), ran);
+
+        assertEquals(0, list.drain().getCount());
+        assertEquals(Arrays.asList("cold", "hot1", "hot2"), ran);
+        assertFalse(list.isWaiting("other@test.edu"));
+    }
+
+    @Test
+    public void testParkedChangesCoalesce() throws Exception {
+        RecentlyManipulatedObjectsList list = new RecentlyManipulatedObjectsList(5, 1);
+        list.add("hot@test.edu");
+
+        list.submit("hot@test.edu", "update", record("update1"));
+        list.submit("hot@test.edu", "update", record("update2"));
+        list.submit("hot@test.edu", "update", record("update3"));
+
+        assertEquals(0, list.drain().getCount());
+        assertEquals(Arrays.asList("update3"), ran);
+    }
+
+    @Test
+    public void testDrainCountsFailures() throws Exception {
+        RecentlyManipulatedObjectsList list = new RecentlyManipulatedObjectsList(5, 1);
+        list.add("hot@test.edu");
+
+        list.submit("hot@test.edu", null, new RecentlyManipulatedObjectsList.Operation() {
+            public void run() throws IOException {
+                throw new IOException("test");
+            }
+        });
+
+        assertEquals(1, list.drain().getCount());
+        assertEquals(0, list.drain().getCount());
+    }
+
+    @Test
+    public void testCoalescingKeepsOrder() throws Exception {
+        RecentlyManipulatedObjectsList list = new RecentlyManipulatedObjectsList(5, 1);
+        list.add("hot@test.edu");
+
+        list.submit("hot@test.edu", "update", record("update1"));
+        list.submit("hot@test.edu", null, record("other"));
+        list.submit("hot@test.edu", "update", record("update2"));
+
+        assertEquals(0, list.drain().getCount());
+        assertEquals(Arrays.asList("update1", "other", "update2"), ran);
+    }
+
+    @Test
+    public void testDrainReportsFirstFailedSequenceNumber() throws Exception {
+        RecentlyManipulatedObjectsList list = new RecentlyManipulatedObjectsList(5, 1);
+        list.add("hot@test.edu");
+        list.add("warm@test.edu");
+
+        final RecentlyManipulatedObjectsList.Operation failing = new RecentlyManipulatedObjectsList.Operation() {
+            public void run() throws IOException {
+                throw new IOException("test");
+            }
+        };
+
+        list.setSequenceNumber(10L);
+        list.submit("hot@test.edu", null, record("ok"));
+        list.setSequenceNumber(11L);
+        list.submit("warm@test.edu", "update", failing);
+        list.setSequenceNumber(12L);
+        list.submit("warm@test.edu", "update", failing);
+        list.setSequenceNumber(13L);
+        list.submit("hot@test.edu", null, failing);
+        list.setSequenceNumber(null);
+
+        RecentlyManipulatedObjectsList.Failures failures = list.drain();
+        assertEquals(2, failures.getCount());
+        assertEquals(Long.valueOf(11L), failures.getFirstSequenceNumber());
+
+        failures = list.drain();
+        assertEquals(0, failures.getCount());
+        assertEquals(null, failures.getFirstSequenceNumber());
+    }
+
+    @Test
+    public void testChangeWaitsForRunningChange() throws Exception {
+        final RecentlyManipulatedObjectsList list = new RecentlyManipulatedObjectsList(5, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Thread first = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    list.submit("user@test.edu", null, new RecentlyManipulatedObjectsList.Operation() {
+                        public void run() {
+                            started.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            ran.add("first");
+                        }
+                    });
+                } catch (IOException e) {
+                    ran.add("error");
+                }
+            }
+        });
+        first.start();
+        started.await();
+
+        assertTrue(list.isWaiting("user@test.edu"));
+        list.submit("user@test.edu", null, record("second"));
+        assertTrue(ran.isEmpty());
+
+        release.countDown();
+        first.join();
+
+        long finished = System.currentTimeMillis();
+        assertEquals(0, list.drain().getCount());
+        assertTrue(System.currentTimeMillis() - finished >= 900);
+        assertEquals(Arrays.asList("first", "second"), ran);
+    }
+
+    @Test
+    public void testNestedChangeKeepsSequenceNumber() throws Exception {
+        final RecentlyManipulatedObjectsList list = new RecentlyManipulatedObjectsList(5, 1);
+        list.add("hot@test.edu");
+        list.add("warm@test.edu");
+
+        list.setSequenceNumber(20L);
+        list.submit("hot@test.edu", null, new RecentlyManipulatedObjectsList.Operation() {
+            public void run() throws IOException {
+                list.submit("warm@test.edu", null, new RecentlyManipulatedObjectsList.Operation() {
+                    public void run() throws IOException {
+                        throw new IOException("test");
+                    }
+                });
+            }
+        });
+        list.setSequenceNumber(null);
+
+        RecentlyManipulatedObjectsList.Failures failures = list.drain();
+        assertEquals(1, failures.getCount());
+        assertEquals(Long.valueOf(20L), failures.getFirstSequenceNumber());
+    }
+
+    @Test
+    public void testDrainReportsFailedGroups() throws Exception {
+        final RecentlyManipulatedObjectsList list = new RecentlyManipulatedObjectsList(5, 1);
+        list.add("hot@test.edu");
+        list.add("warm@test.edu");
+
+        list.setGroup("ok-group@test.edu");
+        list.submit("hot@test.edu", null, record("ok"));
+        list.setGroup("bad-group@test.edu");
+        list.submit("warm@test.edu", null, new RecentlyManipulatedObjectsList.Operation() {
+            public void run() throws IOException {
+                throw new IOException("test");
+            }
+        });
+        list.setGroup(null);
+
+        assertTrue(list.hasParkedChanges("ok-group@test.edu"));
+        assertFalse(list.hasParkedChanges("other-group@test.edu"));
+
+        RecentlyManipulatedObjectsList.Failures failures = list.drain();
+        assertEquals(1, failures.getCount());
+        assertEquals(Collections.singleton("bad-group@test.edu"), failures.getGroups());
+        assertFalse(list.hasParkedChanges("ok-group@test.edu"));
+        assertFalse(list.hasParkedChanges("bad-group@test.edu"));
+    }
+}
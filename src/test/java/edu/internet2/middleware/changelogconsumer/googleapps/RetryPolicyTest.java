@@ -0,0 +1,96 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.GoogleAppsMetrics;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.RetryPolicy;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class RetryPolicyTest {
+
+    @Test
+    public void testDelaysStayWithinBounds() {
+        final RetryPolicy policy = new RetryPolicy(true).setMaxAttempts(100).setBaseDelay(10).setMaxDelay(200);
+        final RetryPolicy.Call call = policy.start();
+
+        for (int i = 0; i < 50; i++) {
+            final long delay = call.nextDelay(GoogleAppsMetrics.BACKEND_ERROR, 0);
+            assertTrue("delay " + delay, delay >= 10 && delay <= 200);
+        }
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() {
+        final RetryPolicy.Call call = new RetryPolicy(true).setMaxAttempts(3).setBaseDelay(1).setMaxDelay(1).start();
+
+        assertEquals(1, call.nextDelay(GoogleAppsMetrics.BACKEND_ERROR, 0));
+        assertEquals(1, call.nextDelay(GoogleAppsMetrics.BACKEND_ERROR, 0));
+        assertEquals(-1, call.nextDelay(GoogleAppsMetrics.BACKEND_ERROR, 0));
+        assertEquals(3, call.getAttempts());
+    }
+
+    @Test
+    public void testRetryAfterIsHonoured() {
+        final RetryPolicy.Call call = new RetryPolicy(true).setBaseDelay(10).setMaxDelay(20).start();
+
+        assertEquals(5000, call.nextDelay(GoogleAppsMetrics.RATE_LIMIT_EXCEEDED, 5000));
+    }
+
+    @Test
+    public void testGivesUpRatherThanPassTheDeadline() {
+        final RetryPolicy.Call call = new RetryPolicy(true).setDeadline(1000).setBaseDelay(10).setMaxDelay(20).start();
+
+        assertEquals(-1, call.nextDelay(GoogleAppsMetrics.RATE_LIMIT_EXCEEDED, 5000));
+        assertEquals(1, call.getAttempts());
+    }
+
+    @Test
+    public void testInsertsOnlyRetryUnsentRequests() {
+        final RetryPolicy insert = new RetryPolicy(false).setBaseDelay(1).setMaxDelay(1);
+        final RetryPolicy read = new RetryPolicy(true).setBaseDelay(1).setMaxDelay(1);
+
+        assertEquals(-1, insert.start().nextDelay(new SocketTimeoutException("Read timed out")));
+        assertEquals(1, insert.start().nextDelay(new ConnectException("Connection refused")));
+        assertEquals(1, insert.start().nextDelay(GoogleAppsMetrics.BACKEND_ERROR, 0));
+        assertEquals(1, read.start().nextDelay(new SocketTimeoutException("Read timed out")));
+    }
+
+    @Test
+    public void testParseRetryAfter() {
+        final long now = 1400000000000L;
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        assertEquals(0, RetryPolicy.parseRetryAfter(null, now));
+        assertEquals(0, RetryPolicy.parseRetryAfter("soon", now));
+        assertEquals(30000, RetryPolicy.parseRetryAfter("30", now));
+        assertEquals(120000, RetryPolicy.parseRetryAfter(format.format(new Date(now + 120000)), now));
+        assertEquals(0, RetryPolicy.parseRetryAfter(format.format(new Date(now - 120000)), now));
+    }
+}
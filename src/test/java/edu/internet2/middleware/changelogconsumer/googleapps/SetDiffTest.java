@@ -0,0 +1,82 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.ComparableMemberItem;
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.SetDiff;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class SetDiffTest {
+
+    @Test
+    public void testMissingExtraAndMatched() {
+        List<ComparableMemberItem> grouper = members("a@test.edu", "b@test.edu", "c@test.edu");
+        List<String> google = Arrays.asList("d@test.edu", "b@test.edu", "a@test.edu");
+
+        SetDiff<ComparableMemberItem> diff = new SetDiff<ComparableMemberItem>(grouper, google, SetDiff.MEMBER_ADDRESS);
+
+        assertEquals("[c@test.edu]", diff.getMissing().toString());
+        assertEquals("[d@test.edu]", diff.getExtra().toString());
+        assertEquals("[a@test.edu, b@test.edu]", diff.getMatched().toString());
+    }
+
+    @Test
+    public void testCollidingHashCodesAreNotEqual() {
+        //"Aa" and "BB" have the same hashCode
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+
+        SetDiff<ComparableMemberItem> diff = new SetDiff<ComparableMemberItem>(members("Aa"), Arrays.asList("BB"), SetDiff.MEMBER_ADDRESS);
+
+        assertEquals("[Aa]", diff.getMissing().toString());
+        assertEquals("[BB]", diff.getExtra().toString());
+        assertTrue(diff.getMatched().isEmpty());
+        assertTrue(!new ComparableMemberItem("Aa").equals(new ComparableMemberItem("BB")));
+    }
+
+    @Test
+    public void testDuplicatesAndEmptySides() {
+        SetDiff<ComparableMemberItem> diff =
+                new SetDiff<ComparableMemberItem>(members("a", "a"), Arrays.asList("a", "a", "b", "b"), SetDiff.MEMBER_ADDRESS);
+
+        assertEquals(2, diff.getMatched().size());
+        assertEquals("[b]", diff.getExtra().toString());
+
+        diff = new SetDiff<ComparableMemberItem>(members("a"), Collections.<String>emptyList(), SetDiff.MEMBER_ADDRESS);
+        assertEquals("[a]", diff.getMissing().toString());
+
+        diff = new SetDiff<ComparableMemberItem>(new ArrayList<ComparableMemberItem>(), Arrays.asList("a"), SetDiff.MEMBER_ADDRESS);
+        assertEquals("[a]", diff.getExtra().toString());
+    }
+
+    private static List<ComparableMemberItem> members(String... emails) {
+        List<ComparableMemberItem> members = new ArrayList<ComparableMemberItem>();
+        for (String email : emails) {
+            members.add(new ComparableMemberItem(email));
+        }
+        return members;
+    }
+}
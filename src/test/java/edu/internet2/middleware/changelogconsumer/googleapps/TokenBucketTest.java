@@ -0,0 +1,85 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements.  See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.internet2.middleware.changelogconsumer.googleapps;
+
+import edu.internet2.middleware.changelogconsumer.googleapps.utils.TokenBucket;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class TokenBucketTest {
+
+    @Test
+    public void testUnlimitedNeverWaits() {
+        TokenBucket bucket = new TokenBucket("test", 0);
+
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(0, bucket.reserve(1));
+        }
+    }
+
+    @Test
+    public void testReserveWaitsWhenEmpty() {
+        TokenBucket bucket = new TokenBucket("test", 10);
+
+        //10 permits are available up front
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, bucket.reserve(1));
+        }
+
+        //the rest are borrowed from the future at 100 milliseconds each
+        long wait = bucket.reserve(1);
+        assertTrue("waited " + wait, wait > 0 && wait <= 100);
+
+        wait = bucket.reserve(4);
+        assertTrue("waited " + wait, wait > 400 && wait <= 500);
+    }
+
+    @Test
+    public void testSlowDownAndSpeedUp() {
+        TokenBucket bucket = new TokenBucket("test", 100);
+
+        bucket.slowDown();
+        assertEquals(50.0, bucket.getRate(), 0.001);
+
+        for (int i = 0; i < 10; i++) {
+            bucket.slowDown();
+        }
+        assertEquals(10.0, bucket.getRate(), 0.001);
+
+        for (int i = 0; i < 50; i++) {
+            bucket.onSuccess();
+        }
+        assertEquals(20.0, bucket.getRate(), 0.001);
+    }
+
+    @Test
+    public void testSetMaxRateKeepsAdaptiveState() {
+        TokenBucket bucket = new TokenBucket("test", 100);
+        bucket.slowDown();
+
+        bucket.setMaxRate(100);
+        assertEquals(50.0, bucket.getRate(), 0.001);
+
+        bucket.setMaxRate(200);
+        assertEquals(200.0, bucket.getRate(), 0.001);
+    }
+}